@@ -2,9 +2,16 @@ package com.topcoder.nasa.file;
 
 import org.springframework.beans.factory.annotation.Required;
 
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+
 /**
  * Base class that all S3-related file classes should extend. Simply encapsulates salient S3 data.
  * This might make configuration in a DI framework more straightforward.
+ * <p/>
+ * By default we talk to AWS. Setting an {@link #endpoint} (and, usually, {@link #pathStyleAccess})
+ * points us at any S3-compatible store instead - e.g. a local stand-in for testing.
  *
  */
 public class AbstractS3FileManager {
@@ -17,6 +24,12 @@ public class AbstractS3FileManager {
     /** The credential (access secret) */
     protected String credential;
 
+    /** The S3 endpoint (e.g. http://localhost:9000); empty for AWS */
+    protected String endpoint;
+
+    /** Whether to address buckets as http://endpoint/bucket rather than http://bucket.endpoint */
+    protected boolean pathStyleAccess;
+
     // =========================================================================
 
     @Required
@@ -34,4 +47,26 @@ public class AbstractS3FileManager {
         this.credential = credential;
     }
 
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public void setPathStyleAccess(boolean pathStyleAccess) {
+        this.pathStyleAccess = pathStyleAccess;
+    }
+
+    // =========================================================================
+
+    protected AmazonS3Client createS3Client() {
+        AmazonS3Client s3Client = new AmazonS3Client(new BasicAWSCredentials(identity, credential));
+
+        if (endpoint != null && !endpoint.isEmpty()) {
+            s3Client.setEndpoint(endpoint);
+        }
+
+        s3Client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(pathStyleAccess));
+
+        return s3Client;
+    }
+
 }
@@ -4,13 +4,21 @@ import com.topcoder.nasa.job.LmmpJob;
 
 /**
  * When we upload a file to its ultimate destination, we prepend the {@link #S3_NAME_PREFIX} to the
- * UUID.
+ * UUID, and the output format's file type. Jobs that reuse another job's result share its keys -
+ * see {@link LmmpJob#getResultUuid()}.
  *
  */
 public class S3FileConstants {
     static final String S3_NAME_PREFIX = "lmmp-rest-";
 
+    /**
+     * @return the key of the job's output in its primary format
+     */
     static String computeKey(LmmpJob job) {
-        return S3_NAME_PREFIX + job.getUuid() + "." + job.getFileType();
+        return computeKey(job, job.getOutputFormat());
+    }
+
+    static String computeKey(LmmpJob job, String outputFormat) {
+        return S3_NAME_PREFIX + job.getResultUuid() + "." + LmmpJob.getFileType(outputFormat);
     }
 }
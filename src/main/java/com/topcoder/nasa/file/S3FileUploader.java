@@ -1,76 +1,299 @@
 package com.topcoder.nasa.file;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import javax.ws.rs.core.MediaType;
-
-import org.jclouds.ContextBuilder;
-import org.jclouds.aws.s3.blobstore.AWSS3BlobStoreContext;
-import org.jclouds.blobstore.BlobStore;
-import org.jclouds.blobstore.BlobStoreContext;
-import org.jclouds.blobstore.domain.Blob;
-import org.jclouds.blobstore.options.PutOptions;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.io.Files;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.topcoder.nasa.job.LmmpJob;
 
 /**
  * Responsible for uploading successful LmmpJobs' outputs (i.e. "mosaic.png") to S3.
+ * <p/>
+ * Uploads are S3 multipart uploads: the file is cut into parts of {@link #partSizeBytes}, each
+ * memory-mapped straight from the file, and up to {@link #concurrency} parts (across all uploads)
+ * are sent at the same time. Each upload has at most {@link #concurrency} parts in flight: a part is
+ * only mapped and queued once an earlier one is done, so a big file neither keeps all of its
+ * mappings alive nor queues all of its parts ahead of other jobs' uploads.
+ * <p/>
+ * A part that fails is retried, with backoff, up to {@link #maxPartAttempts} times; if it still
+ * fails, the whole upload is aborted and {@link #upload(LmmpJob)} throws.
  */
 public class S3FileUploader extends AbstractS3FileManager {
     private static final Logger LOG = LoggerFactory.getLogger(S3FileUploader.class);
 
-    private BlobStoreContext blobStoreContext;
+    /** S3 won't take parts (but the last) under 5MB. */
+    private static final long MIN_PART_SIZE_BYTES = 5 * 1024 * 1024;
+
+    /** The wait before the second attempt at a part; doubles with each further attempt. */
+    private static final long PART_RETRY_DELAY_MILLIS = 1000;
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    private AmazonS3Client s3Client;
+
+    private long partSizeBytes = 16 * 1024 * 1024;
+
+    private int concurrency = 4;
+
+    private int maxPartAttempts = 3;
+
+    /** Uploads the parts. */
+    private ExecutorService partExecutor;
 
     // =========================================================================
 
+    /**
+     * Uploads the job's output files, one per output format.
+     *
+     * @throws IllegalStateException
+     *             if an upload failed
+     */
     public void upload(LmmpJob job) {
-        LOG.info("Starting upload of job UUID {} to S3", job.getUuid());
+        for (String outputFormat : job.getOutputFormats()) {
+            upload(job, outputFormat);
+        }
+    }
+
+    private void upload(LmmpJob job, String outputFormat) {
+        LOG.info("Starting upload of job UUID {} in format {} to S3", job.getUuid(), outputFormat);
+
+        File jobFile = job.getJobCompletedFile(outputFormat);
+        String s3Key = S3FileConstants.computeKey(job, outputFormat);
+        long start = System.currentTimeMillis();
 
         try {
-            doUpload(job);
-            LOG.info("Completed upload of job UUID {} to S3", job.getUuid());
+            doUpload(jobFile, s3Key);
+        } catch (InterruptedException e) {
+            // we're shutting down: let whoever runs us know, once we've failed the upload
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Upload of " + jobFile + " to S3 was interrupted", e);
         } catch (Exception e) {
-            LOG.error("Exception while uploading job UUID {} to S3", e);
+            throw new IllegalStateException("Upload of " + jobFile + " to S3 failed: " + e.getMessage(), e);
         }
+
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+
+        LOG.info("Completed upload of job UUID {} in format {} to S3: {} bytes in {}ms ({} KB/s)",
+                new Object[] { job.getUuid(), outputFormat, jobFile.length(), millis,
+                        jobFile.length() * 1000 / 1024 / millis });
     }
 
-    private void doUpload(LmmpJob job) {
-        BlobStore blobStore = blobStoreContext.getBlobStore();
+    private void doUpload(File jobFile, String s3Key) throws IOException, InterruptedException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(CONTENT_TYPE);
+
+        String uploadId = s3Client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, s3Key, metadata)).getUploadId();
+
+        RandomAccessFile file = new RandomAccessFile(jobFile, "r");
+        // oldest first
+        LinkedList<Future<PartETag>> parts = new LinkedList<Future<PartETag>>();
 
-        File jobFile = job.getJobCompletedFile();
-        String s3Key = S3FileConstants.computeKey(job);
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            int partNumber = 1;
+            List<PartETag> partETags = new ArrayList<PartETag>();
+
+            for (long position = 0; position < size || partNumber == 1; position += partSizeBytes) {
+                if (parts.size() >= concurrency) {
+                    partETags.add(parts.getFirst().get());
+                    parts.removeFirst();
+                }
+
+                long length = Math.min(partSizeBytes, size - position);
+                ByteBuffer part = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
 
-        Blob blob = blobStore //
-                .blobBuilder(s3Key) //
-                .payload(Files.asByteSource(jobFile)) //
-                .contentType(MediaType.APPLICATION_OCTET_STREAM) //
-                .build();
+                parts.add(partExecutor.submit(new PartUpload(s3Key, uploadId, partNumber++, part,
+                        position + length >= size)));
+            }
 
-        blob.getMetadata().getContentMetadata().setContentLength(jobFile.length());
+            while (!parts.isEmpty()) {
+                partETags.add(parts.getFirst().get());
+                parts.removeFirst();
+            }
+
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, s3Key,
+                    uploadId, partETags));
+        } catch (Exception e) {
+            for (Future<PartETag> part : parts) {
+                part.cancel(true);
+            }
 
-        blobStore.putBlob(bucketName, blob, PutOptions.Builder.multipart());
+            abort(s3Key, uploadId);
+
+            if (e instanceof ExecutionException) {
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            }
+
+            if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            }
+
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void abort(String s3Key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, s3Key, uploadId));
+        } catch (AmazonClientException e) {
+            LOG.warn("Unable to abort multipart upload {} of {}", uploadId, s3Key, e);
+        }
+    }
+
+    // =========================================================================
+
+    public void setPartSizeBytes(long partSizeBytes) {
+        this.partSizeBytes = partSizeBytes;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setMaxPartAttempts(int maxPartAttempts) {
+        this.maxPartAttempts = maxPartAttempts;
     }
 
     // =========================================================================
 
     @PostConstruct
-    public void setupBlobStoreContext() {
+    public void init() {
+        if (partSizeBytes < MIN_PART_SIZE_BYTES) {
+            throw new IllegalStateException("S3 upload part size must be at least "
+                    + MIN_PART_SIZE_BYTES + " bytes, not " + partSizeBytes);
+        }
+
         LOG.info("Initializing S3FileUploader with the provided credentials");
 
-        this.blobStoreContext = ContextBuilder.newBuilder("aws-s3")//
-                .credentials(identity, credential) //
-                .buildView(AWSS3BlobStoreContext.class);
+        s3Client = createS3Client();
+        partExecutor = Executors.newFixedThreadPool(concurrency);
     }
 
     @PreDestroy
-    public void teardownBlobStoreContext() throws Exception {
+    public void shutdown() {
         LOG.info("Gracefully tearing down S3FileUploader");
 
-        blobStoreContext.close();
+        partExecutor.shutdownNow();
+        s3Client.shutdown();
+    }
+
+    // =========================================================================
+
+    /**
+     * Uploads one part, retrying as need be.
+     */
+    private class PartUpload implements Callable<PartETag> {
+        private final String s3Key;
+        private final String uploadId;
+        private final int partNumber;
+        private final ByteBuffer part;
+        private final boolean lastPart;
+
+        PartUpload(String s3Key, String uploadId, int partNumber, ByteBuffer part, boolean lastPart) {
+            this.s3Key = s3Key;
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.part = part;
+            this.lastPart = lastPart;
+        }
+
+        public PartETag call() throws InterruptedException {
+            for (int attempt = 1;; attempt++) {
+                long start = System.currentTimeMillis();
+
+                try {
+                    UploadPartRequest request = new UploadPartRequest() //
+                            .withBucketName(bucketName) //
+                            .withKey(s3Key) //
+                            .withUploadId(uploadId) //
+                            .withPartNumber(partNumber) //
+                            .withPartSize(part.remaining()) //
+                            .withLastPart(lastPart) //
+                            .withInputStream(new ByteBufferInputStream(part.duplicate()));
+
+                    PartETag partETag = s3Client.uploadPart(request).getPartETag();
+
+                    LOG.debug("Uploaded part {} of {} ({} bytes) in {}ms", new Object[] { partNumber,
+                            s3Key, part.remaining(), System.currentTimeMillis() - start });
+
+                    return partETag;
+                } catch (AmazonClientException e) {
+                    if (attempt >= maxPartAttempts) {
+                        throw e;
+                    }
+
+                    long delay = PART_RETRY_DELAY_MILLIS << (attempt - 1);
+
+                    LOG.warn("Attempt {} at part {} of {} failed; retrying in {}ms", new Object[] {
+                            attempt, partNumber, s3Key, delay }, e);
+
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a (mapped) buffer, without copying it onto the heap first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
     }
 }
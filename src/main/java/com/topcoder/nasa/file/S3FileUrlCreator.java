@@ -1,43 +1,149 @@
 package com.topcoder.nasa.file;
 
 import java.net.URL;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.topcoder.nasa.job.LmmpJob;
 
 /**
  * Responsible for producing URLs that allow (time limited) access to a resource in S3.
+ * <p/>
+ * URLs are valid for {@link #urlTtlSeconds}. Signing one is not free, and clients keep polling the
+ * status of completed jobs, so each key's URL is cached and handed out again until
+ * {@link #refreshMarginSeconds} before it expires: whoever gets a URL can count on it working for at
+ * least that long. At most {@link #maxCachedUrls} URLs are kept. {@link #getCacheStats()} tells how
+ * well the cache is doing.
  */
 public class S3FileUrlCreator extends AbstractS3FileManager implements InitializingBean {
     private static final Logger LOG = LoggerFactory.getLogger(S3FileUrlCreator.class);
 
     private AmazonS3Client s3Client;
 
+    private long urlTtlSeconds = 300;
+
+    private long refreshMarginSeconds = 60;
+
+    private long maxCachedUrls = 10000;
+
+    /** Signed URLs by S3 key */
+    private Cache<String, String> urlCache;
+
+    // =========================================================================
+
+    /**
+     * @return the URL of the job's output in its primary format
+     */
     public String generateUrlFor(LmmpJob job) {
-        Date now = new Date();
-        Date fiveMinsFromNow = new Date(now.getTime() + 300000);
+        return generateUrlFor(S3FileConstants.computeKey(job));
+    }
+
+    /**
+     * @return the URLs of the job's outputs, by output format
+     */
+    public Map<String, String> generateUrlsByFormatFor(LmmpJob job) {
+        Map<String, String> urls = new LinkedHashMap<String, String>();
 
-        String key = S3FileConstants.computeKey(job);
+        for (String outputFormat : job.getOutputFormats()) {
+            urls.put(outputFormat, generateUrlFor(S3FileConstants.computeKey(job, outputFormat)));
+        }
+
+        return urls;
+    }
+
+    private String generateUrlFor(final String key) {
+        try {
+            return urlCache.get(key, new Callable<String>() {
+                public String call() {
+                    return sign(key);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to sign URL for key " + key, e.getCause());
+        }
+    }
+
+    /**
+     * @return the URLs of the given (completed) jobs, by job UUID
+     */
+    public Map<String, String> generateUrlsFor(Collection<LmmpJob> jobs) {
+        Map<String, String> urls = new LinkedHashMap<String, String>();
+
+        for (LmmpJob job : jobs) {
+            urls.put(job.getUuid(), generateUrlFor(job));
+        }
+
+        return urls;
+    }
 
-        URL url = s3Client.generatePresignedUrl(bucketName, key, fiveMinsFromNow);
+    /**
+     * @return hits, misses, hit rate and size of the URL cache
+     */
+    public Map<String, Object> getCacheStats() {
+        CacheStats stats = urlCache.stats();
+        Map<String, Object> cacheStats = new LinkedHashMap<String, Object>();
+
+        cacheStats.put("hits", stats.hitCount());
+        cacheStats.put("misses", stats.missCount());
+        cacheStats.put("hitRate", stats.hitRate());
+        cacheStats.put("evictions", stats.evictionCount());
+        cacheStats.put("size", urlCache.size());
+
+        return cacheStats;
+    }
+
+    private String sign(String key) {
+        Date expiry = new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(urlTtlSeconds));
+
+        URL url = s3Client.generatePresignedUrl(bucketName, key, expiry);
 
         return url.toExternalForm();
     }
 
     // =========================================================================
 
+    public void setUrlTtlSeconds(long urlTtlSeconds) {
+        this.urlTtlSeconds = urlTtlSeconds;
+    }
+
+    public void setRefreshMarginSeconds(long refreshMarginSeconds) {
+        this.refreshMarginSeconds = refreshMarginSeconds;
+    }
+
+    public void setMaxCachedUrls(long maxCachedUrls) {
+        this.maxCachedUrls = maxCachedUrls;
+    }
+
+    // =========================================================================
+
     @Override
     public void afterPropertiesSet() throws Exception {
-        AWSCredentials credentials = new BasicAWSCredentials(identity, credential);
-        s3Client = new AmazonS3Client(credentials);
+        if (refreshMarginSeconds >= urlTtlSeconds) {
+            throw new IllegalStateException("The URL refresh margin (" + refreshMarginSeconds
+                    + "s) must be less than the URL TTL (" + urlTtlSeconds + "s)");
+        }
+
+        s3Client = createS3Client();
 
         LOG.info("Created native S3 Client...");
+
+        urlCache = CacheBuilder.newBuilder() //
+                .expireAfterWrite(urlTtlSeconds - refreshMarginSeconds, TimeUnit.SECONDS) //
+                .maximumSize(maxCachedUrls) //
+                .recordStats() //
+                .build();
     }
 }
@@ -6,14 +6,23 @@ import java.io.IOException;
 import java.util.Collection;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.HardLink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.topcoder.nasa.job.LmmpJob;
+
 /**
  * Prepares the local file system for the Hadoop job.
  * <p/>
- * This is a drop-in replacement for a legacy bash script and, as such, does not consider any of the intricacies of
- * multiple jobs being submitted at the same time or while one job is already running.
+ * This started life as a drop-in replacement for a legacy bash script. Each job now gets its own workspace so that
+ * several jobs can be prepared at the same time:
+ * <ul>
+ * <li>a pic directory, <code>{picDirectory}/{uuid}</code>, holding links to the job's images</li>
+ * <li>a part file, <code>{partFile parent}/{uuid}/{partFile name}</code>, listing those images</li>
+ * </ul>
+ * The reducer is told about the job's pic directory on its command line - see
+ * {@link com.topcoder.nasa.job.hadoop.HadoopJobRunner}.
  *
  */
 public class FileSystemImagePreparer {
@@ -27,28 +36,76 @@ public class FileSystemImagePreparer {
 
     // =============================================================================================
 
-    /** Empties the {@link #picDirectory} and creates the "part-000000" file. */
-    public void prepare(Collection<File> imageFiles) {
-        cleanPicDirectory();
+    /** Creates the job's pic directory and its "part-000000" file. */
+    public void prepare(LmmpJob job, Collection<File> imageFiles) {
+        cleanWorkspace(job);
+
+        linkImages(getPicDirectoryFor(job), imageFiles);
+
+        createPartFile(getPartFileFor(job), imageFiles);
+    }
+
+    /**
+     * @return the directory holding the images of the given job
+     */
+    public File getPicDirectoryFor(LmmpJob job) {
+        return new File(picDirectory, job.getUuid());
+    }
 
-        createPartFile(imageFiles);
+    /**
+     * @return the part file of the given job
+     */
+    public File getPartFileFor(LmmpJob job) {
+        return new File(new File(partFile.getParentFile(), job.getUuid()), partFile.getName());
+    }
+
+    /**
+     * Links each image into the job's pic directory. Images are hard linked, not copied, as they can be hundreds of
+     * MB; if the link fails (e.g. the cache is on another file system) we fall back to a copy.
+     *
+     * @param jobPicDirectory
+     *            the directory to link the images into
+     * @param imageFiles
+     *            the images to link
+     */
+    private void linkImages(File jobPicDirectory, Collection<File> imageFiles) {
+        try {
+            FileUtils.forceMkdir(jobPicDirectory);
+
+            for (File imageFile : imageFiles) {
+                File link = new File(jobPicDirectory, imageFile.getName());
+
+                try {
+                    HardLink.createHardLink(imageFile, link);
+                } catch (IOException e) {
+                    LOG.debug("Could not link {}, copying it instead", imageFile);
+                    FileUtils.copyFile(imageFile, link);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Exception preparing pic directory " + jobPicDirectory, e);
+        }
     }
 
     /**
      * Creates the "part" file that will be sent to Hadoop. This file simply contains the <b>names</b> of the image
      * files with their parent path (i.e. directory) stripped.
-     * 
+     *
+     * @param jobPartFile
+     *            the part file to create
      * @param imageFiles
      *            the image files to pull the names from.
      */
-    private void createPartFile(Collection<File> imageFiles) {
+    private void createPartFile(File jobPartFile, Collection<File> imageFiles) {
         try {
-            FileWriter writer = new FileWriter(partFile);
+            FileUtils.forceMkdir(jobPartFile.getParentFile());
+
+            FileWriter writer = new FileWriter(jobPartFile);
 
             for (File imageFile : imageFiles) {
                 String fileName = imageFile.getName().toUpperCase();
 
-                LOG.info("Writing {} to {}", fileName, partFile);
+                LOG.info("Writing {} to {}", fileName, jobPartFile);
 
                 writer.write(fileName);
                 writer.write('\n');
@@ -61,14 +118,18 @@ public class FileSystemImagePreparer {
     }
 
     /**
-     * Cleans the {@link #picDirectory} - empties it.
+     * Removes the job's pic directory and part file. The images themselves are left alone.
      */
-    public void cleanPicDirectory() {
+    public void cleanWorkspace(LmmpJob job) {
+        File jobPicDirectory = getPicDirectoryFor(job);
+        File jobPartDirectory = getPartFileFor(job).getParentFile();
+
         try {
-            LOG.info("Clearing down picDirectory " + picDirectory);
-            FileUtils.cleanDirectory(picDirectory);
+            LOG.info("Clearing down workspace of job {}", job.getUuid());
+            FileUtils.deleteDirectory(jobPicDirectory);
+            FileUtils.deleteDirectory(jobPartDirectory);
         } catch (IOException e) {
-            throw new IllegalStateException("Exception while cleaning picDirectory: " + picDirectory);
+            throw new IllegalStateException("Exception while cleaning workspace: " + jobPicDirectory);
         }
     }
 
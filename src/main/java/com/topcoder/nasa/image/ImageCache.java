@@ -0,0 +1,436 @@
+package com.topcoder.nasa.image;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * The persistent, size-bounded image cache that downloaded images land in.
+ * <p/>
+ * <ul>
+ * <li>Each image is stored under a name derived from its <b>full</b> URL: the upper case SHA-1 of
+ * the URL followed by the URL's file name (e.g. <code>3F2A..._M123456789LE.IMG</code>), so two
+ * URLs with the same file name no longer collide. The name is upper case so that it survives the
+ * upper-casing done by {@link FileSystemImagePreparer}</li>
+ * <li>An index of the entries (name, size, last access, CRC-32 if known) is kept in {@link #INDEX_FILE_NAME} in the
+ * cache directory and reloaded on start up, so the access history survives restarts</li>
+ * <li>When the entries exceed {@link #maxBytes}, the least recently used ones are evicted. Images
+ * {@link #pin(String) pinned} by a running job are never evicted</li>
+ * <li>Hits, misses and evictions are counted - see {@link #toString()}</li>
+ * </ul>
+ *
+ */
+public class ImageCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ImageCache.class);
+
+    /** The name of the index file inside the {@link #cacheDirectory}. */
+    static final String INDEX_FILE_NAME = ".index";
+
+    /** Downloads in progress are written to the image's file name plus this suffix. */
+    public static final String PART_FILE_SUFFIX = ".part";
+
+    /** The index is written at most this often, and on shutdown. */
+    private static final long INDEX_SAVE_PERIOD_MS = 30000;
+
+    /** Where the images live. */
+    private File cacheDirectory;
+
+    /** The most bytes of images we keep. */
+    private long maxBytes;
+
+    /** All the entries, least recently used first. */
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** How many running jobs want each entry kept. */
+    private Map<String, Integer> pinCounts = new HashMap<String, Integer>();
+
+    private long totalBytes;
+
+    private boolean indexDirty;
+    private long lastIndexSave;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    // =========================================================================
+
+    /**
+     * Sanity checks the {@link #cacheDirectory} and loads the index.
+     */
+    @PostConstruct
+    public synchronized void init() {
+        if (!cacheDirectory.exists() || !cacheDirectory.isDirectory()) {
+            throw new IllegalStateException("Cache directory " + cacheDirectory + " does not exist");
+        }
+
+        loadIndex();
+        evictIfNeeded();
+
+        LOG.info("Image cache ready: {}", this);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        saveIndex();
+    }
+
+    // =========================================================================
+
+    /**
+     * @return the file the image at the given URL is (or will be) cached in
+     */
+    public File getFile(String imageUrl) {
+        return new File(cacheDirectory, computeFileName(imageUrl));
+    }
+
+    /**
+     * Checks whether the image at the given URL is cached, counting a hit or a miss. A hit also
+     * marks the entry as recently used.
+     *
+     * @return true if the image is cached
+     */
+    public synchronized boolean contains(String imageUrl) {
+        String name = computeFileName(imageUrl);
+        Entry entry = entries.get(name);
+
+        if (entry != null && new File(cacheDirectory, name).exists()) {
+            entry.lastAccess = System.currentTimeMillis();
+            indexDirty = true;
+            hits.incrementAndGet();
+
+            return true;
+        }
+
+        if (entry != null) {
+            // removed behind our back
+            remove(name);
+        }
+
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that the image at the given URL has been written to {@link #getFile(String)},
+     * evicting older images if that takes us over {@link #maxBytes}.
+     *
+     * @param checksum
+     *            the CRC-32 of the image's bytes
+     */
+    public synchronized void added(String imageUrl, long checksum) {
+        String name = computeFileName(imageUrl);
+        File file = new File(cacheDirectory, name);
+
+        remove(name);
+
+        Entry entry = new Entry(name, file.length(), System.currentTimeMillis());
+        entry.checksum = checksum;
+        entries.put(name, entry);
+        totalBytes += entry.size;
+        indexDirty = true;
+
+        evictIfNeeded();
+        saveIndexIfDue();
+    }
+
+    /**
+     * @return the CRC-32 of the cached image at the given URL, or null if it is not cached or was
+     *         cached before we kept checksums
+     */
+    public synchronized Long getChecksum(String imageUrl) {
+        Entry entry = entries.get(computeFileName(imageUrl));
+
+        return entry == null || entry.checksum == Entry.NO_CHECKSUM ? null : entry.checksum;
+    }
+
+    /**
+     * Stops the image at the given URL from being evicted until {@link #unpin(String)} is called
+     * as many times as this.
+     */
+    public synchronized void pin(String imageUrl) {
+        String name = computeFileName(imageUrl);
+        Integer count = pinCounts.get(name);
+
+        pinCounts.put(name, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Undoes one {@link #pin(String)}.
+     */
+    public synchronized void unpin(String imageUrl) {
+        String name = computeFileName(imageUrl);
+        Integer count = pinCounts.get(name);
+
+        if (count == null || count <= 1) {
+            pinCounts.remove(name);
+        } else {
+            pinCounts.put(name, count - 1);
+        }
+    }
+
+    // =========================================================================
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // =========================================================================
+
+    private void remove(String name) {
+        Entry entry = entries.remove(name);
+
+        if (entry != null) {
+            totalBytes -= entry.size;
+            indexDirty = true;
+        }
+    }
+
+    /**
+     * Deletes least recently used, unpinned images until we are within {@link #maxBytes}.
+     */
+    private void evictIfNeeded() {
+        Iterator<Entry> it = entries.values().iterator();
+
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+
+            if (pinCounts.containsKey(entry.name)) {
+                continue;
+            }
+
+            LOG.info("Evicting {} ({} bytes) from the image cache", entry.name, entry.size);
+
+            new File(cacheDirectory, entry.name).delete();
+            it.remove();
+            totalBytes -= entry.size;
+            indexDirty = true;
+            evictions.incrementAndGet();
+        }
+
+        if (totalBytes > maxBytes) {
+            LOG.warn("Image cache holds {} bytes, over its {} byte quota, as the rest are pinned",
+                    totalBytes, maxBytes);
+        }
+    }
+
+    // =========================================================================
+
+    /**
+     * Loads the index, dropping entries whose files have gone and adopting image files the index
+     * does not know about (e.g. written before the index existed).
+     */
+    private void loadIndex() {
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        File indexFile = new File(cacheDirectory, INDEX_FILE_NAME);
+
+        if (indexFile.exists()) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+                String line = null;
+
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+
+                    if (fields.length >= 3) {
+                        Entry entry = new Entry(fields[0], Long.parseLong(fields[1]),
+                                Long.parseLong(fields[2]));
+
+                        if (fields.length > 3) {
+                            entry.checksum = Long.parseLong(fields[3], 16);
+                        }
+
+                        loaded.put(fields[0], entry);
+                    }
+                }
+
+                reader.close();
+            } catch (Exception e) {
+                LOG.error("Could not read image cache index {}; rebuilding it", indexFile, e);
+                loaded.clear();
+            }
+        }
+
+        List<Entry> found = new ArrayList<Entry>();
+        File[] files = cacheDirectory.listFiles();
+
+        for (File file : files == null ? new File[0] : files) {
+            if (!file.isFile() || file.getName().startsWith(".")
+                    || file.getName().endsWith(PART_FILE_SUFFIX)) {
+                continue;
+            }
+
+            Entry entry = loaded.get(file.getName());
+
+            if (entry == null) {
+                entry = new Entry(file.getName(), file.length(), file.lastModified());
+            }
+
+            entry.size = file.length();
+            found.add(entry);
+        }
+
+        Collections.sort(found, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return e1.lastAccess < e2.lastAccess ? -1 : (e1.lastAccess == e2.lastAccess ? 0 : 1);
+            }
+        });
+
+        for (Entry entry : found) {
+            entries.put(entry.name, entry);
+            totalBytes += entry.size;
+        }
+
+        indexDirty = true;
+    }
+
+    private void saveIndexIfDue() {
+        if (System.currentTimeMillis() - lastIndexSave >= INDEX_SAVE_PERIOD_MS) {
+            saveIndex();
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file which then replaces the old index, so a crash never
+     * leaves a half-written index behind.
+     */
+    private void saveIndex() {
+        if (!indexDirty) {
+            return;
+        }
+
+        File indexFile = new File(cacheDirectory, INDEX_FILE_NAME);
+        File tempFile = new File(cacheDirectory, INDEX_FILE_NAME + ".tmp");
+
+        try {
+            FileWriter writer = new FileWriter(tempFile);
+
+            for (Entry entry : entries.values()) {
+                writer.write(entry.name + "\t" + entry.size + "\t" + entry.lastAccess);
+
+                if (entry.checksum != Entry.NO_CHECKSUM) {
+                    writer.write("\t" + Long.toHexString(entry.checksum));
+                }
+
+                writer.write("\n");
+            }
+
+            writer.close();
+
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Could not rename " + tempFile + " to " + indexFile);
+            }
+
+            indexDirty = false;
+            lastIndexSave = System.currentTimeMillis();
+        } catch (IOException e) {
+            LOG.error("Could not save image cache index {}", indexFile, e);
+        }
+    }
+
+    // =========================================================================
+
+    /**
+     * Given an image URL, computes the name used in the cache directory: the SHA-1 of the whole
+     * URL, followed by the file name isolated by stripping the leading protocol/port/path and the
+     * query parameter postfix (if any).
+     *
+     * @param imageUrl
+     *            the url to get the filename for
+     * @return the image file name
+     */
+    static String computeFileName(String imageUrl) {
+        String filePath = null;
+
+        try {
+            filePath = new URL(imageUrl).getPath();
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(
+                    "Malformed URL encountered while parsing file name from URL", e);
+        }
+
+        String fileName = new File(filePath).getName();
+
+        int queryIndex = fileName.indexOf('?');
+
+        if (queryIndex != -1) {
+            fileName = fileName.substring(0, queryIndex);
+        }
+
+        String hash = Hashing.sha1().hashString(imageUrl, Charsets.UTF_8).toString();
+
+        return (hash + "_" + fileName).toUpperCase();
+    }
+
+    // =========================================================================
+
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // =========================================================================
+
+    @Override
+    public synchronized String toString() {
+        return "ImageCache [entries=" + entries.size() + ", bytes=" + totalBytes + ", maxBytes="
+                + maxBytes + ", hits=" + hits.get() + ", misses=" + misses.get() + ", evictions="
+                + evictions.get() + "]";
+    }
+
+    /**
+     * What the index knows about one cached image.
+     */
+    private static class Entry {
+        /** CRC-32s are never negative, so this can't clash with a real one */
+        private static final long NO_CHECKSUM = -1;
+
+        private final String name;
+        private long size;
+        private long lastAccess;
+        private long checksum = NO_CHECKSUM;
+
+        Entry(String name, long size, long lastAccess) {
+            this.name = name;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
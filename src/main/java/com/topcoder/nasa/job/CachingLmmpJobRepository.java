@@ -0,0 +1,180 @@
+package com.topcoder.nasa.job;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Read-through/write-through cache in front of the {@link JdbcLmmpJobRepository}, so that the
+ * (frequent) status polls of the jobs this server is running are answered from memory.
+ * <p/>
+ * What is cached:
+ * <ul>
+ * <li>every job {@link #add(LmmpJob) added} or {@link #update(LmmpJob) updated} through this server
+ * - i.e. the very instance the workflow is working on, so it is always current</li>
+ * <li>jobs {@link #load(String) loaded} from the DB, but only once they are finished: a running job
+ * we don't own may be changed by another server at any time, so those are always read from the DB</li>
+ * </ul>
+ * Writes always go to the DB first, and are then announced through the {@link JobChangeNotifier}.
+ * An {@link OptimisticLockingFailureException} drops the cached job so that the next read sees what
+ * the DB has.
+ * <p/>
+ * Beyond {@link #maxEntries} jobs, the least recently used finished jobs are evicted. Running jobs
+ * are never evicted - they are this server's own, and the workflow is working on them - so the
+ * cache grows past the limit when that many jobs are running.
+ *
+ */
+@Repository
+@Primary
+public class CachingLmmpJobRepository implements LmmpJobRepository {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingLmmpJobRepository.class);
+
+    @Autowired
+    @Qualifier("jdbcLmmpJobRepository")
+    private LmmpJobRepository delegate;
+
+    @Autowired
+    private JobChangeNotifier jobChangeNotifier;
+
+    @Value("${job-cache.max-entries:10000}")
+    private int maxEntries;
+
+    /** The cached jobs by UUID, least recently used first. Guarded by itself. */
+    private Map<String, LmmpJob> jobs = new LinkedHashMap<String, LmmpJob>(16, 0.75f, true);
+
+    // =========================================================================
+
+    @Override
+    public void add(LmmpJob job) {
+        delegate.add(job);
+        cache(job);
+        jobChangeNotifier.changed(job);
+    }
+
+    @Override
+    public void addAll(List<LmmpJob> newJobs) {
+        delegate.addAll(newJobs);
+
+        for (LmmpJob job : newJobs) {
+            cache(job);
+            jobChangeNotifier.changed(job);
+        }
+    }
+
+    @Override
+    public void update(LmmpJob job) {
+        try {
+            delegate.update(job);
+        } catch (OptimisticLockingFailureException e) {
+            evict(job.getUuid());
+            throw e;
+        }
+
+        cache(job);
+        jobChangeNotifier.changed(job);
+    }
+
+    @Override
+    public LmmpJob load(String uuid) {
+        synchronized (jobs) {
+            LmmpJob job = jobs.get(uuid);
+
+            if (job != null) {
+                return job;
+            }
+        }
+
+        LmmpJob job = delegate.load(uuid);
+
+        if (job != null && job.isFinished()) {
+            cache(job);
+        }
+
+        return job;
+    }
+
+    /**
+     * Always asks the DB - the job may have been completed on another server.
+     */
+    @Override
+    public LmmpJob findCompletedByResultKey(String resultKey) {
+        LmmpJob job = delegate.findCompletedByResultKey(resultKey);
+
+        if (job != null) {
+            cache(job);
+        }
+
+        return job;
+    }
+
+    /**
+     * Always asks the DB, but hands back the cached instances of the jobs we own.
+     */
+    @Override
+    public List<LmmpJob> findRunningJobs() {
+        List<LmmpJob> runningJobs = new ArrayList<LmmpJob>();
+
+        // query first: the cache isn't locked for the DB round trip
+        List<LmmpJob> storedJobs = delegate.findRunningJobs();
+
+        synchronized (jobs) {
+            for (LmmpJob job : storedJobs) {
+                LmmpJob cached = jobs.get(job.getUuid());
+
+                runningJobs.add(cached != null ? cached : job);
+            }
+        }
+
+        return runningJobs;
+    }
+
+    // =========================================================================
+
+    private void cache(LmmpJob job) {
+        synchronized (jobs) {
+            LmmpJob cached = jobs.get(job.getUuid());
+
+            // keep the newer of the two, should a stale copy turn up
+            if (cached == null || cached == job || cached.getVersion() < job.getVersion()) {
+                jobs.put(job.getUuid(), job);
+            }
+
+            if (jobs.size() > maxEntries) {
+                evictOverflow();
+            }
+        }
+    }
+
+    private void evict(String uuid) {
+        synchronized (jobs) {
+            jobs.remove(uuid);
+        }
+    }
+
+    /**
+     * Guarded by {@link #jobs}.
+     */
+    private void evictOverflow() {
+        for (Iterator<LmmpJob> i = jobs.values().iterator(); i.hasNext() && jobs.size() > maxEntries;) {
+            if (i.next().isFinished()) {
+                i.remove();
+            }
+        }
+
+        if (jobs.size() > maxEntries) {
+            LOG.debug("Job cache holds {} jobs, over its {} limit, as they are all running",
+                    jobs.size(), maxEntries);
+        }
+    }
+}
@@ -17,6 +17,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCallback;
 import org.springframework.jdbc.core.PreparedStatementCreator;
@@ -25,9 +27,12 @@ import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.base.Joiner;
+import com.topcoder.nasa.job.LmmpJob.PhaseTransition;
 import com.topcoder.nasa.job.LmmpJob.Status;
 
-// CREATE TABLE Job (uuid char(36) primary key, status varchar(20), hadoop_job_id varchar(100), fail_reason varchar(200), output_format varchar(10));
+// CREATE TABLE Job (uuid char(36) primary key, status varchar(20), hadoop_job_id varchar(100), fail_reason varchar(200), output_format varchar(100), created_at datetime, updated_at datetime, version int not null default 0, result_key char(64), result_uuid char(36), index job_status (status), index job_result_key (result_key));
+// CREATE TABLE JobStatusHistory (id bigint auto_increment primary key, uuid char(36) not null, status varchar(20), phase varchar(20), entered_at bigint not null, index (uuid));
 
 /**
  * Plain JDBC implementation of a {@link LmmpJobRepository}. </p>Note that this repository takes
@@ -43,6 +48,15 @@ import com.topcoder.nasa.job.LmmpJob.Status;
  * casual observers in the DB won't see the change while the server is down, but it has been deemed
  * an acceptable solution for this challenge</li>
  * </ul>
+ * Each job's {@link PhaseTransition}s are appended to the JobStatusHistory table as they happen
+ * (on {@link #add(LmmpJob)}, {@link #addAll(List)} and {@link #update(LmmpJob)}) and loaded back with the job. The phases
+ * that end along the way are fed to the {@link PhaseLatencyHistograms}.
+ * <p/>
+ * A job's output formats go into the output_format column, comma separated.
+ * <p/>
+ * Updates are optimistic: each row carries a version, bumped on every update, and an update of a
+ * job loaded at an older version fails with an {@link OptimisticLockingFailureException} rather
+ * than overwriting what was saved in the meantime.
  */
 @Repository
 public class JdbcLmmpJobRepository implements LmmpJobRepository {
@@ -52,13 +66,21 @@ public class JdbcLmmpJobRepository implements LmmpJobRepository {
     @Qualifier("lmmpJdbcTemplate")
     private JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private PhaseLatencyHistograms phaseLatencyHistograms;
+
     // =========================================================================
 
-    private static final String ADD_SQL = "INSERT INTO Job (uuid, status, hadoop_job_id, fail_reason, output_format) VALUES (?,?,?,?,?)";
-    private static final String UPDATE_SQL = "UPDATE Job SET status = ?, hadoop_job_id = ?, fail_reason = ?, output_format = ? WHERE uuid = ?";
-    private static final String LOAD_SQL = "SELECT uuid, status, hadoop_job_id, fail_reason, output_format FROM Job WHERE uuid = ?";
-    private static final String LOAD_RUNNING_HADOOP_JOBS_SQL = "SELECT uuid, status, hadoop_job_id, fail_reason, output_format FROM Job WHERE status = 'RUNNING_HADOOP'";
-    private static final String LOAD_RUNNING_JOBS_SQL = "SELECT uuid, status, hadoop_job_id, fail_reason, output_format FROM Job WHERE status IN ('RUNNING_ODE', 'RUNNING_HADOOP', 'RUNNING_EXECUTABLES')";
+    private static final String ADD_SQL = "INSERT INTO Job (uuid, status, hadoop_job_id, fail_reason, output_format, result_key, result_uuid, created_at, updated_at) VALUES (?,?,?,?,?,?,?,NOW(),NOW())";
+    private static final String UPDATE_SQL = "UPDATE Job SET status = ?, hadoop_job_id = ?, fail_reason = ?, output_format = ?, result_key = ?, result_uuid = ?, updated_at = NOW(), version = version + 1 WHERE uuid = ? AND version = ?";
+    private static final String LOAD_SQL = "SELECT uuid, status, hadoop_job_id, fail_reason, output_format, version, result_key, result_uuid FROM Job WHERE uuid = ?";
+    private static final String LOAD_COMPLETED_BY_RESULT_KEY_SQL = "SELECT uuid, status, hadoop_job_id, fail_reason, output_format, version, result_key, result_uuid FROM Job WHERE result_key = ? AND status = 'COMPLETED' LIMIT 1";
+    private static final String ADD_HISTORY_SQL = "INSERT INTO JobStatusHistory (uuid, status, phase, entered_at) VALUES (?,?,?,?)";
+    private static final String LOAD_HISTORY_SQL = "SELECT status, phase, entered_at FROM JobStatusHistory WHERE uuid = ? ORDER BY id";
+    private static final String LOAD_RUNNING_JOBS_SQL = "SELECT uuid, status, hadoop_job_id, fail_reason, output_format, version, result_key, result_uuid FROM Job WHERE status IN ('RUNNING_PDS_API', 'RUNNING_HADOOP', 'RUNNING_EXECUTABLES')";
+
+    /** A job's output formats are stored comma separated. */
+    private static final Joiner OUTPUT_FORMAT_JOINER = Joiner.on(',');
 
     // =========================================================================
 
@@ -69,6 +91,15 @@ public class JdbcLmmpJobRepository implements LmmpJobRepository {
         }
     };
 
+    /** Maps a row from the JobStatusHistory ResultSet to a PhaseTransition. */
+    static RowMapper<PhaseTransition> PHASE_TRANSITION_ROW_MAPPER = new RowMapper<PhaseTransition>() {
+        public PhaseTransition mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return new PhaseTransition(Status.valueOf(rs.getString(1)), // status
+                    JobPhase.valueOf(rs.getString(2)), // phase
+                    rs.getLong(3)); // entered_at
+        }
+    };
+
     // =========================================================================
 
     @Override
@@ -80,11 +111,7 @@ public class JdbcLmmpJobRepository implements LmmpJobRepository {
         }, new PreparedStatementCallback<LmmpJob>() {
             public LmmpJob doInPreparedStatement(PreparedStatement ps) throws SQLException,
                     DataAccessException {
-                ps.setString(1, job.getUuid());
-                ps.setString(2, job.getStatus().name());
-                ps.setString(3, job.getHadoopJobId());
-                ps.setString(4, job.getFailInfo());
-                ps.setString(5, job.getOutputFormat());
+                setAddValues(ps, job);
 
                 ps.execute();
 
@@ -92,28 +119,125 @@ public class JdbcLmmpJobRepository implements LmmpJobRepository {
             }
         });
 
+        addNewTransitions(job);
     }
 
+    /**
+     * One batch of inserts into the Job table, and one into JobStatusHistory.
+     */
     @Override
-    public void update(final LmmpJob job) {
-        jdbcTemplate.execute(new PreparedStatementCreator() {
-            public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
-                return con.prepareStatement(UPDATE_SQL);
+    public void addAll(final List<LmmpJob> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        jdbcTemplate.batchUpdate(ADD_SQL, new BatchPreparedStatementSetter() {
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                setAddValues(ps, jobs.get(i));
             }
-        }, new PreparedStatementCallback<LmmpJob>() {
-            public LmmpJob doInPreparedStatement(PreparedStatement ps) throws SQLException,
-                    DataAccessException {
-                ps.setString(1, job.getStatus().name());
-                ps.setString(2, job.getHadoopJobId());
-                ps.setString(3, job.getFailInfo());
-                ps.setString(4, job.getOutputFormat());
-                ps.setString(5, job.getUuid());
 
-                ps.execute();
+            public int getBatchSize() {
+                return jobs.size();
+            }
+        });
 
-                return null;
+        // the jobs are new, so nobody else is touching their transitions yet
+        final List<String> uuids = new ArrayList<String>();
+        final List<PhaseTransition> newTransitions = new ArrayList<PhaseTransition>();
+        List<List<PhaseTransition>> transitionsByJob = new ArrayList<List<PhaseTransition>>();
+
+        for (LmmpJob job : jobs) {
+            List<PhaseTransition> transitions = job.getPhaseTransitions();
+
+            for (PhaseTransition transition : transitions.subList(
+                    job.getPersistedTransitionCount(), transitions.size())) {
+                uuids.add(job.getUuid());
+                newTransitions.add(transition);
+            }
+
+            transitionsByJob.add(transitions);
+        }
+
+        jdbcTemplate.batchUpdate(ADD_HISTORY_SQL, new BatchPreparedStatementSetter() {
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                setHistoryValues(ps, uuids.get(i), newTransitions.get(i));
+            }
+
+            public int getBatchSize() {
+                return newTransitions.size();
             }
         });
+
+        for (int i = 0; i < jobs.size(); i++) {
+            LmmpJob job = jobs.get(i);
+            List<PhaseTransition> transitions = transitionsByJob.get(i);
+
+            phaseLatencyHistograms.record(transitions, job.getPersistedTransitionCount());
+            job.setPersistedTransitionCount(transitions.size());
+        }
+    }
+
+    @Override
+    public void update(final LmmpJob job) {
+        // the workflow's callbacks share one instance: one save of it at a time, so they don't trip
+        // over each other's versions. The job itself is only locked to snapshot it and to bump its
+        // version, so its readers (e.g. status polls) never wait for the DB.
+        synchronized (job.getSaveLock()) {
+            final String status;
+            final String hadoopJobId;
+            final String failInfo;
+            final String outputFormats;
+            final String resultKey;
+            final String resultUuid;
+            final int version;
+
+            synchronized (job) {
+                status = job.getStatus().name();
+                hadoopJobId = job.getHadoopJobId();
+                failInfo = job.getFailInfo();
+                outputFormats = OUTPUT_FORMAT_JOINER.join(job.getOutputFormats());
+                resultKey = job.getResultKey();
+                resultUuid = job.getResultUuid();
+                version = job.getVersion();
+            }
+
+            int rows = jdbcTemplate.execute(new PreparedStatementCreator() {
+                public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                    return con.prepareStatement(UPDATE_SQL);
+                }
+            }, new PreparedStatementCallback<Integer>() {
+                public Integer doInPreparedStatement(PreparedStatement ps) throws SQLException,
+                        DataAccessException {
+                    ps.setString(1, status);
+                    ps.setString(2, hadoopJobId);
+                    ps.setString(3, failInfo);
+                    ps.setString(4, outputFormats);
+                    ps.setString(5, resultKey);
+                    ps.setString(6, resultUuid);
+                    ps.setString(7, job.getUuid());
+                    ps.setInt(8, version);
+
+                    return ps.executeUpdate();
+                }
+            });
+
+            if (rows == 0) {
+                throw new OptimisticLockingFailureException("Job " + job.getUuid()
+                        + " is missing or was updated since version " + version);
+            }
+
+            synchronized (job) {
+                if (job.getVersion() != version) {
+                    throw new OptimisticLockingFailureException("Job " + job.getUuid()
+                            + " changed version from " + version + " to " + job.getVersion()
+                            + " while being saved");
+                }
+
+                job.setVersion(version + 1);
+            }
+
+            addNewTransitions(job);
+        }
     }
 
     @Override
@@ -121,21 +245,98 @@ public class JdbcLmmpJobRepository implements LmmpJobRepository {
         LOG.debug("Loading uuid {}", uuid);
 
         try {
-            return jdbcTemplate
-                    .queryForObject(LOAD_SQL, new Object[] { uuid }, LMMP_JOB_ROW_MAPPER);
+            return loadTransitions(jdbcTemplate.queryForObject(LOAD_SQL, new Object[] { uuid },
+                    LMMP_JOB_ROW_MAPPER));
         } catch (EmptyResultDataAccessException e) {
             return null;
         }
     }
 
     @Override
-    public List<LmmpJob> findRunningHadoopJobs() {
-        return jdbcTemplate.query(LOAD_RUNNING_HADOOP_JOBS_SQL, LMMP_JOB_ROW_MAPPER);
+    public LmmpJob findCompletedByResultKey(String resultKey) {
+        List<LmmpJob> jobs = jdbcTemplate.query(LOAD_COMPLETED_BY_RESULT_KEY_SQL,
+                new Object[] { resultKey }, LMMP_JOB_ROW_MAPPER);
+
+        return jobs.isEmpty() ? null : loadTransitions(jobs.get(0));
     }
 
     @Override
     public List<LmmpJob> findRunningJobs() {
-        return jdbcTemplate.query(LOAD_RUNNING_JOBS_SQL, LMMP_JOB_ROW_MAPPER);
+        return loadTransitions(jdbcTemplate.query(LOAD_RUNNING_JOBS_SQL, LMMP_JOB_ROW_MAPPER));
+    }
+
+    // =========================================================================
+
+    /**
+     * Stores the job's transitions that haven't been stored yet, and records the phases they
+     * ended.
+     */
+    private void addNewTransitions(LmmpJob job) {
+        final String uuid = job.getUuid();
+
+        // like update(), the job is only locked for its transitions, not for the insert
+        synchronized (job.getSaveLock()) {
+            List<PhaseTransition> transitions;
+            int firstNew;
+
+            synchronized (job) {
+                transitions = job.getPhaseTransitions();
+                firstNew = job.getPersistedTransitionCount();
+            }
+
+            if (firstNew >= transitions.size()) {
+                return;
+            }
+
+            final List<PhaseTransition> newTransitions = transitions.subList(firstNew,
+                    transitions.size());
+
+            jdbcTemplate.batchUpdate(ADD_HISTORY_SQL, new BatchPreparedStatementSetter() {
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    setHistoryValues(ps, uuid, newTransitions.get(i));
+                }
+
+                public int getBatchSize() {
+                    return newTransitions.size();
+                }
+            });
+
+            job.setPersistedTransitionCount(transitions.size());
+            phaseLatencyHistograms.record(transitions, firstNew);
+        }
+    }
+
+    private static void setAddValues(PreparedStatement ps, LmmpJob job) throws SQLException {
+        ps.setString(1, job.getUuid());
+        ps.setString(2, job.getStatus().name());
+        ps.setString(3, job.getHadoopJobId());
+        ps.setString(4, job.getFailInfo());
+        ps.setString(5, OUTPUT_FORMAT_JOINER.join(job.getOutputFormats()));
+        ps.setString(6, job.getResultKey());
+        ps.setString(7, job.getResultUuid());
+    }
+
+    private static void setHistoryValues(PreparedStatement ps, String uuid,
+            PhaseTransition transition) throws SQLException {
+        ps.setString(1, uuid);
+        ps.setString(2, transition.getStatus().name());
+        ps.setString(3, transition.getPhase().name());
+        ps.setLong(4, transition.getEnteredAt());
+    }
+
+    private List<LmmpJob> loadTransitions(List<LmmpJob> jobs) {
+        for (LmmpJob job : jobs) {
+            loadTransitions(job);
+        }
+
+        return jobs;
+    }
+
+    private LmmpJob loadTransitions(LmmpJob job) {
+        job.setPhaseTransitions(jdbcTemplate.query(LOAD_HISTORY_SQL,
+                new Object[] { job.getUuid() }, PHASE_TRANSITION_ROW_MAPPER));
+
+        return job;
     }
 
     /**
@@ -148,11 +349,17 @@ public class JdbcLmmpJobRepository implements LmmpJobRepository {
      *             if something went wrong during the parse
      */
     private static LmmpJob createLmmpJobFromRow(ResultSet rs) throws SQLException {
-        return new LmmpJob(rs.getString(1), // uuid
+        LmmpJob job = new LmmpJob(rs.getString(1), // uuid
                 rs.getString(2), // status
                 rs.getString(3), // haoop_job_id
                 rs.getString(4), // fail_reason
                 rs.getString(5)); // output_format
+
+        job.setVersion(rs.getInt(6)); // version
+        job.setResultKey(rs.getString(7)); // result_key
+        job.setResultUuid(rs.getString(8)); // result_uuid
+
+        return job;
     }
 
     // =========================================================================
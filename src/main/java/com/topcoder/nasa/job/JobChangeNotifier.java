@@ -0,0 +1,126 @@
+package com.topcoder.nasa.job;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Lets threads wait for a job to change, rather than polling the repository in a loop. The
+ * {@link CachingLmmpJobRepository} calls {@link #changed(LmmpJob)} whenever it adds or updates a
+ * job (which is also how each {@link LmmpJob.PhaseTransition} gets saved).
+ * <p/>
+ * To wait for a job, {@link #watch(String) watch} it, take the {@link Watch#getChangeCount()}
+ * <b>before</b> looking at the job, then {@link Watch#awaitChange(long, long)} from that count - and
+ * {@link Watch#close()} the watch when done. A change wakes only the watchers of that job, and jobs
+ * nobody watches cost nothing.
+ * <p/>
+ * Only changes made on this server are seen, so waiters should re-check every so often anyway for
+ * jobs some other server is running.
+ *
+ */
+@Component
+public class JobChangeNotifier {
+    /** The watched jobs, by UUID. Guarded by itself. */
+    private Map<String, Watched> watchedJobs = new HashMap<String, Watched>();
+
+    // =========================================================================
+
+    public Watch watch(String uuid) {
+        synchronized (watchedJobs) {
+            Watched watched = watchedJobs.get(uuid);
+
+            if (watched == null) {
+                watched = new Watched();
+                watchedJobs.put(uuid, watched);
+            }
+
+            watched.watchCount++;
+
+            return new Watch(uuid, watched);
+        }
+    }
+
+    public void changed(LmmpJob job) {
+        Watched watched;
+
+        synchronized (watchedJobs) {
+            watched = watchedJobs.get(job.getUuid());
+        }
+
+        if (watched != null) {
+            synchronized (watched) {
+                watched.changeCount++;
+                watched.notifyAll();
+            }
+        }
+    }
+
+    private void unwatch(String uuid, Watched watched) {
+        synchronized (watchedJobs) {
+            if (--watched.watchCount == 0) {
+                watchedJobs.remove(uuid);
+            }
+        }
+    }
+
+    // =========================================================================
+
+    /**
+     * A job somebody watches.
+     */
+    private static class Watched {
+        /** Guarded by {@link JobChangeNotifier#watchedJobs}. */
+        private int watchCount;
+
+        /** How many changes there have been since the job was first watched. Guarded by this. */
+        private long changeCount;
+    }
+
+    /**
+     * One watcher's interest in a job.
+     */
+    public class Watch {
+        private final String uuid;
+        private final Watched watched;
+        private boolean closed;
+
+        Watch(String uuid, Watched watched) {
+            this.uuid = uuid;
+            this.watched = watched;
+        }
+
+        public long getChangeCount() {
+            synchronized (watched) {
+                return watched.changeCount;
+            }
+        }
+
+        /**
+         * Waits until there's been a change to the job since <code>seenChangeCount</code>, or the
+         * time is up.
+         *
+         * @return the change count now
+         */
+        public long awaitChange(long seenChangeCount, long maxMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + maxMillis;
+            long remaining = maxMillis;
+
+            synchronized (watched) {
+                while (watched.changeCount == seenChangeCount && remaining > 0) {
+                    watched.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+
+                return watched.changeCount;
+            }
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unwatch(uuid, watched);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.topcoder.nasa.job;
+
+/**
+ * The phases an {@link LmmpJob} goes through, in order. These are finer grained than its
+ * {@link LmmpJob.Status}: e.g. {@link LmmpJob.Status#RUNNING_EXECUTABLES} covers
+ * {@link #GDALBUILDVRT}, {@link #GDAL_TRANSLATE} and {@link #S3_UPLOAD}.
+ * <p/>
+ * Images start downloading while PDS is still being queried, so {@link #DOWNLOAD} only covers the
+ * wait for the downloads still running once the query is done (plus linking them into the job's
+ * workspace).
+ *
+ */
+public enum JobPhase {
+    /** Waiting for a workflow slot */
+    QUEUED,
+
+    PDS_QUERY,
+
+    DOWNLOAD,
+
+    /** Waiting for another job that is producing the very same result - see {@link ResultIndex} */
+    AWAITING_RESULT,
+
+    /** Preparing HDFS and running the Hadoop job */
+    HADOOP,
+
+    GDALBUILDVRT,
+
+    GDAL_TRANSLATE,
+
+    S3_UPLOAD,
+
+    /** Completed, failed or killed - see the job's status */
+    FINISHED;
+
+    public String displayName() {
+        return name().toLowerCase();
+    }
+}
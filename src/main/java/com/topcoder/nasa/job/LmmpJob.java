@@ -1,20 +1,25 @@
 package com.topcoder.nasa.job;
 
 import java.io.File;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Defines a "job" that is created when a generation request is submitted successfully.
+ * <p/>
+ * The workflow threads change a job while /status reads it, so all of its state is guarded by the
+ * job itself: lock the job to read several properties as of the same moment.
+ * <p/>
+ * Every change of {@link Status} or {@link JobPhase} is recorded as a time-stamped
+ * {@link PhaseTransition}, from which {@link #getPhaseMillis()} works out how long each phase took.
  *
  */
 public class LmmpJob {
@@ -43,6 +48,10 @@ public class LmmpJob {
     private static final String MOSAIC_FILE = FINAL_PATH + "/mosaic.";
     private static final String VRT_FILE = FINAL_PATH + "/mosaic.vrt";
 
+    /** Where this job's part file and output live in HDFS */
+    private static final String HDFS_INPUT_PATH = "/url/{uuid}";
+    private static final String HDFS_OUTPUT_PATH = "/output/{uuid}";
+
     /** The default output format to use - geotiff. */
     private static final String DEFAULT_OUTPUT_FORMAT = "gtiff";
 
@@ -58,8 +67,29 @@ public class LmmpJob {
     /** The Hadoop Job ID for this job */
     private String hadoopJobId;
 
-    /** The output format to pass to gdal_translate for this job. */
-    private String outputFormat;
+    /** The output formats to pass to gdal_translate for this job, the primary one first. */
+    private List<String> outputFormats = new ArrayList<String>();
+
+    /** Identifies the job's result: the same images in the same format - see {@link ResultIndex}. */
+    private String resultKey;
+
+    /** The UUID of the job that produced this job's result, if not this job itself. */
+    private String resultUuid;
+
+    /** Every status/phase change so far, oldest first. */
+    private List<PhaseTransition> phaseTransitions = new ArrayList<PhaseTransition>();
+
+    /** How many of the {@link #phaseTransitions} the repository has already stored. */
+    private int persistedTransitionCount;
+
+    /** The version of the stored row this instance was loaded from/last saved as. */
+    private int version;
+
+    /**
+     * Held while the repository saves the job, so that saves of this instance happen one at a time
+     * without the job itself being locked for the DB round trip.
+     */
+    private final Object saveLock = new Object();
 
     // =========================================================================
 
@@ -71,6 +101,8 @@ public class LmmpJob {
         this.uuid = UUID.randomUUID().toString();
         this.status = Status.RUNNING_PDS_API;
 
+        enterPhase(JobPhase.QUEUED);
+
         LOG.info("Created new Job with uuid {}", uuid);
     }
 
@@ -82,6 +114,8 @@ public class LmmpJob {
      * @param statusStr
      *            string representation of this Job's {@link Status}
      * @param failInfo
+     * @param outputFormat
+     *            the output formats, comma separated
      */
     public LmmpJob(String uuid, String statusStr, String hadoopJobId, String failInfo,
             String outputFormat) {
@@ -89,7 +123,10 @@ public class LmmpJob {
         this.uuid = uuid;
         this.hadoopJobId = hadoopJobId;
         this.failInfo = failInfo;
-        this.outputFormat = outputFormat;
+
+        if (outputFormat != null) {
+            setOutputFormats(Arrays.asList(outputFormat.split(",")));
+        }
 
         LOG.debug("Loaded Job with uuid {}, status {} and hadoopJobId {}", uuid, status,
                 hadoopJobId);
@@ -101,29 +138,158 @@ public class LmmpJob {
         return uuid;
     }
 
-    public Status getStatus() {
+    public synchronized Status getStatus() {
         return status;
     }
 
-    public void markAsRunningExecutables() {
+    public synchronized void markAsRunningExecutables() {
         status = Status.RUNNING_EXECUTABLES;
+        recordTransition(getPhase());
     }
 
-    public void failed(String failInfo) {
+    public synchronized void failed(String failInfo) {
         this.failInfo = failInfo;
         status = Status.FAILED;
+        recordTransition(JobPhase.FINISHED);
     }
 
-    public String getFailInfo() {
+    public synchronized String getFailInfo() {
         return failInfo;
     }
 
-    public void completed() {
+    public synchronized void completed() {
         status = Status.COMPLETED;
+        recordTransition(JobPhase.FINISHED);
     }
 
-    public void killed() {
+    public synchronized void killed() {
         status = Status.KILLED;
+        recordTransition(JobPhase.FINISHED);
+    }
+
+    /**
+     * Records that the job has moved on to the given phase.
+     */
+    public synchronized void enterPhase(JobPhase phase) {
+        recordTransition(phase);
+    }
+
+    /**
+     * @return the phase the job is in, or null if we don't know (e.g. it predates phases)
+     */
+    public synchronized JobPhase getPhase() {
+        if (phaseTransitions.isEmpty()) {
+            return null;
+        }
+
+        return phaseTransitions.get(phaseTransitions.size() - 1).getPhase();
+    }
+
+    /**
+     * @return a copy of all the transitions so far, oldest first
+     */
+    public synchronized List<PhaseTransition> getPhaseTransitions() {
+        return new ArrayList<PhaseTransition>(phaseTransitions);
+    }
+
+    /**
+     * Used by the repository when loading the job.
+     */
+    public synchronized void setPhaseTransitions(List<PhaseTransition> phaseTransitions) {
+        this.phaseTransitions = new ArrayList<PhaseTransition>(phaseTransitions);
+        this.persistedTransitionCount = phaseTransitions.size();
+    }
+
+    public synchronized int getPersistedTransitionCount() {
+        return persistedTransitionCount;
+    }
+
+    public synchronized void setPersistedTransitionCount(int persistedTransitionCount) {
+        this.persistedTransitionCount = persistedTransitionCount;
+    }
+
+    Object getSaveLock() {
+        return saveLock;
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Used by the repository when loading/saving the job.
+     */
+    public synchronized void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return true if the job has failed, completed or been killed, i.e. it won't change any more
+     */
+    public synchronized boolean isFinished() {
+        return status == Status.FAILED || status == Status.COMPLETED || status == Status.KILLED;
+    }
+
+    /**
+     * Works out how long the job spent in each phase. The current phase, unless
+     * {@link JobPhase#FINISHED}, counts up to now.
+     * 
+     * @return milliseconds by phase, in the order the phases were entered
+     */
+    public synchronized Map<JobPhase, Long> getPhaseMillis() {
+        Map<JobPhase, Long> phaseMillis = new LinkedHashMap<JobPhase, Long>();
+
+        for (int i = 0; i < phaseTransitions.size(); i++) {
+            PhaseTransition transition = phaseTransitions.get(i);
+
+            if (transition.getPhase() == JobPhase.FINISHED) {
+                break;
+            }
+
+            long end = i + 1 < phaseTransitions.size() ? phaseTransitions.get(i + 1)
+                    .getEnteredAt() : System.currentTimeMillis();
+            Long soFar = phaseMillis.get(transition.getPhase());
+
+            phaseMillis.put(transition.getPhase(), (soFar == null ? 0 : soFar)
+                    + (end - transition.getEnteredAt()));
+        }
+
+        return phaseMillis;
+    }
+
+    /**
+     * @return the milliseconds from the first transition until the job finished (or now, if it
+     *         hasn't), or null if there are no transitions
+     */
+    public synchronized Long getTotalMillis() {
+        if (phaseTransitions.isEmpty()) {
+            return null;
+        }
+
+        long start = phaseTransitions.get(0).getEnteredAt();
+        long end = System.currentTimeMillis();
+
+        for (PhaseTransition transition : phaseTransitions) {
+            if (transition.getPhase() == JobPhase.FINISHED) {
+                end = transition.getEnteredAt();
+                break;
+            }
+        }
+
+        return end - start;
+    }
+
+    private synchronized void recordTransition(JobPhase phase) {
+        if (phase == null) {
+            return;
+        }
+
+        if (getPhase() == JobPhase.FINISHED) {
+            // e.g. failed while being killed - keep the first finish time
+            return;
+        }
+
+        phaseTransitions.add(new PhaseTransition(status, phase, System.currentTimeMillis()));
     }
 
     public File getFinalPath() {
@@ -138,7 +304,14 @@ public class LmmpJob {
         return new File(fileName);
     }
 
+    /**
+     * @return the output file in the primary output format
+     */
     public File getJobCompletedFile() {
+        return getJobCompletedFile(getOutputFormat());
+    }
+
+    public File getJobCompletedFile(String outputFormat) {
         String fileName = MOSAIC_FILE.replace("{uuid}", uuid);
 
         fileName = fileName + outputFormat;
@@ -146,33 +319,116 @@ public class LmmpJob {
         return new File(fileName);
     }
 
-    public String getHadoopJobId() {
+    public String getHdfsInputPath() {
+        return HDFS_INPUT_PATH.replace("{uuid}", uuid);
+    }
+
+    public String getHdfsOutputPath() {
+        return HDFS_OUTPUT_PATH.replace("{uuid}", uuid);
+    }
+
+    public synchronized String getHadoopJobId() {
         return hadoopJobId;
     }
 
-    public void setHadoopJobId(String hadoopJobId) {
+    public synchronized void setHadoopJobId(String hadoopJobId) {
         this.hadoopJobId = hadoopJobId;
         status = Status.RUNNING_HADOOP;
+        recordTransition(getPhase());
     }
 
+    /**
+     * @return the primary output format: the one of the {@link #getJobCompletedFile()} and its link
+     */
     public String getOutputFormat() {
-        if (outputFormat == null) {
-            outputFormat = DEFAULT_OUTPUT_FORMAT;
+        return getOutputFormats().get(0);
+    }
+
+    /**
+     * @return all the output formats, the primary one first
+     */
+    public synchronized List<String> getOutputFormats() {
+        if (outputFormats.isEmpty()) {
+            outputFormats.add(DEFAULT_OUTPUT_FORMAT);
         }
 
-        return outputFormat;
+        return new ArrayList<String>(outputFormats);
     }
 
     public void setOutputFormat(String outputFormat) {
-        this.outputFormat = outputFormat;
+        setOutputFormats(Collections.singletonList(outputFormat));
     }
 
     /**
-     * Map the {@link #outputFormat} to its file extension.
+     * Sets the output formats, the primary one first. Blanks and (case insensitive) duplicates are
+     * dropped; none at all means the default.
+     */
+    public synchronized void setOutputFormats(List<String> outputFormats) {
+        Map<String, String> formatsByLowerCase = new LinkedHashMap<String, String>();
+
+        for (String outputFormat : outputFormats) {
+            if (outputFormat != null && !outputFormat.trim().isEmpty()
+                    && !formatsByLowerCase.containsKey(outputFormat.trim().toLowerCase())) {
+                formatsByLowerCase.put(outputFormat.trim().toLowerCase(), outputFormat.trim());
+            }
+        }
+
+        this.outputFormats = new ArrayList<String>(formatsByLowerCase.values());
+    }
+
+    public synchronized String getResultKey() {
+        return resultKey;
+    }
+
+    public synchronized void setResultKey(String resultKey) {
+        this.resultKey = resultKey;
+    }
+
+    /**
+     * @return the UUID of the job whose output is this job's result: this job's own UUID unless it
+     *         {@link #reuseResultOf(LmmpJob) reuses} another's
+     */
+    public synchronized String getResultUuid() {
+        return resultUuid != null ? resultUuid : uuid;
+    }
+
+    /**
+     * Used by the repository when loading the job.
+     */
+    public synchronized void setResultUuid(String resultUuid) {
+        this.resultUuid = resultUuid;
+    }
+
+    /**
+     * Makes the output of the given (completed) job this job's result, rather than producing it
+     * all over again. The result key goes along with it: it may not be the one this job claimed,
+     * if the source ended up producing its result from fewer images.
+     */
+    public void reuseResultOf(LmmpJob source) {
+        // read the source before locking this job, so two jobs can't lock each other out
+        String sourceResultUuid = source.getResultUuid();
+        String sourceResultKey = source.getResultKey();
+        List<String> sourceOutputFormats = source.getOutputFormats();
+
+        synchronized (this) {
+            this.resultUuid = sourceResultUuid;
+            this.resultKey = sourceResultKey;
+            // same formats, but maybe spelled differently: use the source's, for the same file types
+            setOutputFormats(sourceOutputFormats);
+        }
+    }
+
+    /**
+     * Map the primary output format to its file extension.
      */
     public String getFileType() {
-        String outputFormat = getOutputFormat();
+        return getFileType(getOutputFormat());
+    }
 
+    /**
+     * Map an output format to its file extension.
+     */
+    public static String getFileType(String outputFormat) {
         if (outputFormat.toLowerCase().equals("gtiff")) {
             return "tiff";
         }
@@ -201,8 +457,40 @@ public class LmmpJob {
     // =========================================================================
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         return "LmmpJob [uuid=" + uuid + ", status=" + status + "]";
     }
 
+    // =========================================================================
+
+    /**
+     * The job's status and phase as of a point in time.
+     */
+    public static class PhaseTransition {
+        private final Status status;
+        private final JobPhase phase;
+        private final long enteredAt;
+
+        public PhaseTransition(Status status, JobPhase phase, long enteredAt) {
+            this.status = status;
+            this.phase = phase;
+            this.enteredAt = enteredAt;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public JobPhase getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return when the job entered this status/phase, in milliseconds since the epoch
+         */
+        public long getEnteredAt() {
+            return enteredAt;
+        }
+    }
+
 }
@@ -17,6 +17,14 @@ public interface LmmpJobRepository {
      */
     public void add(LmmpJob job);
 
+    /**
+     * Adds several new Jobs to the repository in one go.
+     * 
+     * @param jobs
+     *            the new Jobs to add
+     */
+    public void addAll(List<LmmpJob> jobs);
+
     /**
      * Updates an existing Job in the repository. Will update <b>all</b> properties - not just those
      * that are set in the instance provided.
@@ -35,11 +43,12 @@ public interface LmmpJobRepository {
     public LmmpJob load(String uuid);
 
     /**
-     * Finds all the jobs that have a persisted status of {@link Status#RUNNING_HADOOP}
+     * Finds a completed Job with the given {@link LmmpJob#getResultKey() result key}.
      * 
-     * @return the running jobs or an empty list if none
+     * @param resultKey
+     * @return a Job if found (any one, if there are several); null otherwise
      */
-    public List<LmmpJob> findRunningHadoopJobs();
+    public LmmpJob findCompletedByResultKey(String resultKey);
 
     /**
      * Finds all the jobs have have a persisted status of either {@link Status#RUNNING_PDS_API},
@@ -1,37 +1,46 @@
 package com.topcoder.nasa.job;
 
-import gov.nasa.pds.entities.EntityInfo;
-import gov.nasa.pds.entities.MapImage;
-import gov.nasa.pds.entities.Page;
-import gov.nasa.pds.entities.PagedResults;
 import gov.nasa.pds.entities.SearchCriteria;
 import gov.nasa.pds.services.DataSetProcessingException;
 import gov.nasa.pds.services.DataSetService;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.topcoder.nasa.file.S3FileUploader;
 import com.topcoder.nasa.image.FileSystemImagePreparer;
-import com.topcoder.nasa.image.ImageFetcherTask;
 import com.topcoder.nasa.job.binary.AggregateExeTask;
+import com.topcoder.nasa.job.binary.ExeTask;
 import com.topcoder.nasa.job.binary.ExeTaskCompletedListener;
 import com.topcoder.nasa.job.binary.ExeTask_gdal_translate;
 import com.topcoder.nasa.job.binary.ExeTask_gdalbuildvrt;
+import com.topcoder.nasa.job.binary.GdalTask_gdal_translate;
+import com.topcoder.nasa.job.binary.GdalTask_gdalbuildvrt;
+import com.topcoder.nasa.job.binary.GdalWorkers;
+import com.topcoder.nasa.job.binary.VrtBuilderExeTask;
+import com.topcoder.nasa.job.hadoop.HadoopEnvironmentPreparer;
 import com.topcoder.nasa.job.hadoop.HadoopJobCompletedListener;
-import com.topcoder.nasa.job.hadoop.HadoopRunningJobMonitor;
+import com.topcoder.nasa.job.hadoop.HadoopJobTracker;
 import com.topcoder.nasa.job.hadoop.HadoopWorkflow;
+import com.topcoder.nasa.job.http.ImageFetchBatch;
 import com.topcoder.nasa.job.http.ImageFetcher;
+import com.topcoder.nasa.job.pds.MapImagePathListener;
+import com.topcoder.nasa.job.pds.PdsServiceTask;
 import com.topcoder.nasa.rest.GenerateResource;
 
 /**
@@ -40,13 +49,15 @@ import com.topcoder.nasa.rest.GenerateResource;
  * <p/>
  * <ul>
  * <li>When the (singleton) instance is fully constracted, the {@link #init()} method is called to associate itself with
- * the {@link HadoopRunningJobMonitor}</li>
- * <li>When a request to {@link GenerateResource} comes in, we query ODE and ask it to tell us about all the images that
- * match the {@link OdeSearchCriteria} the client passed in</li>
- * <li>The ODE request takes a long time and may require pagination so we do this asynchronously - this is the job of
- * the {@link OdeServiceTask}</li>
- * <li>As ODE pages come back, we schedule the images that they refer to to be fetched into the image cache using the
- * {@link ImageFetcherTask}</li>
+ * the {@link HadoopJobTracker}</li>
+ * <li>When a request to {@link GenerateResource} comes in, we query PDS and ask it to tell us about all the images that
+ * match the {@link SearchCriteria} the client passed in</li>
+ * <li>The PDS request takes a long time and may require pagination so we do this asynchronously - this is the job of
+ * the {@link PdsServiceTask}</li>
+ * <li>As PDS pages come back, we schedule the images that they refer to to be fetched into the image cache using the
+ * {@link ImageFetcher}</li>
+ * <li>Once PDS has told us all the images, we check the {@link ResultIndex}: if the same images in the same format
+ * have been (or are being) made into a mosaic already, the job reuses that and we're done</li>
  * <li>Once all the images have been fetched into the image cache for a job, we use the {@link FileSystemImagePreparer}
  * to prepare the filesystem to start the Hadoop job</li>
  * <li>Then, we start the Hadoop job</li>
@@ -58,23 +69,55 @@ import com.topcoder.nasa.rest.GenerateResource;
  * <li>Once the {@link AggregateExeTask} tells us it has completed, we upload the file to S3</li>
  * <li>Then we're done</li>
  * </ul>
- * 
+ * <p/>
+ * Several jobs may run side by side. Each job holds one of {@link #maxConcurrentJobs} slots from the moment its
+ * workflow starts executing until it reaches a terminal state; jobs submitted while all slots are taken wait in the
+ * {@link #workflowExecutor} queue. Each job works in its own workspace - see
+ * {@link FileSystemImagePreparer#getPicDirectoryFor(LmmpJob)} and {@link LmmpJob#getHdfsInputPath()}.
  *
  */
 @Component
 public class LmmpJobWorkflow implements HadoopJobCompletedListener, ExeTaskCompletedListener {
     private static final Logger LOG = LoggerFactory.getLogger(LmmpJobWorkflow.class);
 
-    private static final int MAP_IMAGES_PER_PAGE = 100;
+    /** How many jobs may be in flight (PDS querying through to S3 upload) at the same time. */
+    @Value("${workflow.max-concurrent-jobs:4}")
+    private int maxConcurrentJobs;
+
+    /** "java" for the {@link VrtBuilderExeTask}, "gdalbuildvrt" for the gdalbuildvrt process. */
+    @Value("${workflow.vrt-builder:java}")
+    private String vrtBuilder;
+
+    /** "fork" to run the GDAL utilities as processes, "in-process" to call GDAL's Java bindings. */
+    @Value("${workflow.gdal-mode:fork}")
+    private String gdalMode;
+
+    @Value("${gdal.workers:2}")
+    private int gdalWorkerCount;
+
+    @Value("${gdal.cache-mb-per-job:256}")
+    private int gdalCacheMbPerJob;
+
+    @Value("${gdal.threads-per-job:1}")
+    private int gdalThreadsPerJob;
+
+    /** Only for the "in-process" {@link #gdalMode}. */
+    private GdalWorkers gdalWorkers;
 
     /** Allows {@link #startFor(LmmpJob, SearchCriteria)} to return immediately. */
-    private static final ExecutorService WORKFLOW_EXECUTION_THREADPOOL = Executors.newFixedThreadPool(1);
+    private ExecutorService workflowExecutor;
+
+    /** One permit per job that is allowed to be in flight. */
+    private Semaphore jobSlots;
+
+    /** UUIDs of the jobs currently holding one of the {@link #jobSlots}. */
+    private Set<String> slotHolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     @Autowired
     private LmmpJobRepository lmmpJobRepository;
 
     @Autowired
-    private HadoopRunningJobMonitor hadoopRunningJobMonitor;
+    private HadoopJobTracker hadoopJobTracker;
 
     @Autowired
     private S3FileUploader fileUploader;
@@ -86,67 +129,121 @@ public class LmmpJobWorkflow implements HadoopJobCompletedListener, ExeTaskCompl
     private HadoopWorkflow hadoopWorkflow;
 
     @Autowired
-    private DataSetService dataSetService;
+    private HadoopEnvironmentPreparer hadoopEnvironmentPreparer;
+
+    @Autowired
+    private PdsServiceTask pdsServiceTask;
 
     @Autowired
     private ImageFetcher imageFetcher;
 
+    @Autowired
+    private ResultIndex resultIndex;
+
     private AggregateExeTask exeTask;
 
     // =========================================================================
 
     /**
-     * Associate ourselves with the {@link HadoopRunningJobMonitor} and creates the {@link #exeTask} .
+     * Associate ourselves with the {@link HadoopJobTracker} and creates the {@link #exeTask} and the
+     * {@link #workflowExecutor}.
      */
     @PostConstruct
     public void init() {
+        LOG.info("Allowing up to {} concurrent jobs", maxConcurrentJobs);
+        workflowExecutor = Executors.newFixedThreadPool(maxConcurrentJobs);
+        jobSlots = new Semaphore(maxConcurrentJobs, true);
+
         LOG.info("Creating AggregateExeTask");
         exeTask = new AggregateExeTask();
 
-        exeTask.addExecutableJobProcessor(new ExeTask_gdalbuildvrt());
-        exeTask.addExecutableJobProcessor(new ExeTask_gdal_translate());
+        ExeTask gdalbuildvrt;
+        ExeTask gdalTranslate;
+
+        if ("fork".equals(gdalMode)) {
+            gdalbuildvrt = new ExeTask_gdalbuildvrt();
+            gdalTranslate = new ExeTask_gdal_translate();
+        } else if ("in-process".equals(gdalMode)) {
+            gdalWorkers = new GdalWorkers(gdalWorkerCount, gdalCacheMbPerJob, gdalThreadsPerJob);
+            gdalWorkers.init();
+
+            gdalbuildvrt = new GdalTask_gdalbuildvrt(gdalWorkers);
+            gdalTranslate = new GdalTask_gdal_translate(gdalWorkers);
+        } else {
+            throw new IllegalStateException("Unknown workflow.gdal-mode " + gdalMode
+                    + " (should be fork or in-process)");
+        }
+
+        if ("gdalbuildvrt".equals(vrtBuilder)) {
+            exeTask.addExecutableJobProcessor(gdalbuildvrt);
+        } else if ("java".equals(vrtBuilder)) {
+            exeTask.addExecutableJobProcessor(new VrtBuilderExeTask(gdalbuildvrt));
+        } else {
+            throw new IllegalStateException("Unknown workflow.vrt-builder " + vrtBuilder
+                    + " (should be java or gdalbuildvrt)");
+        }
+
+        exeTask.addExecutableJobProcessor(gdalTranslate);
 
         exeTask.setRunCompleteListener(this);
 
-        LOG.info("Setting myself as the HadoopRunningJobMonitor callback!");
-        hadoopRunningJobMonitor.setHadoopJobCompletedListener(this);
+        LOG.info("Setting myself as the HadoopJobTracker callback!");
+        hadoopJobTracker.setHadoopJobCompletedListener(this);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        LOG.info("Shutting down workflow executor");
+        workflowExecutor.shutdownNow();
+
+        if (gdalWorkers != null) {
+            gdalWorkers.shutdown();
+        }
     }
 
     // =========================================================================
 
     /**
-     * Start the workflow for a new job.
+     * Start the workflow for a new job. Returns immediately; the job waits in the queue until one of the
+     * {@link #jobSlots} is free.
      * 
      * @param job
      *            the job to start the workflow for
      * @param searchCriteria
      *            the search criteria we should pass to PDS for image retrieval
-     * @throws IllegalStateException
-     *             if an {@link LmmpJob} is already currently running
      */
     public void startFor(final LmmpJob job, final SearchCriteria searchCriteria) {
-        List<LmmpJob> currentlyRunningJobs = lmmpJobRepository.findRunningJobs();
-        if (!currentlyRunningJobs.isEmpty()) {
-            throw new IllegalStateException("Cannot run more than one job. Currently running: " + currentlyRunningJobs);
-        }
-
-        WORKFLOW_EXECUTION_THREADPOOL.submit(new Runnable() {
+        workflowExecutor.submit(new Runnable() {
             public void run() {
                 try {
+                    acquireSlot(job);
+                } catch (InterruptedException e) {
+                    LOG.info("Interrupted while job id {} was waiting for a slot", job.getUuid());
+
+                    job.killed();
+                    lmmpJobRepository.update(job);
+                    return;
+                }
+
+                try {
+                    job.enterPhase(JobPhase.PDS_QUERY);
+                    lmmpJobRepository.update(job);
+
                     doStartFor(job, searchCriteria);
-                } catch (DataSetProcessingException e) {
+                } catch (Exception e) {
                     LOG.error("Exception thrown while processing job id {}", job.getUuid(), e);
 
                     job.failed(e.getMessage());
-                    lmmpJobRepository.update(job);
+                    cleanUpAfterFailure(job);
+                    finish(job);
                 }
             }
         });
     }
 
     /**
-     * Synchronously executes the first "part" of an LMMP job workflow: the {@link DataSetService} querying and the
-     * Hadoop scheduling.
+     * Synchronously executes the first "part" of an LMMP job workflow: the {@link DataSetService} querying, which is
+     * pipelined into the image downloads, and the Hadoop scheduling.
      * 
      * @param job
      *            the job to start processing
@@ -154,75 +251,110 @@ public class LmmpJobWorkflow implements HadoopJobCompletedListener, ExeTaskCompl
      *            the search criteria of the map images of interest
      * @throws DataSetProcessingException
      *             if something went wrong finding the map images of interest
+     * @throws InterruptedException
+     *             if we were interrupted while waiting for the images to download
      */
-    private void doStartFor(final LmmpJob job, SearchCriteria searchCriteria) throws DataSetProcessingException {
+    private void doStartFor(final LmmpJob job, SearchCriteria searchCriteria) throws DataSetProcessingException,
+            InterruptedException {
         LOG.info("Computing which images to use for job id {}", job.getUuid());
-        List<String> allUrls = computeImagePaths(searchCriteria);
 
-        if (allUrls.isEmpty()) {
-            job.failed("No images for SearchCriteria");
-            lmmpJobRepository.update(job);
-            return;
-        }
+        // downloads start as soon as the first page of image paths comes back
+        final ImageFetchBatch imageFetchBatch = imageFetcher.newBatch();
 
-        List<File> allFiles = imageFetcher.fetchAll(allUrls);
+        try {
+            pdsServiceTask.findMapImagePaths(searchCriteria, new MapImagePathListener() {
+                public void onMapImagePaths(List<String> paths) {
+                    if (imageFetchBatch.isOverFailureBudget()) {
+                        // no point paging through the rest
+                        throw new IllegalStateException(failedImagesReason(imageFetchBatch));
+                    }
 
-        while (imageFetcher.isFetching()) {
-            try {
-                LOG.info("Waiting for images to download...");
-                Thread.sleep(1000);// completely arbitrary sleep time
-            } catch (InterruptedException e) {
-                // swallow
-            }
-        }
+                    imageFetcher.fetchInto(imageFetchBatch, paths);
+                }
+            });
 
-        LOG.info("Computing requisite images for job {}; starting to copy them...", job.getUuid());
-        fileSystemImagePreparer.prepare(allFiles);
+            imageFetchBatch.seal();
 
-        LOG.info("Images copied! Starting Hadoop job...");
-        hadoopWorkflow.executeFor(job);
+            job.enterPhase(JobPhase.DOWNLOAD);
+            lmmpJobRepository.update(job);
 
-        lmmpJobRepository.update(job);
-    }
+            if (imageFetchBatch.size() == 0) {
+                job.failed("No images for SearchCriteria");
+                finish(job);
+                return;
+            }
 
-    /**
-     * Uses our {@link #dataSetService} to find work out which {@link MapImage}s are of interest to the given
-     * {@link SearchCriteria}, and subsequently asks the {@link DataSetService} to fetch all the paths to those images.
-     * The image paths are the URLs we then need to download.
-     * 
-     * @param searchCriteria
-     *            the criteria that each MapImage must meet
-     * @return
-     * @throws DataSetProcessingException
-     *             if something went wrong fetching the data
-     */
-    private List<String> computeImagePaths(SearchCriteria searchCriteria) throws DataSetProcessingException {
-        int nextPage = 1;
+            job.setResultKey(ResultIndex.computeResultKey(imageFetchBatch.getUrls(), job.getOutputFormats()));
 
-        List<String> allUrls = new ArrayList<String>();
+            ResultIndex.Claim claim = resultIndex.claim(job);
 
-        while (true) {
-            LOG.info("Fetching page {} of MapImage EntityInfos for SearchCrtieria {}", nextPage,
-                    searchCriteria.toJSONString());
-            Page page = new Page(nextPage, MAP_IMAGES_PER_PAGE);
+            if (claim != ResultIndex.Claim.PRODUCING) {
+                // this job won't be producing anything: stop its downloads now, not when it's done with the database
+                imageFetcher.cancel(imageFetchBatch);
+            }
 
-            // get this page of identifiers (of MapImage entities) of interest
-            PagedResults<EntityInfo> results = dataSetService.searchMapImagesByCriteria(searchCriteria, page);
+            switch (claim) {
+            case COMPLETED:
+                job.completed();
+                finish(job);
+                return;
+            case FOLLOWING:
+                // the job producing the result finishes this one, too - see finish()
+                job.enterPhase(JobPhase.AWAITING_RESULT);
+                lmmpJobRepository.update(job);
+                releaseSlot(job);
+                return;
+            default:
+                break;
+            }
 
-            List<String> paths = dataSetService.getMapImagePaths(results.getResults());
+            LOG.info("Waiting for {} images of job {} to download...", imageFetchBatch.size(), job.getUuid());
+            imageFetchBatch.await();
 
-            for (String path : paths) {
-                allUrls.add(path);
+            if (imageFetchBatch.isOverFailureBudget()) {
+                // fail before Hadoop gets to run with missing input
+                LOG.error("Job {} failed as these images failed to download: {}", job.getUuid(),
+                        imageFetchBatch.getFailedUrls());
+
+                job.failed(failedImagesReason(imageFetchBatch));
+                finish(job);
+                return;
             }
 
-            if (results.getResults().size() != MAP_IMAGES_PER_PAGE) {
-                break;
+            if (!imageFetchBatch.getFailedUrls().isEmpty()) {
+                LOG.warn("Job {} is going ahead without {} images that failed to download: {}", job.getUuid(),
+                        imageFetchBatch.getFailedUrls().size(), imageFetchBatch.getFailedUrls());
+
+                // the result won't be that of all the images: key it by the ones it's made of, so that it is
+                // never reused for the full set
+                resultIndex.withdraw(job);
+                job.setResultKey(ResultIndex.computeResultKey(imageFetchBatch.getFetchedUrls(),
+                        job.getOutputFormats()));
             }
 
-            ++nextPage;
+            List<File> allFiles = imageFetchBatch.getFetchedFiles();
+
+            LOG.info("Computing requisite images for job {}; starting to copy them...", job.getUuid());
+            fileSystemImagePreparer.prepare(job, allFiles);
+        } finally {
+            // if we're leaving early (e.g. over the failure budget), the images still downloading are wanted no more
+            imageFetcher.cancel(imageFetchBatch);
+
+            // from here on the job's pic directory has its own links to the images
+            imageFetcher.release(imageFetchBatch);
+        }
+
+        LOG.info("Images copied! Starting Hadoop job...");
+        job.enterPhase(JobPhase.HADOOP);
+        hadoopWorkflow.executeFor(job);
+
+        if (job.getStatus() == LmmpJob.Status.FAILED) {
+            cleanUpAfterFailure(job);
+            finish(job);
+            return;
         }
 
-        return allUrls;
+        lmmpJobRepository.update(job);
     }
 
     // =========================================================================
@@ -234,13 +366,23 @@ public class LmmpJobWorkflow implements HadoopJobCompletedListener, ExeTaskCompl
     public void onTaskCompleted(LmmpJob lmmpJob) {
         LOG.info("Job UUID {} executables are completed -- uploading file!", lmmpJob.getUuid());
 
-        fileUploader.upload(lmmpJob);
+        lmmpJob.enterPhase(JobPhase.S3_UPLOAD);
+        lmmpJobRepository.update(lmmpJob);
+
+        try {
+            fileUploader.upload(lmmpJob);
+        } catch (RuntimeException e) {
+            LOG.error("Job UUID {} failed to upload", lmmpJob.getUuid(), e);
+
+            lmmpJob.failed(e.getMessage());
+            finish(lmmpJob);
+            return;
+        }
 
         LOG.info("Job UUID {} is uploaded and completed!", lmmpJob.getUuid());
 
-        // _assume_ all is good
         lmmpJob.completed();
-        lmmpJobRepository.update(lmmpJob);
+        finish(lmmpJob);
     }
 
     // =========================================================================
@@ -253,6 +395,8 @@ public class LmmpJobWorkflow implements HadoopJobCompletedListener, ExeTaskCompl
         // let's kick off the exe tasks
         LOG.info("Hadoop job for uuid {} was successful; kicking off the binaries", job.getUuid());
 
+        fileSystemImagePreparer.cleanWorkspace(job);
+
         job.markAsRunningExecutables();
         lmmpJobRepository.update(job);
 
@@ -268,9 +412,101 @@ public class LmmpJobWorkflow implements HadoopJobCompletedListener, ExeTaskCompl
         LOG.info("Hadoop job for uuid {} failed; updating in DB", job.getUuid());
         job.failed(failReason);
 
-        lmmpJobRepository.update(job);
+        // the HadoopJobTracker clears HDFS
+        cleanWorkspace(job);
+        finish(job);
+    }
+
+    // =========================================================================
+
+    private static String failedImagesReason(ImageFetchBatch imageFetchBatch) {
+        return imageFetchBatch.getFailedUrls().size() + " images failed to download";
+    }
+
+    /**
+     * Removes whatever a failed job left behind: its local workspace and its HDFS paths. Neither failing to is allowed
+     * to get in the way of the job being finished.
+     */
+    private void cleanUpAfterFailure(LmmpJob job) {
+        cleanWorkspace(job);
+
+        try {
+            hadoopEnvironmentPreparer.cleanUp(job);
+        } catch (RuntimeException e) {
+            LOG.error("Exception while cleaning up HDFS for job id {}", job.getUuid(), e);
+        }
+    }
+
+    private void cleanWorkspace(LmmpJob job) {
+        try {
+            fileSystemImagePreparer.cleanWorkspace(job);
+        } catch (RuntimeException e) {
+            LOG.error("Exception while cleaning the workspace of job id {}", job.getUuid(), e);
+        }
+    }
+
+    private void acquireSlot(LmmpJob job) throws InterruptedException {
+        LOG.info("Job id {} waiting for a slot; {} of {} free", job.getUuid(), jobSlots.availablePermits(),
+                maxConcurrentJobs);
+
+        jobSlots.acquire();
+        slotHolders.add(job.getUuid());
+
+        LOG.info("Job id {} acquired a slot", job.getUuid());
+    }
+
+    /**
+     * Persists a job that has reached a terminal state, gives its slot to the next job in the queue and finishes the
+     * jobs that were waiting for its result. The slot and the followers are let go of even if persisting fails.
+     */
+    private void finish(LmmpJob job) {
+        try {
+            lmmpJobRepository.update(job);
+        } finally {
+            releaseSlot(job);
+            finishFollowersOf(job);
+        }
+    }
+
+    private void releaseSlot(LmmpJob job) {
+        if (slotHolders.remove(job.getUuid())) {
+            jobSlots.release();
+            LOG.info("Job id {} released its slot", job.getUuid());
+        }
+    }
+
+    private void finishFollowersOf(LmmpJob job) {
+        for (LmmpJob follower : resultIndex.release(job)) {
+            if (job.getStatus() == LmmpJob.Status.COMPLETED) {
+                follower.reuseResultOf(job);
+                follower.completed();
+            } else {
+                follower.failed("Job " + job.getUuid() + " producing the same result did not complete: "
+                        + job.getFailInfo());
+            }
+
+            try {
+                lmmpJobRepository.update(follower);
+                LOG.info("Job id {} finished along with job id {}", follower.getUuid(), job.getUuid());
+            } catch (RuntimeException e) {
+                // don't leave the other followers hanging
+                LOG.error("Exception while finishing job id {}", follower.getUuid(), e);
+            }
+        }
     }
 
     // =========================================================================
 
+    void setLmmpJobRepository(LmmpJobRepository lmmpJobRepository) {
+        this.lmmpJobRepository = lmmpJobRepository;
+    }
+
+    void setFileUploader(S3FileUploader fileUploader) {
+        this.fileUploader = fileUploader;
+    }
+
+    void setResultIndex(ResultIndex resultIndex) {
+        this.resultIndex = resultIndex;
+    }
+
 }
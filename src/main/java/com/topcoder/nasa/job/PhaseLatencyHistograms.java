@@ -0,0 +1,131 @@
+package com.topcoder.nasa.job;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.stereotype.Component;
+
+import com.topcoder.nasa.job.LmmpJob.PhaseTransition;
+
+/**
+ * In-memory histograms of how long each {@link JobPhase} takes, across all jobs since the server
+ * started. Fed by the repository as it stores a job's transitions - see
+ * {@link #record(List, int)}.
+ *
+ */
+@Component
+public class PhaseLatencyHistograms {
+    /** The upper bounds of the buckets, in ms. The last bucket is everything slower. */
+    private static final long[] BUCKET_BOUNDS = { 1000, 2000, 5000, 10000, 30000, 60000, 120000,
+            300000, 600000, 1800000, 3600000, 7200000 };
+
+    private static final String[] BUCKET_NAMES = { "<=1s", "<=2s", "<=5s", "<=10s", "<=30s",
+            "<=1m", "<=2m", "<=5m", "<=10m", "<=30m", "<=1h", "<=2h", ">2h" };
+
+    /** Guarded by itself. */
+    private final Map<JobPhase, Histogram> histograms = new EnumMap<JobPhase, Histogram>(
+            JobPhase.class);
+
+    // =========================================================================
+
+    /**
+     * Records the duration of every phase that ended with one of the new transitions.
+     *
+     * @param transitions
+     *            all of a job's transitions, oldest first
+     * @param firstNew
+     *            the index of the first transition not seen before
+     */
+    public void record(List<PhaseTransition> transitions, int firstNew) {
+        for (int i = Math.max(1, firstNew); i < transitions.size(); i++) {
+            PhaseTransition previous = transitions.get(i - 1);
+            PhaseTransition current = transitions.get(i);
+
+            if (previous.getPhase() == current.getPhase()) {
+                // only the status changed
+                continue;
+            }
+
+            int start = i - 1;
+
+            while (start > 0 && transitions.get(start - 1).getPhase() == previous.getPhase()) {
+                start--;
+            }
+
+            record(previous.getPhase(), current.getEnteredAt()
+                    - transitions.get(start).getEnteredAt());
+        }
+    }
+
+    /**
+     * Records one run of the given phase.
+     */
+    public void record(JobPhase phase, long millis) {
+        synchronized (histograms) {
+            Histogram histogram = histograms.get(phase);
+
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(phase, histogram);
+            }
+
+            histogram.add(millis);
+        }
+    }
+
+    /**
+     * @return a summary of each phase's histogram - count, mean, max and bucket counts - ready to
+     *         be rendered as JSON
+     */
+    public Map<String, Map<String, Object>> getSummary() {
+        Map<String, Map<String, Object>> summary = new LinkedHashMap<String, Map<String, Object>>();
+
+        synchronized (histograms) {
+            for (Map.Entry<JobPhase, Histogram> entry : histograms.entrySet()) {
+                summary.put(entry.getKey().displayName(), entry.getValue().summarize());
+            }
+        }
+
+        return summary;
+    }
+
+    // =========================================================================
+
+    private static class Histogram {
+        private final long[] bucketCounts = new long[BUCKET_NAMES.length];
+        private long count;
+        private long totalMillis;
+        private long maxMillis;
+
+        void add(long millis) {
+            int bucket = 0;
+
+            while (bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+
+            bucketCounts[bucket]++;
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+
+        Map<String, Object> summarize() {
+            Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+
+            for (int i = 0; i < bucketCounts.length; i++) {
+                buckets.put(BUCKET_NAMES[i], bucketCounts[i]);
+            }
+
+            Map<String, Object> summary = new LinkedHashMap<String, Object>();
+            summary.put("count", count);
+            summary.put("meanMillis", count == 0 ? 0 : totalMillis / count);
+            summary.put("maxMillis", maxMillis);
+            summary.put("buckets", buckets);
+
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.topcoder.nasa.job;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Knows which results (mosaics) already exist or are being produced, so that a job asking for the
+ * very same thing as an earlier one needn't go through Hadoop, gdal and S3 all over again.
+ * <p/>
+ * A result is identified by its {@link #computeResultKey(Collection, Collection) result key}: the
+ * hash of the (sorted) set of image URLs that go into it, and the (sorted) output formats. Once a
+ * job knows its images, it {@link #claim(LmmpJob) claims} its result, and either:
+ * <ul>
+ * <li>finds a completed job with the same result key in the repository, whose output it can
+ * {@link LmmpJob#reuseResultOf(LmmpJob) reuse} straight away</li>
+ * <li>finds a job on this server that is producing the same result already, and follows it: the
+ * followers are handed back, to finish along with it, when that job {@link #release(LmmpJob)
+ * releases} its claim</li>
+ * <li>or has to produce the result itself</li>
+ * </ul>
+ * A producing job that ends up without some of its images (they failed to download, but not too
+ * many) {@link #withdraw(LmmpJob) withdraws} its claim: its result is not the one it claimed, so no
+ * more jobs may follow it.
+ *
+ */
+@Component
+public class ResultIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(ResultIndex.class);
+
+    public enum Claim {
+        /** A completed job has the result already */
+        COMPLETED,
+
+        /** Another job is producing the result; the claiming job now follows it */
+        FOLLOWING,
+
+        /** The claiming job is to produce the result */
+        PRODUCING
+    }
+
+    @Autowired
+    private LmmpJobRepository lmmpJobRepository;
+
+    /** The jobs producing a result on this server, by result key. Guarded by itself. */
+    private Map<String, InFlightResult> inFlightResults = new HashMap<String, InFlightResult>();
+
+    /** The withdrawn claims of jobs still producing, by job UUID. Guarded by inFlightResults. */
+    private Map<String, InFlightResult> withdrawnResults = new HashMap<String, InFlightResult>();
+
+    // =========================================================================
+
+    /**
+     * @return the hash of the sorted URLs and the sorted (lower case) output formats, as 64 hex
+     *         digits
+     */
+    public static String computeResultKey(Collection<String> urls, Collection<String> outputFormats) {
+        Hasher hasher = Hashing.sha256().newHasher();
+
+        for (String url : new TreeSet<String>(urls)) {
+            hasher.putString(url, Charsets.UTF_8).putByte((byte) '\n');
+        }
+
+        Set<String> lowerCaseFormats = new TreeSet<String>();
+
+        for (String outputFormat : outputFormats) {
+            lowerCaseFormats.add(outputFormat.toLowerCase());
+        }
+
+        for (String outputFormat : lowerCaseFormats) {
+            hasher.putString(outputFormat, Charsets.UTF_8).putByte((byte) ',');
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Claims the job's result, by its {@link LmmpJob#getResultKey()}. For {@link Claim#COMPLETED},
+     * the job has been pointed at the existing result already.
+     */
+    public Claim claim(LmmpJob job) {
+        String resultKey = job.getResultKey();
+        LmmpJob completed = lmmpJobRepository.findCompletedByResultKey(resultKey);
+
+        if (completed != null) {
+            LOG.info("Job {} reuses the result of completed job {}", job.getUuid(),
+                    completed.getUuid());
+
+            job.reuseResultOf(completed);
+            return Claim.COMPLETED;
+        }
+
+        synchronized (inFlightResults) {
+            InFlightResult inFlight = inFlightResults.get(resultKey);
+
+            if (inFlight != null) {
+                LOG.info("Job {} follows job {}, which is producing the same result",
+                        job.getUuid(), inFlight.producer.getUuid());
+
+                inFlight.followers.add(job);
+                return Claim.FOLLOWING;
+            }
+
+            inFlightResults.put(resultKey, new InFlightResult(job));
+            return Claim.PRODUCING;
+        }
+    }
+
+    /**
+     * Withdraws the claim of a job that is producing a result, once it knows its result won't be
+     * the one it claimed: no job can follow it from now on. The jobs following it already still do
+     * - they get whatever it produces, and its result key, when it {@link #release(LmmpJob)
+     * releases} its claim.
+     */
+    public void withdraw(LmmpJob job) {
+        synchronized (inFlightResults) {
+            InFlightResult inFlight = inFlightResults.get(job.getResultKey());
+
+            if (inFlight == null || inFlight.producer != job) {
+                return;
+            }
+
+            LOG.info("Job {} withdraws its claim on result {}", job.getUuid(), job.getResultKey());
+
+            inFlightResults.remove(job.getResultKey());
+            withdrawnResults.put(job.getUuid(), inFlight);
+        }
+    }
+
+    /**
+     * Called once a job has finished (whichever way): if it was producing a result, nobody can
+     * follow it any more.
+     *
+     * @return the jobs that were following it
+     */
+    public List<LmmpJob> release(LmmpJob job) {
+        synchronized (inFlightResults) {
+            InFlightResult withdrawn = withdrawnResults.remove(job.getUuid());
+
+            if (withdrawn != null) {
+                return withdrawn.followers;
+            }
+        }
+
+        if (job.getResultKey() == null) {
+            return Collections.emptyList();
+        }
+
+        synchronized (inFlightResults) {
+            InFlightResult inFlight = inFlightResults.get(job.getResultKey());
+
+            if (inFlight == null || inFlight.producer != job) {
+                return Collections.emptyList();
+            }
+
+            inFlightResults.remove(job.getResultKey());
+
+            return inFlight.followers;
+        }
+    }
+
+    // =========================================================================
+
+    /**
+     * A result being produced, and the jobs waiting for it.
+     */
+    private static class InFlightResult {
+        private final LmmpJob producer;
+        private final List<LmmpJob> followers = new ArrayList<LmmpJob>();
+
+        InFlightResult(LmmpJob producer) {
+            this.producer = producer;
+        }
+    }
+}
@@ -5,36 +5,51 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.topcoder.nasa.job.JobPhase;
 import com.topcoder.nasa.job.LmmpJob;
 
 /**
  * Defines a bunch of common functionality for a stereotypical implementaiton of {@link ExeTask}.
+ * <p/>
+ * Running the task for a job means running the {@link #command} once per
+ * {@link #getInvocationsFor(LmmpJob) invocation} - usually just the one. Invocations run side by
+ * side, but no more than {@link #processSlots} processes of this task at once, across all jobs. The
+ * {@link #runCompleteListener} is told once all of a job's invocations have exited.
+ * <p/>
+ * Each launched Process gets three pooled threads of its own: two that pump its stdout and stderr
+ * into the log as the lines arrive (so the process never stalls on a full pipe - see <a href=
+ * "http://docs.oracle.com/javase/7/docs/api/java/lang/ProcessBuilder.html" >ProcessBuilder</a>
+ * javadoc), and one that waits for it to exit.
  *
  */
 public abstract class AbstractExeTask implements ExeTask {
-    private static final int MONITOR_PERIOD = 10000;
-
     private static final Logger LOG = LoggerFactory.getLogger(AbstractExeTask.class);
 
     /**
-     * We maintain a background thread primiarily to check for completion of an ExeTask.
-     * <p/>
-     * The thread serves a secondary purpose: to periodically consume from Process' OutputStreams
-     * and ErrorStreams -- and swallow them. See <a href=
-     * "http://docs.oracle.com/javase/7/docs/api/java/lang/ProcessBuilder.html" >ProcessBuilder</a>
-     * javadoc.
-     * 
+     * Runs the stream pumps and exit waiters of all processes. Threads are created as processes
+     * need them and die off once idle, so there is nothing to shut down.
      */
-    private static Thread monitorThread;
+    private static final ExecutorService PROCESS_EXECUTOR = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "exe-task-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
 
     /**
      * The shell command to execute for this ExeTask.
@@ -42,124 +57,162 @@ public abstract class AbstractExeTask implements ExeTask {
     private String command;
 
     /**
-     * When this ExeTask has completed, inform this listener.
+     * The phase a job is in while this ExeTask runs for it.
      */
-    private ExeTaskCompletedListener runCompleteListener;
+    private JobPhase phase;
 
     /**
-     * Map of active (running) Processes for the given LmmpJob.
+     * When this ExeTask has completed, inform this listener.
      */
-    private static Map<LmmpJob, Process> jobProcessMap = new ConcurrentHashMap<LmmpJob, Process>();
+    private ExeTaskCompletedListener runCompleteListener;
 
     /**
-     * One-off singleton setup of the thread. Synchronize on the only object we know to be good at
-     * initialization time - the Logger!
+     * One permit per process of this ExeTask that may run at the same time.
      */
-    {
-        synchronized (LOG) {
-            if (monitorThread == null) {
-
-                LOG.info("Spinning up thread to consume output/error streams for jobs");
-                monitorThread = new Thread(new Runnable() {
-                    public void run() {
-                        while (true) {
-                            try {
-                                // NOTE: this threads wakes up every
-                                // MONITOR_PERIOD ms
-                                Thread.sleep(MONITOR_PERIOD);
-                            } catch (InterruptedException e) {
-                            }
-
-                            drainProcessStreams();
-                        }
-                    }
-
-                });
-
-                monitorThread.start();
-            }
-        }
-    }
+    private Semaphore processSlots;
 
     // =========================================================================
 
-    public AbstractExeTask(String command) {
+    public AbstractExeTask(String command, JobPhase phase, int maxConcurrentProcesses) {
         this.command = command;
+        this.phase = phase;
+        this.processSlots = new Semaphore(maxConcurrentProcesses, true);
     }
 
     // =========================================================================
 
-    public Process runTaskFor(LmmpJob lmmpJob) {
+    public void runTaskFor(final LmmpJob lmmpJob) {
+        List<List<String>> invocations;
+
         try {
-            return doRunTaskFor(lmmpJob);
+            // ask concrete implementation for all the args
+            invocations = getInvocationsFor(lmmpJob);
         } catch (Exception e) {
             throw new IllegalStateException("Exception while running command " + getCommand(), e);
         }
-    }
-
-    private Process doRunTaskFor(LmmpJob lmmpJob) throws Exception, IOException {
-        // ask concrete implementation for all the args
-        List<String> args = new ArrayList<String>(getArgsFor(lmmpJob));
-
-        args.add(0, command);
 
-        LOG.info("Launching command for job uuid {}: {}", lmmpJob.getUuid(), args);
+        if (invocations.isEmpty()) {
+            runCompleteListener.onTaskCompleted(lmmpJob);
+            return;
+        }
 
-        Process process = new ProcessBuilder(args.toArray(new String[0])).start();
+        final AtomicInteger invocationsLeft = new AtomicInteger(invocations.size());
 
-        jobProcessMap.put(lmmpJob, process);
+        for (final List<String> args : invocations) {
+            PROCESS_EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    if (!runProcess(lmmpJob, args)) {
+                        // interrupted: we're shutting down
+                        return;
+                    }
 
-        return process;
+                    if (invocationsLeft.decrementAndGet() == 0) {
+                        LOG.info("LmmpJob UUID {}, command {} completed", lmmpJob.getUuid(), command);
+                        runCompleteListener.onTaskCompleted(lmmpJob);
+                    }
+                }
+            });
+        }
     }
 
     // =========================================================================
 
     /**
-     * Implementations are expected to provide all the arguments for this command.
+     * Implementations are expected to provide all the arguments for this command: one list of
+     * arguments per time the command is to be run for the job.
      */
-    protected abstract List<String> getArgsFor(LmmpJob lmmpJob) throws Exception;
+    protected abstract List<List<String>> getInvocationsFor(LmmpJob lmmpJob) throws Exception;
 
     // =========================================================================
 
-    private void drainProcessStreams() {
-        // for each process that's running...
-        for (Iterator<Entry<LmmpJob, Process>> it = jobProcessMap.entrySet().iterator(); it
-                .hasNext();) {
-            Entry<LmmpJob, Process> entry = it.next();
+    /**
+     * Runs one invocation of the command, once there's a {@link #processSlots slot} for it.
+     *
+     * @return false if interrupted
+     */
+    private boolean runProcess(LmmpJob job, List<String> invocationArgs) {
+        List<String> args = new ArrayList<String>(invocationArgs);
 
-            LmmpJob job = entry.getKey();
-            Process process = entry.getValue();
+        args.add(0, command);
+
+        try {
+            processSlots.acquire();
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while waiting to run command {} of job uuid {}", command,
+                    job.getUuid());
+            return false;
+        }
+
+        try {
+            LOG.info("Launching command for job uuid {}: {}", job.getUuid(), args);
 
-            // ...if it has finished - remove from the active map and continue
-            if (Processes.hasFinished(process)) {
-                LOG.info("LmmpJob UUID {}, command {} completed", job.getUuid(), command);
-                it.remove();
+            Process process;
 
-                runCompleteListener.onTaskCompleted(job);
-                continue;
+            try {
+                process = new ProcessBuilder(args.toArray(new String[0])).start();
+            } catch (IOException e) {
+                // as good as a failed exit: the job finds out when its output is missing
+                LOG.error("Unable to launch command {} of job uuid {}", args, job.getUuid(), e);
+                return true;
             }
 
-            // ...otherwise drain the streams to a buffer and do nothing with
-            // their contents.
-            drainStream("stdout", process.getInputStream());
-            drainStream("stderr", process.getErrorStream());
+            pumpStream("stdout", process.getInputStream());
+            pumpStream("stderr", process.getErrorStream());
+
+            return awaitExit(job, process);
+        } finally {
+            processSlots.release();
         }
     }
 
-    private void drainStream(String streamName, InputStream stream) {
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream));
+    // =========================================================================
 
-        String line = null;
-        try {
-            while ((line = bufferedReader.readLine()) != null) {
-                LOG.info("{}: {}", streamName, line);
+    /**
+     * Logs the stream's lines as they arrive, until the process closes it.
+     */
+    private void pumpStream(final String streamName, final InputStream stream) {
+        PROCESS_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream));
+
+                String line = null;
+                try {
+                    while ((line = bufferedReader.readLine()) != null) {
+                        LOG.info("{}: {}", streamName, line);
+                    }
+
+                    bufferedReader.close();
+
+                } catch (IOException e) {
+                    LOG.error("Exception while draining stream?", e);
+                }
             }
+        });
+    }
 
-            bufferedReader.close();
+    /**
+     * Waits for the process to exit.
+     *
+     * @return false if interrupted
+     */
+    private boolean awaitExit(LmmpJob job, Process process) {
+        int exitValue;
 
-        } catch (IOException e) {
-            LOG.error("Exception while draining stream?", e);
+        try {
+            exitValue = process.waitFor();
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while waiting for command {} of job uuid {}", command,
+                    job.getUuid());
+            process.destroy();
+            return false;
         }
+
+        if (exitValue != 0) {
+            LOG.warn("LmmpJob UUID {}, command {} exited with {}", new Object[] { job.getUuid(),
+                    command, exitValue });
+        }
+
+        return true;
     }
 
     // =========================================================================
@@ -172,6 +225,10 @@ public abstract class AbstractExeTask implements ExeTask {
         this.command = command;
     }
 
+    public JobPhase getPhase() {
+        return phase;
+    }
+
     public void setRunCompleteListener(ExeTaskCompletedListener runCompleteListener) {
         this.runCompleteListener = runCompleteListener;
     }
@@ -0,0 +1,182 @@
+package com.topcoder.nasa.job.binary;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.ProgressCallback;
+import org.gdal.gdal.gdal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.topcoder.nasa.job.JobPhase;
+import com.topcoder.nasa.job.LmmpJob;
+
+/**
+ * The in-process counterpart of {@link AbstractExeTask}: instead of forking a GDAL utility, each
+ * {@link #getInvocationsFor(LmmpJob) invocation} (same arguments as the utility's) is run through
+ * GDAL's Java bindings on the {@link GdalWorkers}. Invocations run side by side, as workers allow;
+ * the {@link #runCompleteListener} is told once all of a job's invocations are done.
+ * <p/>
+ * GDAL reports progress through a callback, which is logged every {@link #PROGRESS_STEP}, and which
+ * cancels the operation if the worker is interrupted (i.e. we're shutting down).
+ * <p/>
+ * However an invocation ends - failed, cancelled, or even with an {@link Error} out of the native
+ * code - it counts as done, so that the listener is told and the job comes to an end: like after a
+ * failed utility, what comes next finds no output and fails the job.
+ *
+ */
+public abstract class AbstractGdalTask implements ExeTask {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractGdalTask.class);
+
+    /** How often (as a fraction of the whole) progress is logged. */
+    private static final double PROGRESS_STEP = 0.1;
+
+    /**
+     * The GDAL utility this task does the work of, for the logs.
+     */
+    private String utility;
+
+    /**
+     * The phase a job is in while this task runs for it.
+     */
+    private JobPhase phase;
+
+    private GdalWorkers gdalWorkers;
+
+    /**
+     * When this task has completed, inform this listener.
+     */
+    private ExeTaskCompletedListener runCompleteListener;
+
+    // =========================================================================
+
+    public AbstractGdalTask(String utility, JobPhase phase, GdalWorkers gdalWorkers) {
+        this.utility = utility;
+        this.phase = phase;
+        this.gdalWorkers = gdalWorkers;
+    }
+
+    // =========================================================================
+
+    public void runTaskFor(final LmmpJob lmmpJob) {
+        List<List<String>> invocations;
+
+        try {
+            invocations = getInvocationsFor(lmmpJob);
+        } catch (Exception e) {
+            throw new IllegalStateException("Exception while running " + utility, e);
+        }
+
+        if (invocations.isEmpty()) {
+            runCompleteListener.onTaskCompleted(lmmpJob);
+            return;
+        }
+
+        final AtomicInteger invocationsLeft = new AtomicInteger(invocations.size());
+
+        for (final List<String> args : invocations) {
+            gdalWorkers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        runInvocation(lmmpJob, args);
+                    } finally {
+                        if (invocationsLeft.decrementAndGet() == 0) {
+                            LOG.info("LmmpJob UUID {}, {} completed", lmmpJob.getUuid(), utility);
+                            runCompleteListener.onTaskCompleted(lmmpJob);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs one invocation, logging how it went. An {@link Error} is logged and passed on.
+     */
+    private void runInvocation(LmmpJob lmmpJob, List<String> args) {
+        LOG.info("LmmpJob UUID {}, running {} in-process: {}", new Object[] { lmmpJob.getUuid(),
+                utility, args });
+
+        long start = System.currentTimeMillis();
+        Dataset output = null;
+
+        try {
+            output = invoke(args, new LoggingProgress(lmmpJob));
+        } catch (Exception e) {
+            LOG.error("LmmpJob UUID {}, {} threw", new Object[] { lmmpJob.getUuid(), utility, e });
+        } catch (Error e) {
+            // e.g. UnsatisfiedLinkError, or out of memory: nothing more to be done for this invocation
+            LOG.error("LmmpJob UUID {}, {} threw", new Object[] { lmmpJob.getUuid(), utility, e });
+            throw e;
+        } finally {
+            if (output != null) {
+                // closes (and so flushes) the output
+                output.delete();
+            }
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            // we're shutting down: the progress callback cancelled it
+            LOG.warn("LmmpJob UUID {}, {} interrupted", lmmpJob.getUuid(), utility);
+        } else if (output == null) {
+            // like a non-zero exit: what comes next finds no output and fails the job. GDAL keeps
+            // its last error per thread, so this has to be read here, on the worker that ran the
+            // failing call, before it runs anything else
+            LOG.error("LmmpJob UUID {}, {} failed: {}", new Object[] { lmmpJob.getUuid(), utility,
+                    gdal.GetLastErrorMsg() });
+        } else {
+            LOG.info("LmmpJob UUID {}, {} took {}ms", new Object[] { lmmpJob.getUuid(), utility,
+                    System.currentTimeMillis() - start });
+        }
+    }
+
+    public void setRunCompleteListener(ExeTaskCompletedListener runCompleteListener) {
+        this.runCompleteListener = runCompleteListener;
+    }
+
+    public JobPhase getPhase() {
+        return phase;
+    }
+
+    // =========================================================================
+
+    /**
+     * @return the arguments of each time the utility is to be run for the job
+     */
+    protected abstract List<List<String>> getInvocationsFor(LmmpJob lmmpJob) throws Exception;
+
+    /**
+     * Does what the utility would with the given arguments.
+     *
+     * @return the output dataset, or null if GDAL failed
+     */
+    protected abstract Dataset invoke(List<String> args, ProgressCallback progress) throws Exception;
+
+    // =========================================================================
+
+    /**
+     * Logs GDAL's progress on a job.
+     */
+    private class LoggingProgress extends ProgressCallback {
+        private final LmmpJob lmmpJob;
+        private double nextLogged = PROGRESS_STEP;
+
+        LoggingProgress(LmmpJob lmmpJob) {
+            this.lmmpJob = lmmpJob;
+        }
+
+        @Override
+        public int run(double complete, String message) {
+            if (complete >= nextLogged) {
+                LOG.debug("LmmpJob UUID {}, {} {}% done", new Object[] { lmmpJob.getUuid(), utility,
+                        Math.round(complete * 100) });
+
+                nextLogged = (Math.floor(complete / PROGRESS_STEP) + 1) * PROGRESS_STEP;
+            }
+
+            // 0 cancels
+            return Thread.currentThread().isInterrupted() ? 0 : 1;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.topcoder.nasa.job.JobPhase;
 import com.topcoder.nasa.job.LmmpJob;
 
 public class AggregateExeTask implements ExeTask, ExeTaskCompletedListener {
@@ -25,22 +26,26 @@ public class AggregateExeTask implements ExeTask, ExeTaskCompletedListener {
     }
 
     @Override
-    public Process runTaskFor(LmmpJob lmmpJob) {
+    public void runTaskFor(LmmpJob lmmpJob) {
         LOG.info("Running aggregate executable chain for job uuid {}", lmmpJob.getUuid());
 
         jobIndexMap.put(lmmpJob, new AtomicInteger(0));
 
-        return doRunFor(lmmpJob);
+        doRunFor(lmmpJob);
     }
 
-    private Process doRunFor(LmmpJob lmmpJob) {
+    private void doRunFor(LmmpJob lmmpJob) {
         Integer index = jobIndexMap.get(lmmpJob).get();
 
         ExeTask executableJobProcessor = list.get(index);
 
         executableJobProcessor.setRunCompleteListener(this);
 
-        return executableJobProcessor.runTaskFor(lmmpJob);
+        if (executableJobProcessor.getPhase() != null) {
+            lmmpJob.enterPhase(executableJobProcessor.getPhase());
+        }
+
+        executableJobProcessor.runTaskFor(lmmpJob);
     }
 
     @Override
@@ -61,4 +66,9 @@ public class AggregateExeTask implements ExeTask, ExeTaskCompletedListener {
     public void setRunCompleteListener(ExeTaskCompletedListener runCompleteListener) {
         this.runCompleteListener = runCompleteListener;
     }
+
+    @Override
+    public JobPhase getPhase() {
+        return null;
+    }
 }
@@ -1,5 +1,6 @@
 package com.topcoder.nasa.job.binary;
 
+import com.topcoder.nasa.job.JobPhase;
 import com.topcoder.nasa.job.LmmpJob;
 
 /**
@@ -12,13 +13,20 @@ import com.topcoder.nasa.job.LmmpJob;
 public interface ExeTask {
 
     /**
-     * Run this EXEcutable TASK, for the the given LmmpJob
+     * Run this EXEcutable TASK, for the the given LmmpJob. Returns right away; the
+     * {@link ExeTaskCompletedListener} is told when it is done.
      */
-    Process runTaskFor(LmmpJob lmmpJob);
+    void runTaskFor(LmmpJob lmmpJob);
 
     /**
      * When this ExeTask has finished, callback to this guy
      */
     void setRunCompleteListener(ExeTaskCompletedListener runCompleteListener);
 
+    /**
+     * @return the phase a job is in while this task runs for it, or null if this task is made up of
+     *         other tasks with phases of their own
+     */
+    JobPhase getPhase();
+
 }
\ No newline at end of file
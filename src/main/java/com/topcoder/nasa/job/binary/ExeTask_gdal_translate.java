@@ -1,26 +1,36 @@
 package com.topcoder.nasa.job.binary;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.topcoder.nasa.job.JobPhase;
 import com.topcoder.nasa.job.LmmpJob;
 
 /**
- * ExeTask implementation responsible for calling "gdal_translate".
+ * ExeTask implementation responsible for calling "gdal_translate": once per output format of the
+ * job, all from the same mosaic.vrt. These run side by side, up to one per CPU.
  */
 public class ExeTask_gdal_translate extends AbstractExeTask {
     private static final Logger LOG = LoggerFactory.getLogger(ExeTask_gdal_translate.class);
 
     public ExeTask_gdal_translate() {
-        super("/usr/bin/gdal_translate");
+        super("/usr/bin/gdal_translate", JobPhase.GDAL_TRANSLATE, Runtime.getRuntime()
+                .availableProcessors());
     }
 
-    protected List<String> getArgsFor(LmmpJob lmmpJob) {
-        return Arrays.asList("-of", lmmpJob.getOutputFormat(), //
-                lmmpJob.getJobVrtFile().getAbsolutePath(), //
-                lmmpJob.getJobCompletedFile().getAbsolutePath());
+    protected List<List<String>> getInvocationsFor(LmmpJob lmmpJob) {
+        List<List<String>> invocations = new ArrayList<List<String>>();
+
+        for (String outputFormat : lmmpJob.getOutputFormats()) {
+            invocations.add(Arrays.asList("-of", outputFormat, //
+                    lmmpJob.getJobVrtFile().getAbsolutePath(), //
+                    lmmpJob.getJobCompletedFile(outputFormat).getAbsolutePath()));
+        }
+
+        return invocations;
     }
 }
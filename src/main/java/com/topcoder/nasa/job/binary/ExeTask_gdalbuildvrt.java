@@ -1,43 +1,69 @@
 package com.topcoder.nasa.job.binary;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import com.topcoder.nasa.job.JobPhase;
 import com.topcoder.nasa.job.LmmpJob;
 
 /**
- * ExeTask implementation responsible for calling "gdalbuildvrt".
+ * ExeTask implementation responsible for calling "gdalbuildvrt". Runs for several jobs side by side,
+ * up to one per CPU.
+ * <p/>
+ * A job can have thousands of tifs, so rather than putting them all on the command line (and
+ * hitting the argument length limit) they are written to a list file, given with -input_file_list.
  */
 public class ExeTask_gdalbuildvrt extends AbstractExeTask {
-    private static final Logger LOG = LoggerFactory.getLogger(ExeTask_gdalbuildvrt.class);
+    /** Lists the job's tifs, next to the mosaic. */
+    static final String INPUT_FILE_LIST = "mosaic.vrt.inputs";
 
     public ExeTask_gdalbuildvrt() {
-        super("/usr/bin/gdalbuildvrt");
+        super("/usr/bin/gdalbuildvrt", JobPhase.GDALBUILDVRT, Runtime.getRuntime()
+                .availableProcessors());
     }
 
-    protected List<String> getArgsFor(LmmpJob lmmpJob) {
+    protected List<List<String>> getInvocationsFor(LmmpJob lmmpJob) throws IOException {
+        File inputFileList = new File(lmmpJob.getFinalPath(), INPUT_FILE_LIST);
+
+        Files.write(Joiner.on('\n').join(findTifs(lmmpJob)) + "\n", inputFileList, Charsets.UTF_8);
+
         List<String> args = new ArrayList<String>();
+        args.add("-input_file_list");
+        args.add(inputFileList.getAbsolutePath());
         args.add(lmmpJob.getFinalPath() + "/mosaic.vrt");
 
+        return Collections.singletonList(args);
+    }
+
+    /**
+     * @return the absolute paths of the job's tifs, in file name order
+     */
+    static List<String> findTifs(LmmpJob lmmpJob) {
         // NOTE that wildcards don't work when spawning a process from java,
-        // so we need to find all the tifs in the directory and add them to the
-        // command's args
+        // so we need to find all the tifs in the directory ourselves
         File[] files = lmmpJob.getFinalPath().listFiles();
 
         if (files == null) {
             throw new IllegalStateException("finalPath does not exist?");
         }
 
+        Arrays.sort(files);
+
+        List<String> tifs = new ArrayList<String>();
+
         for (File file : files) {
             if (file.getAbsolutePath().toLowerCase().endsWith(".tif")) {
-                args.add(file.getAbsolutePath());
+                tifs.add(file.getAbsolutePath());
             }
         }
 
-        return args;
+        return tifs;
     }
 }
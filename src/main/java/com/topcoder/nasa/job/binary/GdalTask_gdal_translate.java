@@ -0,0 +1,54 @@
+package com.topcoder.nasa.job.binary;
+
+import java.util.List;
+import java.util.Vector;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.ProgressCallback;
+import org.gdal.gdal.TranslateOptions;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconstConstants;
+
+import com.topcoder.nasa.job.JobPhase;
+import com.topcoder.nasa.job.LmmpJob;
+
+/**
+ * Does the work of {@link ExeTask_gdal_translate} in-process: once per output format of the job,
+ * all from the same mosaic.vrt.
+ */
+public class GdalTask_gdal_translate extends AbstractGdalTask {
+    /** Where the arguments come from. */
+    private final ExeTask_gdal_translate process = new ExeTask_gdal_translate();
+
+    public GdalTask_gdal_translate(GdalWorkers gdalWorkers) {
+        super("gdal_translate", JobPhase.GDAL_TRANSLATE, gdalWorkers);
+    }
+
+    protected List<List<String>> getInvocationsFor(LmmpJob lmmpJob) {
+        return process.getInvocationsFor(lmmpJob);
+    }
+
+    /**
+     * @param args
+     *            the options, then the source and the destination
+     */
+    protected Dataset invoke(List<String> args, ProgressCallback progress) {
+        String source = args.get(args.size() - 2);
+        String destination = args.get(args.size() - 1);
+        Dataset sourceDataset = gdal.Open(source, gdalconstConstants.GA_ReadOnly);
+
+        if (sourceDataset == null) {
+            return null;
+        }
+
+        TranslateOptions options = new TranslateOptions(new Vector<String>(args.subList(0,
+                args.size() - 2)));
+
+        try {
+            return gdal.Translate(destination, sourceDataset, options, progress);
+        } finally {
+            options.delete();
+            sourceDataset.delete();
+        }
+    }
+}
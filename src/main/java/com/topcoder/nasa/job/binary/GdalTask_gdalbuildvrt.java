@@ -0,0 +1,47 @@
+package com.topcoder.nasa.job.binary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import org.gdal.gdal.BuildVRTOptions;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.ProgressCallback;
+import org.gdal.gdal.gdal;
+
+import com.topcoder.nasa.job.JobPhase;
+import com.topcoder.nasa.job.LmmpJob;
+
+/**
+ * Does the work of {@link ExeTask_gdalbuildvrt} in-process. There's no command line to overflow
+ * here, so the tifs are handed to GDAL directly rather than through a list file.
+ */
+public class GdalTask_gdalbuildvrt extends AbstractGdalTask {
+    public GdalTask_gdalbuildvrt(GdalWorkers gdalWorkers) {
+        super("gdalbuildvrt", JobPhase.GDALBUILDVRT, gdalWorkers);
+    }
+
+    protected List<List<String>> getInvocationsFor(LmmpJob lmmpJob) {
+        List<String> args = new ArrayList<String>();
+        args.add(lmmpJob.getFinalPath() + "/mosaic.vrt");
+        args.addAll(ExeTask_gdalbuildvrt.findTifs(lmmpJob));
+
+        return Collections.singletonList(args);
+    }
+
+    /**
+     * @param args
+     *            the destination, then the sources
+     */
+    protected Dataset invoke(List<String> args, ProgressCallback progress) {
+        BuildVRTOptions options = new BuildVRTOptions(new Vector<String>());
+
+        try {
+            return gdal.BuildVRT(args.get(0), new Vector<String>(args.subList(1, args.size())),
+                    options, progress);
+        } finally {
+            options.delete();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.topcoder.nasa.job.binary;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gdal.gdal.gdal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The threads that run GDAL in-process (see {@link AbstractGdalTask}), and the GDAL setup they
+ * share.
+ * <p/>
+ * At most {@link #workers} GDAL operations run at once. GDAL's block cache and worker threads are
+ * process-wide, so the per-job limits are turned into process-wide ones: the cache gets
+ * {@link #cacheMbPerJob} for each worker, and each operation may use {@link #threadsPerJob} threads.
+ *
+ */
+public class GdalWorkers {
+    private static final Logger LOG = LoggerFactory.getLogger(GdalWorkers.class);
+
+    private final int workers;
+
+    private final int cacheMbPerJob;
+
+    private final int threadsPerJob;
+
+    private ExecutorService executor;
+
+    // =========================================================================
+
+    public GdalWorkers(int workers, int cacheMbPerJob, int threadsPerJob) {
+        this.workers = workers;
+        this.cacheMbPerJob = cacheMbPerJob;
+        this.threadsPerJob = threadsPerJob;
+    }
+
+    /**
+     * Loads GDAL (its native libraries must be on the java.library.path) and starts the workers.
+     */
+    public void init() {
+        LOG.info("Running GDAL in-process: {} workers, {}MB cache and {} threads per job",
+                new Object[] { workers, cacheMbPerJob, threadsPerJob });
+
+        gdal.AllRegister();
+
+        // must be set before GDAL first uses its cache
+        gdal.SetConfigOption("GDAL_CACHEMAX", String.valueOf(cacheMbPerJob * workers));
+        gdal.SetConfigOption("GDAL_NUM_THREADS", String.valueOf(threadsPerJob));
+
+        executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gdal-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    public void shutdown() {
+        LOG.info("Shutting down GDAL workers");
+
+        // running operations notice through their progress callbacks, and cancel
+        executor.shutdownNow();
+    }
+
+    public void execute(Runnable operation) {
+        executor.execute(operation);
+    }
+}
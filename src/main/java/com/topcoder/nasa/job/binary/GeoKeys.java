@@ -0,0 +1,438 @@
+package com.topcoder.nasa.job.binary;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The keys of a GeoTIFF's GeoKeyDirectory, and the coordinate system they describe.
+ * <p/>
+ * A coordinate system with an EPSG code is given as that code. A user-defined one - which is what
+ * lunar and planetary tifs have, as EPSG only covers the Earth - is written out as WKT from its
+ * ellipsoid, units and projection parameters, the way GDAL reads it. Only the common projections
+ * are known; for anything else (or a user-defined system that leans on an EPSG datum or ellipsoid)
+ * {@link #getSrs()} gives null.
+ *
+ */
+class GeoKeys {
+    // configuration keys
+    static final int GT_MODEL_TYPE = 1024;
+    static final int GT_RASTER_TYPE = 1025;
+    static final int GT_CITATION = 1026;
+
+    // geographic CS keys
+    static final int GEOGRAPHIC_TYPE = 2048;
+    static final int GEOG_CITATION = 2049;
+    static final int GEOG_PRIME_MERIDIAN = 2051;
+    static final int GEOG_LINEAR_UNITS = 2052;
+    static final int GEOG_ANGULAR_UNITS = 2054;
+    static final int GEOG_ANGULAR_UNIT_SIZE = 2055;
+    static final int GEOG_SEMI_MAJOR_AXIS = 2057;
+    static final int GEOG_SEMI_MINOR_AXIS = 2058;
+    static final int GEOG_INV_FLATTENING = 2059;
+    static final int GEOG_PRIME_MERIDIAN_LONG = 2061;
+
+    // projected CS keys
+    static final int PROJECTED_CS_TYPE = 3072;
+    static final int PCS_CITATION = 3073;
+    static final int PROJ_COORD_TRANS = 3075;
+    static final int PROJ_LINEAR_UNITS = 3076;
+    static final int PROJ_LINEAR_UNIT_SIZE = 3077;
+    static final int PROJ_STD_PARALLEL_1 = 3078;
+    static final int PROJ_STD_PARALLEL_2 = 3079;
+    static final int PROJ_NAT_ORIGIN_LONG = 3080;
+    static final int PROJ_NAT_ORIGIN_LAT = 3081;
+    static final int PROJ_FALSE_EASTING = 3082;
+    static final int PROJ_FALSE_NORTHING = 3083;
+    static final int PROJ_FALSE_ORIGIN_LONG = 3084;
+    static final int PROJ_FALSE_ORIGIN_LAT = 3085;
+    static final int PROJ_FALSE_ORIGIN_EASTING = 3086;
+    static final int PROJ_FALSE_ORIGIN_NORTHING = 3087;
+    static final int PROJ_CENTER_LONG = 3088;
+    static final int PROJ_CENTER_LAT = 3089;
+    static final int PROJ_CENTER_EASTING = 3090;
+    static final int PROJ_CENTER_NORTHING = 3091;
+    static final int PROJ_SCALE_AT_NAT_ORIGIN = 3092;
+    static final int PROJ_SCALE_AT_CENTER = 3093;
+    static final int PROJ_STRAIGHT_VERT_POLE_LONG = 3095;
+
+    static final int VERTICAL_CS_TYPE = 4096;
+
+    static final int USER_DEFINED = 32767;
+
+    private static final int MODEL_PROJECTED = 1;
+    private static final int MODEL_GEOGRAPHIC = 2;
+
+    // where a key's value lives, if not in the directory
+    private static final int GEO_KEY_DIRECTORY_TAG = 34735;
+    private static final int GEO_DOUBLE_PARAMS_TAG = 34736;
+    private static final int GEO_ASCII_PARAMS_TAG = 34737;
+
+    // EPSG units and prime meridian
+    private static final int METRE = 9001;
+    private static final int FOOT = 9002;
+    private static final int US_SURVEY_FOOT = 9003;
+    private static final int RADIAN = 9101;
+    private static final int DEGREE = 9102;
+    private static final int GREENWICH = 8901;
+
+    // ProjCoordTransGeoKey values
+    private static final int CT_TRANSVERSE_MERCATOR = 1;
+    private static final int CT_MERCATOR = 7;
+    private static final int CT_LAMBERT_CONF_CONIC_2SP = 8;
+    private static final int CT_LAMBERT_CONF_CONIC_1SP = 9;
+    private static final int CT_LAMBERT_AZIM_EQUAL_AREA = 10;
+    private static final int CT_ALBERS_EQUAL_AREA = 11;
+    private static final int CT_AZIMUTHAL_EQUIDISTANT = 12;
+    private static final int CT_STEREOGRAPHIC = 14;
+    private static final int CT_POLAR_STEREOGRAPHIC = 15;
+    private static final int CT_OBLIQUE_STEREOGRAPHIC = 16;
+    private static final int CT_EQUIRECTANGULAR = 17;
+    private static final int CT_CASSINI_SOLDNER = 18;
+    private static final int CT_ORTHOGRAPHIC = 21;
+    private static final int CT_SINUSOIDAL = 24;
+
+    private final Map<Integer, Integer> shorts = new HashMap<Integer, Integer>();
+    private final Map<Integer, Double> doubles = new HashMap<Integer, Double>();
+    private final Map<Integer, String> asciis = new HashMap<Integer, String>();
+
+    // =========================================================================
+
+    /**
+     * @param directory
+     *            the GeoKeyDirectory tag
+     * @param doubleParams
+     *            the GeoDoubleParams tag, or null if the tif has none
+     * @param asciiParams
+     *            the GeoAsciiParams tag, or null if the tif has none
+     */
+    GeoKeys(long[] directory, double[] doubleParams, String asciiParams) {
+        // header: version, revision, minor revision, key count; then 4 shorts per key
+        for (int i = 4; i + 3 < directory.length; i += 4) {
+            int keyId = (int) directory[i];
+            int location = (int) directory[i + 1];
+            int count = (int) directory[i + 2];
+            int value = (int) directory[i + 3];
+
+            if (location == 0) {
+                shorts.put(keyId, value);
+            } else if (location == GEO_KEY_DIRECTORY_TAG && value < directory.length) {
+                shorts.put(keyId, (int) directory[value]);
+            } else if (location == GEO_DOUBLE_PARAMS_TAG && doubleParams != null
+                    && value < doubleParams.length) {
+                doubles.put(keyId, doubleParams[value]);
+            } else if (location == GEO_ASCII_PARAMS_TAG && asciiParams != null
+                    && value + count <= asciiParams.length()) {
+                // each string ends with a '|'
+                String ascii = asciiParams.substring(value, value + count);
+                asciis.put(keyId, ascii.endsWith("|") ? ascii.substring(0, ascii.length() - 1) : ascii);
+            }
+        }
+    }
+
+    // =========================================================================
+
+    int getShort(int keyId, int defaultValue) {
+        Integer value = shorts.get(keyId);
+
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @return whether there are any geographic or projected coordinate system keys
+     */
+    boolean hasCoordinateSystem() {
+        for (Integer keyId : keyIds()) {
+            if (keyId >= GEOGRAPHIC_TYPE && keyId < VERTICAL_CS_TYPE) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return "EPSG:n", the WKT of a user-defined coordinate system, or null if there is no
+     *         coordinate system or it can't be described
+     */
+    String getSrs() {
+        int model = getShort(GT_MODEL_TYPE, 0);
+        int projectedType = getShort(PROJECTED_CS_TYPE, 0);
+        int geographicType = getShort(GEOGRAPHIC_TYPE, 0);
+
+        if (projectedType != 0 && projectedType != USER_DEFINED) {
+            return "EPSG:" + projectedType;
+        }
+
+        if (model == MODEL_PROJECTED || projectedType == USER_DEFINED) {
+            return projcs();
+        }
+
+        if (geographicType != 0 && geographicType != USER_DEFINED) {
+            return "EPSG:" + geographicType;
+        }
+
+        if (model == MODEL_GEOGRAPHIC || geographicType == USER_DEFINED) {
+            return geogcs();
+        }
+
+        return null;
+    }
+
+    // =========================================================================
+
+    private String projcs() {
+        String geogcs = geogcs();
+        String projection = projection();
+        String unit = unit(getShort(PROJ_LINEAR_UNITS, METRE), PROJ_LINEAR_UNIT_SIZE);
+
+        if (geogcs == null || projection == null || unit == null) {
+            return null;
+        }
+
+        String name = asciis.containsKey(PCS_CITATION) ? asciis.get(PCS_CITATION) : asciis
+                .get(GT_CITATION);
+
+        return "PROJCS[" + quote(name == null ? "unnamed" : name) + "," + geogcs + "," + projection
+                + "," + unit + "]";
+    }
+
+    /**
+     * @return the GEOGCS of a user-defined geographic coordinate system, or null if it isn't fully
+     *         given by its keys
+     */
+    private String geogcs() {
+        int geographicType = getShort(GEOGRAPHIC_TYPE, USER_DEFINED);
+        Double semiMajor = doubles.get(GEOG_SEMI_MAJOR_AXIS);
+        Double semiMinor = doubles.get(GEOG_SEMI_MINOR_AXIS);
+        Double inverseFlattening = doubles.get(GEOG_INV_FLATTENING);
+        int primeMeridian = getShort(GEOG_PRIME_MERIDIAN, USER_DEFINED);
+        String angularUnit = unit(getShort(GEOG_ANGULAR_UNITS, DEGREE), GEOG_ANGULAR_UNIT_SIZE);
+
+        if (geographicType != USER_DEFINED || semiMajor == null
+                || (semiMinor == null && inverseFlattening == null) || angularUnit == null
+                || getShort(GEOG_LINEAR_UNITS, METRE) != METRE
+                || (primeMeridian != USER_DEFINED && primeMeridian != GREENWICH)) {
+            return null;
+        }
+
+        if (inverseFlattening == null) {
+            // 0 for a sphere
+            inverseFlattening = semiMinor.equals(semiMajor) ? 0 : semiMajor / (semiMajor - semiMinor);
+        }
+
+        // GDAL writes e.g. "GCS Name = Moon 2000|Datum = D_Moon_2000|Ellipsoid = Moon_2000_IAU_IAG|..."
+        Map<String, String> names = citationNames(asciis.get(GEOG_CITATION));
+        Double primeMeridianLong = doubles.get(GEOG_PRIME_MERIDIAN_LONG);
+
+        return "GEOGCS[" + quote(names.get("GCS Name")) + ",DATUM[" + quote(names.get("Datum"))
+                + ",SPHEROID[" + quote(names.get("Ellipsoid")) + "," + number(semiMajor) + ","
+                + number(inverseFlattening) + "]],PRIMEM["
+                + quote(primeMeridian == GREENWICH ? "Greenwich" : names.get("Primem")) + ","
+                + number(primeMeridianLong == null ? 0 : primeMeridianLong) + "]," + angularUnit + "]";
+    }
+
+    /**
+     * @return the PROJECTION and PARAMETERs, or null if the projection isn't one we know. Angles are
+     *         in the geographic CS's angular unit, as in WKT.
+     */
+    private String projection() {
+        double originLong = first(0, PROJ_NAT_ORIGIN_LONG, PROJ_FALSE_ORIGIN_LONG, PROJ_CENTER_LONG);
+        double originLat = first(0, PROJ_NAT_ORIGIN_LAT, PROJ_FALSE_ORIGIN_LAT, PROJ_CENTER_LAT);
+        double scale = first(1, PROJ_SCALE_AT_NAT_ORIGIN, PROJ_SCALE_AT_CENTER);
+        double standardParallel1 = first(0, PROJ_STD_PARALLEL_1);
+        double standardParallel2 = first(0, PROJ_STD_PARALLEL_2);
+        double falseEasting = first(0, PROJ_FALSE_EASTING, PROJ_FALSE_ORIGIN_EASTING,
+                PROJ_CENTER_EASTING);
+        double falseNorthing = first(0, PROJ_FALSE_NORTHING, PROJ_FALSE_ORIGIN_NORTHING,
+                PROJ_CENTER_NORTHING);
+
+        StringBuilder wkt = new StringBuilder();
+
+        switch (getShort(PROJ_COORD_TRANS, 0)) {
+        case CT_TRANSVERSE_MERCATOR:
+            projection(wkt, "Transverse_Mercator");
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", originLong);
+            parameter(wkt, "scale_factor", scale);
+            break;
+        case CT_MERCATOR:
+            if (doubles.containsKey(PROJ_STD_PARALLEL_1)) {
+                projection(wkt, "Mercator_2SP");
+                parameter(wkt, "standard_parallel_1", standardParallel1);
+                parameter(wkt, "central_meridian", originLong);
+            } else {
+                projection(wkt, "Mercator_1SP");
+                parameter(wkt, "central_meridian", originLong);
+                parameter(wkt, "scale_factor", scale);
+            }
+            break;
+        case CT_LAMBERT_CONF_CONIC_2SP:
+            projection(wkt, "Lambert_Conformal_Conic_2SP");
+            parameter(wkt, "standard_parallel_1", standardParallel1);
+            parameter(wkt, "standard_parallel_2", standardParallel2);
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", originLong);
+            break;
+        case CT_LAMBERT_CONF_CONIC_1SP:
+            projection(wkt, "Lambert_Conformal_Conic_1SP");
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", originLong);
+            parameter(wkt, "scale_factor", scale);
+            break;
+        case CT_LAMBERT_AZIM_EQUAL_AREA:
+            projection(wkt, "Lambert_Azimuthal_Equal_Area");
+            parameter(wkt, "latitude_of_center", originLat);
+            parameter(wkt, "longitude_of_center", originLong);
+            break;
+        case CT_ALBERS_EQUAL_AREA:
+            projection(wkt, "Albers_Conic_Equal_Area");
+            parameter(wkt, "standard_parallel_1", standardParallel1);
+            parameter(wkt, "standard_parallel_2", standardParallel2);
+            parameter(wkt, "latitude_of_center", originLat);
+            parameter(wkt, "longitude_of_center", originLong);
+            break;
+        case CT_AZIMUTHAL_EQUIDISTANT:
+            projection(wkt, "Azimuthal_Equidistant");
+            parameter(wkt, "latitude_of_center", originLat);
+            parameter(wkt, "longitude_of_center", originLong);
+            break;
+        case CT_STEREOGRAPHIC:
+        case CT_OBLIQUE_STEREOGRAPHIC:
+            projection(wkt, getShort(PROJ_COORD_TRANS, 0) == CT_STEREOGRAPHIC ? "Stereographic"
+                    : "Oblique_Stereographic");
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", originLong);
+            parameter(wkt, "scale_factor", scale);
+            break;
+        case CT_POLAR_STEREOGRAPHIC:
+            projection(wkt, "Polar_Stereographic");
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", first(originLong, PROJ_STRAIGHT_VERT_POLE_LONG));
+            parameter(wkt, "scale_factor", scale);
+            break;
+        case CT_EQUIRECTANGULAR:
+            projection(wkt, "Equirectangular");
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", originLong);
+            parameter(wkt, "standard_parallel_1", standardParallel1);
+            break;
+        case CT_CASSINI_SOLDNER:
+            projection(wkt, "Cassini_Soldner");
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", originLong);
+            break;
+        case CT_ORTHOGRAPHIC:
+            projection(wkt, "Orthographic");
+            parameter(wkt, "latitude_of_origin", originLat);
+            parameter(wkt, "central_meridian", originLong);
+            break;
+        case CT_SINUSOIDAL:
+            projection(wkt, "Sinusoidal");
+            parameter(wkt, "longitude_of_center", originLong);
+            break;
+        default:
+            return null;
+        }
+
+        parameter(wkt, "false_easting", falseEasting);
+        parameter(wkt, "false_northing", falseNorthing);
+
+        return wkt.toString();
+    }
+
+    // =========================================================================
+
+    private Iterable<Integer> keyIds() {
+        Map<Integer, Object> all = new HashMap<Integer, Object>(shorts);
+        all.putAll(doubles);
+        all.putAll(asciis);
+
+        return all.keySet();
+    }
+
+    /**
+     * @return the value of the first of the keys there is, or the default - GeoTIFF writers don't
+     *         agree on which of the similar keys to use for a projection
+     */
+    private double first(double defaultValue, int... keyIds) {
+        for (int keyId : keyIds) {
+            if (doubles.containsKey(keyId)) {
+                return doubles.get(keyId);
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * @return the UNIT of an EPSG unit code, or of a user-defined unit of the size given by the
+     *         <code>sizeKeyId</code> key; null if it's neither
+     */
+    private String unit(int code, int sizeKeyId) {
+        switch (code) {
+        case METRE:
+            return "UNIT[\"metre\",1]";
+        case FOOT:
+            return "UNIT[\"foot\",0.3048]";
+        case US_SURVEY_FOOT:
+            return "UNIT[\"US survey foot\",0.304800609601219]";
+        case RADIAN:
+            return "UNIT[\"radian\",1]";
+        case DEGREE:
+            return "UNIT[\"degree\",0.0174532925199433]";
+        case USER_DEFINED:
+            Double size = doubles.get(sizeKeyId);
+            return size == null ? null : "UNIT[\"unknown\"," + number(size) + "]";
+        default:
+            return null;
+        }
+    }
+
+    private static Map<String, String> citationNames(String citation) {
+        Map<String, String> names = new HashMap<String, String>();
+
+        if (citation != null && citation.contains("=")) {
+            for (String part : citation.split("\\|")) {
+                int equals = part.indexOf('=');
+
+                if (equals > 0) {
+                    names.put(part.substring(0, equals).trim(), part.substring(equals + 1).trim());
+                }
+            }
+        } else if (citation != null) {
+            names.put("GCS Name", citation.trim());
+        }
+
+        for (String name : new String[] { "GCS Name", "Datum", "Ellipsoid", "Primem" }) {
+            if (names.get(name) == null || names.get(name).isEmpty()) {
+                names.put(name, "unknown");
+            }
+        }
+
+        return names;
+    }
+
+    private static void projection(StringBuilder wkt, String name) {
+        wkt.append("PROJECTION[").append(quote(name)).append("]");
+    }
+
+    private static void parameter(StringBuilder wkt, String name, double value) {
+        wkt.append(",PARAMETER[").append(quote(name)).append(",").append(number(value)).append("]");
+    }
+
+    private static String quote(String name) {
+        // WKT has no way to escape a quote
+        return "\"" + name.replace('"', '\'') + "\"";
+    }
+
+    /**
+     * @return the number without a trailing ".0", as GDAL would write it
+     */
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,409 @@
+package com.topcoder.nasa.job.binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * What {@link VrtBuilderExeTask} needs to know about a GeoTIFF: its size, band layout and where it
+ * sits - read from the header and first IFD of a classic TIFF or a BigTIFF.
+ * <p/>
+ * Only the few regions of the file that hold the header, the IFD and the values of the tags we care
+ * about are memory-mapped and looked at, so the size of the image itself doesn't matter.
+ *
+ */
+public class GeoTiffHeader {
+    // TIFF tags
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int ROWS_PER_STRIP = 278;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int TILE_WIDTH = 322;
+    private static final int TILE_LENGTH = 323;
+    private static final int SAMPLE_FORMAT = 339;
+
+    // GeoTIFF tags
+    private static final int MODEL_PIXEL_SCALE = 33550;
+    private static final int MODEL_TIEPOINT = 33922;
+    private static final int MODEL_TRANSFORMATION = 34264;
+    private static final int GEO_KEY_DIRECTORY = 34735;
+    private static final int GEO_DOUBLE_PARAMS = 34736;
+    private static final int GEO_ASCII_PARAMS = 34737;
+    private static final int GDAL_NODATA = 42113;
+
+    private static final int RASTER_PIXEL_IS_POINT = 2;
+
+    // TIFF field types, by the size of their values
+    private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4, 0, 0, 8, 8, 8 };
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_DOUBLE = 12;
+    private static final int TYPE_LONG8 = 16;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File file;
+    private int width;
+    private int height;
+    private int bandCount = 1;
+    private int bitsPerSample = 1;
+    private int sampleFormat = 1;
+    private int blockWidth;
+    private int blockHeight;
+
+    /** GDAL style: origin x, pixel width, row rotation, origin y, column rotation, pixel height */
+    private double[] geoTransform;
+
+    /** e.g. "EPSG:4326", or the WKT of a user-defined coordinate system; null if there is none */
+    private String srs;
+
+    /** Whether the tif has a coordinate system that {@link GeoKeys} can't describe */
+    private boolean unsupportedSrs;
+
+    private String noData;
+
+    // =========================================================================
+
+    private GeoTiffHeader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @throws IOException
+     *             if the file can't be read, is not a TIFF or isn't georeferenced
+     */
+    public static GeoTiffHeader read(File file) throws IOException {
+        GeoTiffHeader header = new GeoTiffHeader(file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            new Reader(randomAccessFile.getChannel()).readInto(header);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (header.width == 0 || header.height == 0) {
+            throw new IOException(file + " has no image size");
+        }
+
+        if (header.geoTransform == null) {
+            throw new IOException(file + " is not georeferenced");
+        }
+
+        if (header.blockWidth == 0) {
+            header.blockWidth = header.width;
+        }
+
+        if (header.blockHeight == 0) {
+            header.blockHeight = header.height;
+        }
+
+        return header;
+    }
+
+    // =========================================================================
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    public int getBlockWidth() {
+        return blockWidth;
+    }
+
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    public double[] getGeoTransform() {
+        return geoTransform.clone();
+    }
+
+    public String getSrs() {
+        return srs;
+    }
+
+    /**
+     * @return true if the tif has a coordinate system, but {@link #getSrs()} can't say which
+     */
+    public boolean hasUnsupportedSrs() {
+        return unsupportedSrs;
+    }
+
+    public String getNoData() {
+        return noData;
+    }
+
+    /**
+     * @return the GDAL name of the band data type, e.g. "Byte" or "Float32"
+     */
+    public String getDataType() {
+        boolean signed = sampleFormat == 2;
+        boolean floatingPoint = sampleFormat == 3;
+
+        switch (bitsPerSample) {
+        case 8:
+            return "Byte";
+        case 16:
+            return signed ? "Int16" : "UInt16";
+        case 32:
+            return floatingPoint ? "Float32" : signed ? "Int32" : "UInt32";
+        case 64:
+            return "Float64";
+        default:
+            return "Byte";
+        }
+    }
+
+    // =========================================================================
+
+    /**
+     * Walks the TIFF structure.
+     */
+    private static class Reader {
+        private final FileChannel channel;
+        private ByteOrder byteOrder;
+        private boolean bigTiff;
+
+        /** Raw tiepoint and pixel scale, combined once both are known */
+        private double[] tiepoint;
+        private double[] pixelScale;
+
+        /** Raw GeoKey directory and the params it points into, read once all are known */
+        private long[] geoKeyDirectory;
+        private double[] geoDoubleParams;
+        private String geoAsciiParams;
+        private int rasterType;
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void readInto(GeoTiffHeader header) throws IOException {
+            ByteBuffer start = map(0, 16);
+
+            if (start.get(0) == 'I' && start.get(1) == 'I') {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
+            } else if (start.get(0) == 'M' && start.get(1) == 'M') {
+                byteOrder = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new IOException(header.file + " is not a TIFF");
+            }
+
+            start.order(byteOrder);
+
+            int version = start.getShort(2) & 0xffff;
+
+            if (version == 43) {
+                bigTiff = true;
+            } else if (version != 42) {
+                throw new IOException(header.file + " is not a TIFF (version " + version + ")");
+            }
+
+            long ifdOffset = bigTiff ? start.getLong(8) : start.getInt(4) & 0xffffffffL;
+            long entryCount = bigTiff ? map(ifdOffset, 8).getLong(0)
+                    : map(ifdOffset, 2).getShort(0) & 0xffff;
+            int entrySize = bigTiff ? 20 : 12;
+            ByteBuffer entries = map(ifdOffset + (bigTiff ? 8 : 2), (int) (entryCount * entrySize));
+
+            for (int i = 0; i < entryCount; i++) {
+                readEntry(header, entries, i * entrySize);
+            }
+
+            if (geoKeyDirectory != null) {
+                GeoKeys geoKeys = new GeoKeys(geoKeyDirectory, geoDoubleParams, geoAsciiParams);
+
+                rasterType = geoKeys.getShort(GeoKeys.GT_RASTER_TYPE, 0);
+                header.srs = geoKeys.getSrs();
+                header.unsupportedSrs = header.srs == null && geoKeys.hasCoordinateSystem();
+            }
+
+            if (header.geoTransform == null && tiepoint != null && pixelScale != null) {
+                header.geoTransform = new double[] { tiepoint[3] - tiepoint[0] * pixelScale[0],
+                        pixelScale[0], 0, tiepoint[4] + tiepoint[1] * pixelScale[1], 0,
+                        -pixelScale[1] };
+            }
+
+            if (header.geoTransform != null && rasterType == RASTER_PIXEL_IS_POINT) {
+                // the coordinates are of pixel centres; GDAL's are of pixel corners
+                header.geoTransform[0] -= header.geoTransform[1] / 2;
+                header.geoTransform[3] -= header.geoTransform[5] / 2;
+            }
+        }
+
+        private void readEntry(GeoTiffHeader header, ByteBuffer entries, int offset) throws IOException {
+            int tag = entries.getShort(offset) & 0xffff;
+            int type = entries.getShort(offset + 2) & 0xffff;
+            long count = bigTiff ? entries.getLong(offset + 4) : entries.getInt(offset + 4) & 0xffffffffL;
+
+            switch (tag) {
+            case IMAGE_WIDTH:
+                header.width = (int) readLongs(entries, offset, type, count)[0];
+                break;
+            case IMAGE_LENGTH:
+                header.height = (int) readLongs(entries, offset, type, count)[0];
+                break;
+            case BITS_PER_SAMPLE:
+                header.bitsPerSample = (int) readLongs(entries, offset, type, count)[0];
+                break;
+            case SAMPLES_PER_PIXEL:
+                header.bandCount = (int) readLongs(entries, offset, type, count)[0];
+                break;
+            case SAMPLE_FORMAT:
+                header.sampleFormat = (int) readLongs(entries, offset, type, count)[0];
+                break;
+            case TILE_WIDTH:
+                header.blockWidth = (int) readLongs(entries, offset, type, count)[0];
+                break;
+            case TILE_LENGTH:
+            case ROWS_PER_STRIP:
+                // a tiled TIFF has no RowsPerStrip, and a stripped one has no TileLength
+                header.blockHeight = (int) Math.min(readLongs(entries, offset, type, count)[0],
+                        Integer.MAX_VALUE);
+                break;
+            case MODEL_PIXEL_SCALE:
+                pixelScale = readDoubles(entries, offset, type, count);
+                break;
+            case MODEL_TIEPOINT:
+                tiepoint = readDoubles(entries, offset, type, count);
+                break;
+            case MODEL_TRANSFORMATION:
+                double[] matrix = readDoubles(entries, offset, type, count);
+
+                header.geoTransform = new double[] { matrix[3], matrix[0], matrix[1], matrix[7],
+                        matrix[4], matrix[5] };
+                break;
+            case GEO_KEY_DIRECTORY:
+                geoKeyDirectory = readLongs(entries, offset, type, count);
+                break;
+            case GEO_DOUBLE_PARAMS:
+                geoDoubleParams = readDoubles(entries, offset, type, count);
+                break;
+            case GEO_ASCII_PARAMS:
+                geoAsciiParams = readAscii(entries, offset, type, count);
+                break;
+            case GDAL_NODATA:
+                String noData = readAscii(entries, offset, type, count);
+                header.noData = noData == null ? null : noData.trim();
+                break;
+            default:
+                break;
+            }
+        }
+
+        // =====================================================================
+
+        /**
+         * @return the buffer holding the entry's values: either the entry itself, or the mapped
+         *         region it points at
+         */
+        private ByteBuffer values(ByteBuffer entries, int offset, int type, long count, int[] position)
+                throws IOException {
+            int typeSize = type < TYPE_SIZES.length ? TYPE_SIZES[type] : 0;
+
+            if (typeSize == 0) {
+                throw new IOException("Unknown TIFF field type " + type);
+            }
+
+            long size = typeSize * count;
+            int valueOffset = offset + (bigTiff ? 12 : 8);
+
+            if (size <= (bigTiff ? 8 : 4)) {
+                position[0] = valueOffset;
+                return entries;
+            }
+
+            long fileOffset = bigTiff ? entries.getLong(valueOffset)
+                    : entries.getInt(valueOffset) & 0xffffffffL;
+
+            position[0] = 0;
+            return map(fileOffset, (int) size);
+        }
+
+        private long[] readLongs(ByteBuffer entries, int offset, int type, long count) throws IOException {
+            int[] position = new int[1];
+            ByteBuffer buffer = values(entries, offset, type, count, position);
+            long[] values = new long[(int) count];
+
+            for (int i = 0; i < count; i++) {
+                switch (type) {
+                case TYPE_SHORT:
+                    values[i] = buffer.getShort(position[0] + i * 2) & 0xffff;
+                    break;
+                case TYPE_LONG:
+                    values[i] = buffer.getInt(position[0] + i * 4) & 0xffffffffL;
+                    break;
+                case TYPE_LONG8:
+                    values[i] = buffer.getLong(position[0] + i * 8);
+                    break;
+                default:
+                    values[i] = buffer.get(position[0] + i) & 0xff;
+                    break;
+                }
+            }
+
+            return values;
+        }
+
+        private double[] readDoubles(ByteBuffer entries, int offset, int type, long count) throws IOException {
+            if (type != TYPE_DOUBLE) {
+                throw new IOException("Expected doubles, got TIFF field type " + type);
+            }
+
+            int[] position = new int[1];
+            ByteBuffer buffer = values(entries, offset, type, count, position);
+            double[] values = new double[(int) count];
+
+            for (int i = 0; i < count; i++) {
+                values[i] = buffer.getDouble(position[0] + i * 8);
+            }
+
+            return values;
+        }
+
+        private String readAscii(ByteBuffer entries, int offset, int type, long count) throws IOException {
+            if (type != TYPE_ASCII) {
+                return null;
+            }
+
+            int[] position = new int[1];
+            ByteBuffer buffer = values(entries, offset, type, count, position);
+            byte[] bytes = new byte[(int) count];
+
+            for (int i = 0; i < count; i++) {
+                bytes[i] = buffer.get(position[0] + i);
+            }
+
+            // NUL terminated
+            return new String(bytes, ASCII).replace("\0", "");
+        }
+
+        private ByteBuffer map(long position, int size) throws IOException {
+            if (position < 0 || position + size > channel.size()) {
+                throw new IOException("TIFF structure points outside the file");
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+
+            return buffer.order(byteOrder == null ? ByteOrder.BIG_ENDIAN : byteOrder);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.topcoder.nasa.job.binary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.escape.Escaper;
+import com.google.common.xml.XmlEscapers;
+import com.topcoder.nasa.job.JobPhase;
+import com.topcoder.nasa.job.LmmpJob;
+
+/**
+ * Does what {@link ExeTask_gdalbuildvrt} does, without the gdalbuildvrt process: reads the
+ * {@link GeoTiffHeader} of each of the job's tifs (in parallel) and writes "mosaic.vrt" itself.
+ * <p/>
+ * The mosaic is put together the way gdalbuildvrt does by default: it covers the extent of all the
+ * tifs at their average resolution, and tifs whose band count, data type or SRS differ from the
+ * first one's are left out (with a warning). Tifs that overlap are drawn in file name order.
+ * <p/>
+ * The VRT's SRS is the tifs' EPSG code, or - for the user-defined coordinate systems lunar tifs
+ * have - the WKT {@link GeoKeys} makes of their GeoKeys. Only jobs whose tifs have a coordinate
+ * system it can't describe (e.g. an unusual projection) are handed to the {@link #fallback} - the
+ * gdalbuildvrt process, or its in-process {@link GdalTask_gdalbuildvrt} counterpart.
+ *
+ */
+public class VrtBuilderExeTask implements ExeTask {
+    private static final Logger LOG = LoggerFactory.getLogger(VrtBuilderExeTask.class);
+
+    private static final Escaper XML = XmlEscapers.xmlAttributeEscaper();
+
+    private static final ExecutorService BUILD_EXECUTOR = Executors
+            .newCachedThreadPool(daemonThreads("vrt-builder-"));
+
+    /** Reads the headers. */
+    private static final ExecutorService HEADER_EXECUTOR = Executors.newFixedThreadPool(Runtime
+            .getRuntime().availableProcessors(), daemonThreads("vrt-header-"));
+
+    private ExeTaskCompletedListener runCompleteListener;
+
+    /** For the jobs we can't describe the coordinate system of. */
+    private ExeTask fallback;
+
+    // =========================================================================
+
+    public VrtBuilderExeTask() {
+        this(new ExeTask_gdalbuildvrt());
+    }
+
+    public VrtBuilderExeTask(ExeTask fallback) {
+        this.fallback = fallback;
+    }
+
+    // =========================================================================
+
+    public void runTaskFor(final LmmpJob lmmpJob) {
+        BUILD_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                boolean built = false;
+                boolean handedOver = false;
+
+                try {
+                    if (!buildVrtFor(lmmpJob)) {
+                        LOG.info("LmmpJob UUID {}, tifs have an unsupported SRS: running gdalbuildvrt",
+                                lmmpJob.getUuid());
+
+                        fallback.runTaskFor(lmmpJob);
+                        handedOver = true;
+                        return;
+                    }
+
+                    built = true;
+
+                    LOG.info("LmmpJob UUID {}, wrote {} in {}ms", new Object[] { lmmpJob.getUuid(),
+                            lmmpJob.getJobVrtFile(), System.currentTimeMillis() - start });
+                } catch (InterruptedException e) {
+                    // we're shutting down - but the job still has to come to an end, like below
+                    LOG.warn("LmmpJob UUID {}, interrupted while building {}", lmmpJob.getUuid(),
+                            lmmpJob.getJobVrtFile());
+
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    LOG.error("LmmpJob UUID {}, unable to build {}", new Object[] { lmmpJob.getUuid(),
+                            lmmpJob.getJobVrtFile(), e });
+                } finally {
+                    // the fallback tells the listener itself
+                    if (!handedOver) {
+                        if (!built) {
+                            // like a failed gdalbuildvrt: what comes next finds no mosaic - rather
+                            // than half of one - and fails the job
+                            deleteVrtOf(lmmpJob);
+                        }
+
+                        runCompleteListener.onTaskCompleted(lmmpJob);
+                    }
+                }
+            }
+        });
+    }
+
+    public void setRunCompleteListener(ExeTaskCompletedListener runCompleteListener) {
+        this.runCompleteListener = runCompleteListener;
+        fallback.setRunCompleteListener(runCompleteListener);
+    }
+
+    public JobPhase getPhase() {
+        return JobPhase.GDALBUILDVRT;
+    }
+
+    // =========================================================================
+
+    private static void deleteVrtOf(LmmpJob lmmpJob) {
+        File vrtFile = lmmpJob.getJobVrtFile();
+
+        if (vrtFile.exists() && !vrtFile.delete()) {
+            LOG.error("LmmpJob UUID {}, unable to delete {}", lmmpJob.getUuid(), vrtFile);
+        }
+    }
+
+    /**
+     * @return false if the VRT wasn't written because the tifs have an SRS we can't describe
+     */
+    private boolean buildVrtFor(LmmpJob lmmpJob) throws IOException, InterruptedException {
+        List<GeoTiffHeader> headers = readHeaders(lmmpJob.getFinalPath());
+
+        if (headers.isEmpty()) {
+            throw new IllegalStateException("No usable tifs in " + lmmpJob.getFinalPath());
+        }
+
+        GeoTiffHeader reference = headers.get(0);
+
+        if (reference.hasUnsupportedSrs()) {
+            return false;
+        }
+
+        double minX = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        double totalResX = 0;
+        double totalResY = 0;
+
+        for (GeoTiffHeader header : headers) {
+            double[] geoTransform = header.getGeoTransform();
+
+            minX = Math.min(minX, geoTransform[0]);
+            maxX = Math.max(maxX, geoTransform[0] + header.getWidth() * geoTransform[1]);
+            maxY = Math.max(maxY, geoTransform[3]);
+            minY = Math.min(minY, geoTransform[3] + header.getHeight() * geoTransform[5]);
+            totalResX += geoTransform[1];
+            totalResY += -geoTransform[5];
+        }
+
+        double resX = totalResX / headers.size();
+        double resY = totalResY / headers.size();
+        int width = (int) (0.5 + (maxX - minX) / resX);
+        int height = (int) (0.5 + (maxY - minY) / resY);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(lmmpJob.getJobVrtFile()),
+                Charsets.UTF_8);
+
+        try {
+            writer.write("<VRTDataset rasterXSize=\"" + width + "\" rasterYSize=\"" + height + "\">\n");
+
+            if (reference.getSrs() != null) {
+                writer.write("  <SRS>" + XML.escape(reference.getSrs()) + "</SRS>\n");
+            }
+
+            writer.write("  <GeoTransform>" + minX + ", " + resX + ", 0, " + maxY + ", 0, " + -resY
+                    + "</GeoTransform>\n");
+
+            for (int band = 1; band <= reference.getBandCount(); band++) {
+                writeBand(writer, band, reference, headers, minX, maxY, resX, resY);
+            }
+
+            writer.write("</VRTDataset>\n");
+        } finally {
+            writer.close();
+        }
+
+        return true;
+    }
+
+    private void writeBand(Writer writer, int band, GeoTiffHeader reference, List<GeoTiffHeader> headers,
+            double minX, double maxY, double resX, double resY) throws IOException {
+        String noData = reference.getNoData();
+        String sourceElement = noData == null ? "SimpleSource" : "ComplexSource";
+
+        writer.write("  <VRTRasterBand dataType=\"" + reference.getDataType() + "\" band=\"" + band
+                + "\">\n");
+
+        if (noData != null) {
+            writer.write("    <NoDataValue>" + XML.escape(noData) + "</NoDataValue>\n");
+        }
+
+        for (GeoTiffHeader header : headers) {
+            double[] geoTransform = header.getGeoTransform();
+
+            writer.write("    <" + sourceElement + ">\n");
+            writer.write("      <SourceFilename relativeToVRT=\"1\">"
+                    + XML.escape(header.getFile().getName()) + "</SourceFilename>\n");
+            writer.write("      <SourceBand>" + band + "</SourceBand>\n");
+            writer.write("      <SourceProperties RasterXSize=\"" + header.getWidth()
+                    + "\" RasterYSize=\"" + header.getHeight() + "\" DataType=\""
+                    + header.getDataType() + "\" BlockXSize=\"" + header.getBlockWidth()
+                    + "\" BlockYSize=\"" + header.getBlockHeight() + "\" />\n");
+            writer.write("      <SrcRect xOff=\"0\" yOff=\"0\" xSize=\"" + header.getWidth()
+                    + "\" ySize=\"" + header.getHeight() + "\" />\n");
+            writer.write("      <DstRect xOff=\"" + (geoTransform[0] - minX) / resX + "\" yOff=\""
+                    + (maxY - geoTransform[3]) / resY + "\" xSize=\"" + header.getWidth()
+                    * geoTransform[1] / resX + "\" ySize=\"" + header.getHeight()
+                    * -geoTransform[5] / resY + "\" />\n");
+
+            if (noData != null) {
+                writer.write("      <NODATA>" + XML.escape(noData) + "</NODATA>\n");
+            }
+
+            writer.write("    </" + sourceElement + ">\n");
+        }
+
+        writer.write("  </VRTRasterBand>\n");
+    }
+
+    // =========================================================================
+
+    /**
+     * @return the headers of the tifs to go into the mosaic, in file name order
+     */
+    private List<GeoTiffHeader> readHeaders(File finalPath) throws InterruptedException {
+        File[] files = finalPath.listFiles();
+
+        if (files == null) {
+            throw new IllegalStateException("finalPath does not exist?");
+        }
+
+        Arrays.sort(files);
+
+        List<Future<GeoTiffHeader>> futures = new ArrayList<Future<GeoTiffHeader>>();
+
+        for (final File file : files) {
+            if (file.getName().toLowerCase().endsWith(".tif")) {
+                futures.add(HEADER_EXECUTOR.submit(new Callable<GeoTiffHeader>() {
+                    public GeoTiffHeader call() throws IOException {
+                        return GeoTiffHeader.read(file);
+                    }
+                }));
+            }
+        }
+
+        List<GeoTiffHeader> headers = new ArrayList<GeoTiffHeader>();
+
+        for (Future<GeoTiffHeader> future : futures) {
+            GeoTiffHeader header;
+
+            try {
+                header = future.get();
+            } catch (ExecutionException e) {
+                LOG.warn("Leaving out of the mosaic: {}", e.getCause().getMessage());
+                continue;
+            }
+
+            if (isCompatible(header, headers.isEmpty() ? header : headers.get(0))) {
+                headers.add(header);
+            }
+        }
+
+        return headers;
+    }
+
+    private boolean isCompatible(GeoTiffHeader header, GeoTiffHeader reference) {
+        double[] geoTransform = header.getGeoTransform();
+        String problem = null;
+
+        if (geoTransform[2] != 0 || geoTransform[4] != 0) {
+            problem = "it is rotated";
+        } else if (geoTransform[1] <= 0 || geoTransform[5] >= 0) {
+            problem = "it isn't north up";
+        } else if (header.getBandCount() != reference.getBandCount()) {
+            problem = "it has " + header.getBandCount() + " bands, not " + reference.getBandCount();
+        } else if (!header.getDataType().equals(reference.getDataType())) {
+            problem = "its data type is " + header.getDataType() + ", not " + reference.getDataType();
+        } else if (header.getSrs() == null ? reference.getSrs() != null : !header.getSrs().equals(
+                reference.getSrs())) {
+            problem = "its SRS is " + header.getSrs() + ", not " + reference.getSrs();
+        }
+
+        if (problem != null) {
+            LOG.warn("Leaving {} out of the mosaic: {}", header.getFile(), problem);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static ThreadFactory daemonThreads(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        };
+    }
+}
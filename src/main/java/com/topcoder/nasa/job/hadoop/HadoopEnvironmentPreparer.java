@@ -10,10 +10,16 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.topcoder.nasa.image.FileSystemImagePreparer;
+import com.topcoder.nasa.job.LmmpJob;
+
 /**
- * Prepares the HDFS environment for this run (in exactly the same way the start.sh script used to.)
+ * Prepares the HDFS environment for a job's run (in much the same way the start.sh script used to.)
+ * <p/>
+ * The distributed cache is shared by all jobs and is only created if missing; the input and output paths are per job
+ * - see {@link LmmpJob#getHdfsInputPath()} and {@link LmmpJob#getHdfsOutputPath()}.
  * <p/>
- * See {@link #doPrepareEnvironment()}.
+ * See {@link #doPrepareEnvironment(LmmpJob)}.
  */
 @Component
 public class HadoopEnvironmentPreparer {
@@ -22,10 +28,13 @@ public class HadoopEnvironmentPreparer {
     @Autowired
     private FileSystem fileSystem;
 
-    public boolean go() {
-        LOG.info("Preparing Hadoop HDFS environment for new job...");
+    @Autowired
+    private FileSystemImagePreparer fileSystemImagePreparer;
+
+    public boolean go(LmmpJob job) {
+        LOG.info("Preparing Hadoop HDFS environment for job {}...", job.getUuid());
         try {
-            doPrepareEnvironment();
+            doPrepareEnvironment(job);
             LOG.info("Done preparing Hadoop HDFS environment!");
             return true;
         } catch (ConnectException ce) {
@@ -35,13 +44,37 @@ public class HadoopEnvironmentPreparer {
             throw new IllegalStateException("Exception while cleaning up Hadoop environment", e);
         }
     }
+
     // TODO - change hardcoded paths
-    private void doPrepareEnvironment() throws IOException {
-        LOG.info("Deleting /output recursively from HDFS");
-        fileSystem.delete(new Path("/output"), true);
+    private void doPrepareEnvironment(LmmpJob job) throws IOException {
+        prepareDistributedCache();
 
-        LOG.info("Deleting /distcache recursively from HDFS");
-        fileSystem.delete(new Path("/distcache"), true);
+        Path outputPath = new Path(job.getHdfsOutputPath());
+        LOG.info("Deleting {} recursively from HDFS", outputPath);
+        fileSystem.delete(outputPath, true);
+
+        Path inputPath = new Path(job.getHdfsInputPath());
+        LOG.info("Deleting {} recursively from HDFS", inputPath);
+        fileSystem.delete(inputPath, true);
+
+        LOG.info("Creating {} in HDFS", inputPath);
+        fileSystem.mkdirs(inputPath);
+
+        LOG.info("Putting part file into {} in HDFS", inputPath);
+        fileSystem.copyFromLocalFile(new Path(fileSystemImagePreparer.getPartFileFor(job).getAbsolutePath()),
+                inputPath);
+    }
+
+    /**
+     * Puts CustomPartitioner.jar into /distcache unless a previous job already did. Jobs that are running use it, so
+     * it is never deleted here.
+     */
+    private synchronized void prepareDistributedCache() throws IOException {
+        Path jar = new Path("/distcache/CustomPartitioner.jar");
+
+        if (fileSystem.exists(jar)) {
+            return;
+        }
 
         LOG.info("Creating /distcache in HDFS");
         fileSystem.mkdirs(new Path("/distcache"));
@@ -50,14 +83,17 @@ public class HadoopEnvironmentPreparer {
         fileSystem.copyFromLocalFile(new Path(
                 "/home/hadoop/demo/CustomPartitioner/CustomPartitioner.jar"),
                 new Path("/distcache"));
+    }
 
-        LOG.info("Deleting /url recursively from HDFS");
-        fileSystem.delete(new Path("/url"), true);
-
-        LOG.info("Creating /url in HDFS");
-        fileSystem.mkdirs(new Path("/url"));
-
-        LOG.info("Putting part-000000 into HDFS");
-        fileSystem.copyFromLocalFile(new Path("/home/hadoop/demo/part-000000"), new Path("/url"));
+    /**
+     * Removes the job's input and output paths from HDFS once Hadoop is done with them.
+     */
+    public void cleanUp(LmmpJob job) {
+        try {
+            fileSystem.delete(new Path(job.getHdfsInputPath()), true);
+            fileSystem.delete(new Path(job.getHdfsOutputPath()), true);
+        } catch (IOException e) {
+            LOG.error("Exception while cleaning up HDFS for job {}", job.getUuid(), e);
+        }
     }
 }
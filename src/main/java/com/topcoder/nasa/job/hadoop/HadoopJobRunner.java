@@ -9,13 +9,18 @@ import org.apache.hadoop.streaming.StreamJob;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.topcoder.nasa.image.FileSystemImagePreparer;
 import com.topcoder.nasa.job.LmmpJob;
 
 /**
  * Runs the Hadoop Streaming job for the mosaic generation. Note that this class has its roots in a
  * script "start.sh" and pretty much mimics EXACTLY what that script did.
+ * <p/>
+ * If {@link #jobEndNotificationUrl} is set, Hadoop calls it with the job id and status when the job
+ * ends, so the {@link HadoopJobTracker} hears of it right away.
  */
 // http://stackoverflow.com/questions/9849776/calling-a-mapreduce-job-from-a-simple-java-program
 // http://stackoverflow.com/questions/12654327/hadoop-streaming-1-0-3-unrecognized-d-command
@@ -26,7 +31,14 @@ public class HadoopJobRunner {
     @Autowired
     private JobClient jobClient;
 
-    public String executeFor(LmmpJob job) {
+    @Autowired
+    private FileSystemImagePreparer fileSystemImagePreparer;
+
+    /** e.g. http://{host}:{port}/{context}/rest/hadoop/job-end - see HadoopJobEndResource */
+    @Value("${hadoop.job-end-notification-url:}")
+    private String jobEndNotificationUrl;
+
+    public RunningJob executeFor(LmmpJob job) {
         try {
             return doExecuteFor(job);
         } catch (Exception e) {
@@ -34,20 +46,22 @@ public class HadoopJobRunner {
         }
     }
 
-    private String doExecuteFor(LmmpJob job) throws IOException {
+    private RunningJob doExecuteFor(LmmpJob job) throws IOException {
         LOG.info("Starting Hadoop job...");
 
         String finalDirectoryName = job.getUuid();
+        String picDirectoryName = fileSystemImagePreparer.getPicDirectoryFor(job).getAbsolutePath();
 
         String[] cli = new String[] { "-mapper", "\"/bin/cat\"",
                 //
-                "-reducer", "\"/bin/sh /home/hadoop/demo/handle.sh " + finalDirectoryName + "\"",
+                "-reducer", "\"/bin/sh /home/hadoop/demo/handle.sh " + finalDirectoryName + " "
+                        + picDirectoryName + "\"",
                 //
-                "-input", "/url",
+                "-input", job.getHdfsInputPath(),
                 //
-                "-output", "/output" };
+                "-output", job.getHdfsOutputPath() };
 
-        final JobConf jobConf = new StreamJob().createJob(cli);
+        JobConf jobConf = new StreamJob().createJob(cli);
 
         jobConf.set("mapred.cache.files", "/distcache/CustomPartitioner.jar");
         jobConf.set("mapred.job.classpath.files", "/distcache/CustomPartitioner.jar");
@@ -59,27 +73,17 @@ public class HadoopJobRunner {
         jobConf.set("mapred.reduce.max.attempts", "1");
         jobConf.set("mapreduce.tasktracker.reduce.tasks.maximum", "1");
 
-        final RunningJob runningJob = jobClient.submitJob(jobConf);
+        if (!jobEndNotificationUrl.isEmpty()) {
+            // Hadoop fills in $jobId and $jobStatus
+            jobConf.setJobEndNotificationURI(jobEndNotificationUrl + "?jobId=$jobId&status=$jobStatus");
+        }
+
+        RunningJob runningJob = jobClient.submitJob(jobConf);
         String jobId = runningJob.getID().toString();
 
+        // progress is logged by the HadoopProgressCollector
         LOG.info("Job has been submitted and assigned id {}", jobId);
 
-        logJobProgressAsync(jobConf, runningJob);
-
-        return jobId;
-    }
-
-    private void logJobProgressAsync(final JobConf jobConf, final RunningJob runningJob) {
-        // this is a cheap hack but it's the only "real" way I could find of
-        // doing this -- log the job
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    jobClient.monitorAndPrintJob(jobConf, runningJob);
-                } catch (Exception e) {
-                    LOG.info("Exception while dumping job status to log?", e);
-                }
-            }
-        }).start();
+        return runningJob;
     }
 }
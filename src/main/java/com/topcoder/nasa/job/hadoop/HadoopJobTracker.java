@@ -0,0 +1,219 @@
+package com.topcoder.nasa.job.hadoop;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.hadoop.mapred.RunningJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.topcoder.nasa.job.LmmpJob;
+
+/**
+ * Keeps track of the Hadoop jobs we have submitted and tells the {@link HadoopJobCompletedListener}
+ * as soon as one of them completes.
+ * <p/>
+ * Each {@link RunningJob} is {@link #track(LmmpJob, RunningJob) registered} once, when it is
+ * submitted, and we hear of its completion in one of two ways, whichever comes first:
+ * <ul>
+ * <li>Hadoop's job-end notification - see {@link HadoopJobRunner} - calling
+ * {@link #onJobEndNotification(String)}</li>
+ * <li>a check of the registered jobs every {@link #completionCheckMillis}, for when notifications
+ * are not configured or get lost. This only asks Hadoop about the jobs we are tracking; the DB is
+ * not involved</li>
+ * </ul>
+ * Any number of Hadoop jobs may be tracked at once. Completions are handled on our own
+ * {@link #trackerExecutor}, so whoever told us about them is not held up.
+ *
+ */
+@Component
+public class HadoopJobTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(HadoopJobTracker.class);
+
+    @Autowired
+    private HadoopEnvironmentPreparer hadoopEnvironmentPreparer;
+
+    @Value("${hadoop.completion-check-millis:5000}")
+    private long completionCheckMillis;
+
+    private HadoopJobCompletedListener hadoopJobCompletedListener;
+
+    /** The jobs running in Hadoop, by Hadoop job id. */
+    private Map<String, TrackedJob> trackedJobs = new ConcurrentHashMap<String, TrackedJob>();
+
+    /** Checks on the {@link #trackedJobs} and handles their completion. */
+    private ScheduledExecutorService trackerExecutor;
+
+    // =============================================================================
+
+    @PostConstruct
+    public void init() {
+        trackerExecutor = Executors.newSingleThreadScheduledExecutor();
+        trackerExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkTrackedJobs();
+            }
+        }, completionCheckMillis, completionCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        trackerExecutor.shutdownNow();
+    }
+
+    // =============================================================================
+
+    /**
+     * Starts tracking a Hadoop job that has just been submitted.
+     */
+    public void track(LmmpJob job, RunningJob runningJob) {
+        String hadoopJobId = runningJob.getID().toString();
+
+        LOG.info("Tracking hadoop job id {} for Lmmp Job {}", hadoopJobId, job.getUuid());
+        trackedJobs.put(hadoopJobId, new TrackedJob(job, runningJob));
+    }
+
+    /**
+     * Called when Hadoop tells us a job has ended. Returns immediately.
+     */
+    public void onJobEndNotification(final String hadoopJobId) {
+        LOG.info("Hadoop says hadoop job id {} has ended", hadoopJobId);
+
+        trackerExecutor.execute(new Runnable() {
+            public void run() {
+                TrackedJob trackedJob = trackedJobs.get(hadoopJobId);
+
+                if (trackedJob == null) {
+                    LOG.info("Not tracking hadoop job id {} (any more)", hadoopJobId);
+                    return;
+                }
+
+                checkCompletion(hadoopJobId, trackedJob);
+            }
+        });
+    }
+
+    /**
+     * @return the Hadoop jobs currently being tracked, by LmmpJob UUID
+     */
+    public Map<String, RunningJob> getRunningJobsByUuid() {
+        Map<String, RunningJob> runningJobs = new HashMap<String, RunningJob>();
+
+        for (TrackedJob trackedJob : trackedJobs.values()) {
+            runningJobs.put(trackedJob.job.getUuid(), trackedJob.runningJob);
+        }
+
+        return runningJobs;
+    }
+
+    // =============================================================================
+
+    private void checkTrackedJobs() {
+        for (Map.Entry<String, TrackedJob> entry : trackedJobs.entrySet()) {
+            checkCompletion(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Only ever called on the {@link #trackerExecutor}, so a job can't complete twice.
+     * <p/>
+     * Once Hadoop says the job is complete, the LmmpJob must reach a terminal state whatever goes
+     * wrong from there on - or it would never give back its workflow slot. So an exception from the
+     * listener fails the job, and the HDFS clean up comes last, on its own.
+     */
+    private void checkCompletion(String hadoopJobId, TrackedJob trackedJob) {
+        LmmpJob job = trackedJob.job;
+        RunningJob runningJob = trackedJob.runningJob;
+        boolean successful;
+        String failInfo = null;
+
+        try {
+            // check if completed
+            if (!runningJob.isComplete()) {
+                LOG.debug("Lmmp Job {} did not yet complete in Hadoop", job.getUuid());
+                return;
+            }
+
+            // ...but was it successful?
+            successful = runningJob.isSuccessful();
+
+            if (!successful) {
+                failInfo = runningJob.getFailureInfo();
+            }
+        } catch (IOException e) {
+            LOG.error("Exception while asking Hadoop about hadoop job id {}", hadoopJobId, e);
+            return;
+        }
+
+        trackedJobs.remove(hadoopJobId);
+
+        try {
+            if (successful) {
+                LOG.info("Lmmp Job {} completed successfully in Hadoop", job.getUuid());
+
+                hadoopJobCompletedListener.onHadoopJobSuccessful(job);
+            } else {
+                LOG.info("Lmp Job {} completed BUT FAILED because: {}", job.getUuid(), failInfo);
+
+                hadoopJobCompletedListener.onHadoopJobFailure(job, failInfo);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Exception while completing hadoop job id {}", hadoopJobId, e);
+
+            failAfterCompletion(job, e);
+        }
+
+        // this job completed - HDFS paths are no longer needed
+        try {
+            hadoopEnvironmentPreparer.cleanUp(job);
+        } catch (RuntimeException e) {
+            LOG.error("Exception while cleaning up HDFS for hadoop job id {}", hadoopJobId, e);
+        }
+    }
+
+    private void failAfterCompletion(LmmpJob job, RuntimeException cause) {
+        if (job.isFinished()) {
+            return;
+        }
+
+        try {
+            hadoopJobCompletedListener.onHadoopJobFailure(job, "Unable to complete the job after Hadoop: "
+                    + cause.getMessage());
+        } catch (RuntimeException e) {
+            // don't let one job stop the checks of the others
+            LOG.error("Exception while failing job {}", job.getUuid(), e);
+        }
+    }
+
+    // =============================================================================
+
+    public void setHadoopJobCompletedListener(HadoopJobCompletedListener hadoopJobCompletedListener) {
+        this.hadoopJobCompletedListener = hadoopJobCompletedListener;
+    }
+
+    // =============================================================================
+
+    /**
+     * A Hadoop job and the Lmmp Job it is running for.
+     */
+    private static class TrackedJob {
+        private final LmmpJob job;
+        private final RunningJob runningJob;
+
+        TrackedJob(LmmpJob job, RunningJob runningJob) {
+            this.job = job;
+            this.runningJob = runningJob;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.topcoder.nasa.job.hadoop;
+
+import java.util.Map;
+
+/**
+ * How far along a running Hadoop job was when the {@link HadoopProgressCollector} last sampled it.
+ * Rendered as part of the job's status.
+ *
+ */
+public class HadoopProgress {
+    private final String hadoopJobId;
+    private final int mapPercent;
+    private final int reducePercent;
+    private final Map<String, Long> counters;
+    private final long sampledAt;
+
+    public HadoopProgress(String hadoopJobId, int mapPercent, int reducePercent,
+            Map<String, Long> counters, long sampledAt) {
+        this.hadoopJobId = hadoopJobId;
+        this.mapPercent = mapPercent;
+        this.reducePercent = reducePercent;
+        this.counters = counters;
+        this.sampledAt = sampledAt;
+    }
+
+    public String getHadoopJobId() {
+        return hadoopJobId;
+    }
+
+    public int getMapPercent() {
+        return mapPercent;
+    }
+
+    public int getReducePercent() {
+        return reducePercent;
+    }
+
+    /**
+     * @return the job's task counters (e.g. MAP_INPUT_RECORDS), by name
+     */
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    /**
+     * @return when the sample was taken, in milliseconds since the epoch
+     */
+    public long getSampledAt() {
+        return sampledAt;
+    }
+}
@@ -0,0 +1,114 @@
+package com.topcoder.nasa.job.hadoop;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.RunningJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Samples the map/reduce progress and task counters of every Hadoop job the
+ * {@link HadoopJobTracker} is tracking, every {@link #sampleMillis}, from a single thread shared by
+ * all jobs. The latest sample of each job is available through {@link #getProgress(String)} until
+ * the job stops being tracked.
+ *
+ */
+@Component
+public class HadoopProgressCollector {
+    private static final Logger LOG = LoggerFactory.getLogger(HadoopProgressCollector.class);
+
+    /** The counter group we report. */
+    private static final String TASK_COUNTER_GROUP = "org.apache.hadoop.mapreduce.TaskCounter";
+
+    @Autowired
+    private HadoopJobTracker hadoopJobTracker;
+
+    @Value("${hadoop.progress-sample-millis:5000}")
+    private long sampleMillis;
+
+    /** The latest sample of each tracked job, by LmmpJob UUID. */
+    private Map<String, HadoopProgress> progressByUuid = new ConcurrentHashMap<String, HadoopProgress>();
+
+    private ScheduledExecutorService sampleExecutor;
+
+    // =============================================================================
+
+    @PostConstruct
+    public void init() {
+        sampleExecutor = Executors.newSingleThreadScheduledExecutor();
+        sampleExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sampleAll();
+            }
+        }, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sampleExecutor.shutdownNow();
+    }
+
+    // =============================================================================
+
+    /**
+     * @return the latest sample for the given LmmpJob, or null if it is not running in Hadoop (or
+     *         hasn't been sampled yet)
+     */
+    public HadoopProgress getProgress(String uuid) {
+        return progressByUuid.get(uuid);
+    }
+
+    // =============================================================================
+
+    private void sampleAll() {
+        Map<String, RunningJob> runningJobs = hadoopJobTracker.getRunningJobsByUuid();
+
+        progressByUuid.keySet().retainAll(runningJobs.keySet());
+
+        for (Map.Entry<String, RunningJob> entry : runningJobs.entrySet()) {
+            try {
+                sample(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                LOG.error("Exception while sampling progress of Lmmp Job {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    private void sample(String uuid, RunningJob runningJob) throws IOException {
+        int mapPercent = Math.round(runningJob.mapProgress() * 100);
+        int reducePercent = Math.round(runningJob.reduceProgress() * 100);
+
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        Counters jobCounters = runningJob.getCounters();
+
+        if (jobCounters != null) {
+            for (Counters.Counter counter : jobCounters.getGroup(TASK_COUNTER_GROUP)) {
+                counters.put(counter.getName(), counter.getValue());
+            }
+        }
+
+        HadoopProgress previous = progressByUuid.get(uuid);
+
+        if (previous == null || previous.getMapPercent() != mapPercent
+                || previous.getReducePercent() != reducePercent) {
+            LOG.info("Lmmp Job {} is at map {}%, reduce {}% in Hadoop", new Object[] { uuid,
+                    mapPercent, reducePercent });
+        }
+
+        progressByUuid.put(uuid, new HadoopProgress(runningJob.getID().toString(), mapPercent,
+                reducePercent, counters, System.currentTimeMillis()));
+    }
+}
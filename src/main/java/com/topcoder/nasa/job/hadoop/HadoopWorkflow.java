@@ -1,5 +1,6 @@
 package com.topcoder.nasa.job.hadoop;
 
+import org.apache.hadoop.mapred.RunningJob;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,6 +14,7 @@ import com.topcoder.nasa.job.LmmpJob;
  * <li>Prepares the HDFS Environment - see {@link HadoopEnvironmentPreparer}</li>
  * <li>Spawns the job using the JobClient - see {@link HadoopJobRunner}</li>
  * </ol>
+ * and then hands the job to the {@link HadoopJobTracker}, which tells us when it completes.
  *
  */
 @Component
@@ -25,17 +27,21 @@ public class HadoopWorkflow {
     @Autowired
     private HadoopJobRunner hadoopJobRunner;
 
+    @Autowired
+    private HadoopJobTracker hadoopJobTracker;
+
     public void executeFor(LmmpJob job) {
-        boolean cleanedUp = hadoopEnvironmentPreparer.go();
+        boolean cleanedUp = hadoopEnvironmentPreparer.go(job);
         
         if (!cleanedUp) {
             job.failed("Could not connect to HDFS");
             return;
         }
 
-        String hadoopJobId = hadoopJobRunner.executeFor(job);
+        RunningJob runningJob = hadoopJobRunner.executeFor(job);
 
-        job.setHadoopJobId(hadoopJobId);
+        job.setHadoopJobId(runningJob.getID().toString());
+        hadoopJobTracker.track(job, runningJob);
     }
 
 }
@@ -0,0 +1,211 @@
+package com.topcoder.nasa.job.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of concurrent downloads per host, and adapts each host's limit to how the
+ * host is behaving:
+ * <ul>
+ * <li>every {@link #WINDOW_MS} we compare the host's throughput with that of the previous window.
+ * If the host was using all its connections and throughput went up by more than
+ * {@link #INCREASE_THRESHOLD}, it gets one more connection (up to {@link #maxPerHost})</li>
+ * <li>if throughput dropped below {@link #SLOWDOWN_THRESHOLD} of the previous window's, it gets
+ * one fewer</li>
+ * <li>any download that failed because of the host (a connection error, a timeout or a 5xx/429
+ * response) halves the limit (down to {@link #minPerHost})</li>
+ * </ul>
+ * Downloads submitted while a host is at its limit wait in that host's queue. Each finished
+ * download hands its connection straight to the next one waiting for the same host (more than one
+ * if the limit just grew, none if it just shrank), which is started on the {@link #dispatcher} rather
+ * than on the thread that reported the finish - typically an HTTP client I/O thread. Nothing is
+ * ever polled or rescanned.
+ *
+ */
+public class HostConnectionLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(HostConnectionLimiter.class);
+
+    /** How long we measure throughput for before adapting a host's limit. */
+    private static final long WINDOW_MS = 10000;
+
+    /** Throughput must grow by this factor for a host to get another connection. */
+    private static final double INCREASE_THRESHOLD = 1.1;
+
+    /** Throughput falling below this fraction of the last window's costs a host a connection. */
+    private static final double SLOWDOWN_THRESHOLD = 0.7;
+
+    private final int initialPerHost;
+    private final int minPerHost;
+    private final int maxPerHost;
+
+    /** Starts queued downloads. */
+    private final Executor dispatcher;
+
+    /** Guarded by itself. */
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    // =========================================================================
+
+    public HostConnectionLimiter(int initialPerHost, int minPerHost, int maxPerHost,
+            Executor dispatcher) {
+        this.initialPerHost = initialPerHost;
+        this.minPerHost = minPerHost;
+        this.maxPerHost = maxPerHost;
+        this.dispatcher = dispatcher;
+    }
+
+    // =========================================================================
+
+    /**
+     * Runs the download right away if the host has a free connection, else queues it.
+     *
+     * @param hostName
+     *            the host the download is for
+     * @param download
+     *            starts the download; must lead to exactly one {@link #release} call
+     */
+    public void submit(String hostName, Runnable download) {
+        Host host = getHost(hostName);
+
+        synchronized (host) {
+            if (host.inFlight >= host.limit) {
+                host.waiting.add(download);
+                return;
+            }
+
+            host.inFlight++;
+            host.saturated |= host.inFlight >= host.limit;
+        }
+
+        download.run();
+    }
+
+    /**
+     * Gives back the connection of a finished download, adapts the host's limit and dispatches as
+     * many queued downloads as the limit now allows.
+     *
+     * @param hostName
+     *            the host the download was for
+     * @param bytes
+     *            the number of bytes transferred
+     * @param hostError
+     *            true if the download failed because of the host, e.g. it timed out or the host
+     *            answered 503
+     */
+    public void release(String hostName, long bytes, boolean hostError) {
+        Host host = getHost(hostName);
+        List<Runnable> toStart = new ArrayList<Runnable>();
+
+        synchronized (host) {
+            host.inFlight--;
+            host.windowBytes += bytes;
+
+            if (hostError) {
+                backOff(host);
+            } else {
+                adaptToThroughput(host);
+            }
+
+            while (host.inFlight < host.limit && !host.waiting.isEmpty()) {
+                toStart.add(host.waiting.poll());
+                host.inFlight++;
+            }
+
+            host.saturated |= host.inFlight >= host.limit;
+        }
+
+        for (Runnable download : toStart) {
+            dispatcher.execute(download);
+        }
+    }
+
+    // =========================================================================
+
+    private void adaptToThroughput(Host host) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - host.windowStart;
+
+        if (elapsed < WINDOW_MS) {
+            return;
+        }
+
+        double throughput = host.windowBytes * 1000.0 / elapsed;
+
+        if (host.saturated && throughput > host.lastThroughput * INCREASE_THRESHOLD
+                && host.limit < maxPerHost) {
+            host.limit++;
+            LOG.info("Throughput from {} rose to {} bytes/s; allowing {} connections",
+                    new Object[] { host.name, (long) throughput, host.limit });
+        } else if (throughput < host.lastThroughput * SLOWDOWN_THRESHOLD && host.limit > minPerHost) {
+            host.limit--;
+            LOG.info("Throughput from {} fell to {} bytes/s; allowing {} connections",
+                    new Object[] { host.name, (long) throughput, host.limit });
+        }
+
+        host.lastThroughput = throughput;
+        host.startWindow(now);
+    }
+
+    private void backOff(Host host) {
+        int limit = Math.max(minPerHost, host.limit / 2);
+
+        if (limit != host.limit) {
+            host.limit = limit;
+            LOG.info("Download from {} ran into trouble; allowing {} connections", host.name, limit);
+        }
+
+        host.startWindow(System.currentTimeMillis());
+    }
+
+    private Host getHost(String hostName) {
+        synchronized (hosts) {
+            Host host = hosts.get(hostName);
+
+            if (host == null) {
+                host = new Host(hostName, initialPerHost);
+                hosts.put(hostName, host);
+            }
+
+            return host;
+        }
+    }
+
+    // =========================================================================
+
+    /**
+     * The connection state of one host. Guarded by itself.
+     */
+    private static class Host {
+        private final String name;
+        private final Queue<Runnable> waiting = new LinkedList<Runnable>();
+
+        private int limit;
+        private int inFlight;
+
+        private long windowStart;
+        private long windowBytes;
+        private boolean saturated;
+        private double lastThroughput;
+
+        Host(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+
+            startWindow(System.currentTimeMillis());
+        }
+
+        void startWindow(long now) {
+            windowStart = now;
+            windowBytes = 0;
+            saturated = inFlight >= limit;
+        }
+    }
+}
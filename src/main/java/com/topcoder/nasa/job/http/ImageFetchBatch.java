@@ -0,0 +1,252 @@
+package com.topcoder.nasa.job.http;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.topcoder.nasa.job.http.ImageHttpDownloader.ImageHttpDownloaderCallback;
+
+/**
+ * Completion handle for the images of one job - see {@link ImageFetcher#newBatch()}.
+ * <p/>
+ * Images may be added to the batch while earlier ones are already downloading (e.g. as PDS pages come back). Once the
+ * client has added everything it calls {@link #seal()}; from then on, the batch is done the moment its last image
+ * lands in the cache (or fails to), independently of whatever other batches the {@link ImageFetcher} is working on.
+ * Clients {@link #await()} it and then look at {@link #getFetchedFiles()} and {@link #getFailedUrls()}.
+ * <p/>
+ * A batch tolerates up to {@link #maxFailedImages} images failing (after the downloader's retries). One more and the
+ * batch is {@link #isOverFailureBudget() over its failure budget}: it is done right away, without waiting for the
+ * rest, as the job cannot go ahead anyway.
+ * <p/>
+ * A client that stops waiting on a batch (e.g. because it is over its failure budget) {@link ImageFetcher#cancel
+ * cancels} it, so that the images still queued or downloading for it don't hold on to connections for nothing.
+ *
+ */
+public class ImageFetchBatch {
+    /** The target file of each requested URL, in request order. */
+    private final Map<String, File> filesByUrl = new LinkedHashMap<String, File>();
+
+    /** The number of images that have neither landed nor failed yet. */
+    private int imageCountLeftToFetch;
+
+    /** Set once no more images will be added. */
+    private boolean sealed;
+
+    /** Set once the batch is cancelled: no more downloads are started for it. */
+    private boolean cancelled;
+
+    /** The downloads this batch has started and not heard back from yet, by URL. */
+    private final Map<String, ImageHttpDownloaderCallback> downloads = new HashMap<String, ImageHttpDownloaderCallback>();
+
+    /** The URLs that could not be fetched. */
+    private final Set<String> failedUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The number of failed images the batch can live with. */
+    private final int maxFailedImages;
+
+    /**
+     * Released once the batch is {@link #sealed} and {@link #imageCountLeftToFetch} reaches zero, or as soon as it is
+     * over its failure budget.
+     */
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+
+    // =========================================================================
+
+    ImageFetchBatch(int maxFailedImages) {
+        this.maxFailedImages = maxFailedImages;
+    }
+
+    // =========================================================================
+
+    /**
+     * Tells the batch no more images will be added to it.
+     */
+    public synchronized void seal() {
+        sealed = true;
+
+        releaseIfDone();
+    }
+
+    /**
+     * Blocks until every image of this batch has either been fetched or failed, or the batch is over its failure
+     * budget or cancelled.
+     */
+    public void await() throws InterruptedException {
+        doneLatch.await();
+    }
+
+    /**
+     * Blocks until every image of this batch has either been fetched or failed, or the timeout elapses.
+     *
+     * @return true if the batch is done; false if the timeout elapsed first
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return doneLatch.await(timeout, unit);
+    }
+
+    /**
+     * @return true if every image of this batch has either been fetched or failed
+     */
+    public boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if more images failed than the batch can live with
+     */
+    public boolean isOverFailureBudget() {
+        return failedUrls.size() > maxFailedImages;
+    }
+
+    /**
+     * @return the number of distinct images added to this batch
+     */
+    public synchronized int size() {
+        return filesByUrl.size();
+    }
+
+    /**
+     * @return the URLs that could not be fetched
+     */
+    public Set<String> getFailedUrls() {
+        return Collections.unmodifiableSet(failedUrls);
+    }
+
+    /**
+     * @return the URLs of all the images added to this batch, in request order
+     */
+    public synchronized List<String> getUrls() {
+        return new ArrayList<String>(filesByUrl.keySet());
+    }
+
+    /**
+     * @return the URLs of the images that were fetched successfully, in request order
+     */
+    public synchronized List<String> getFetchedUrls() {
+        List<String> urls = new ArrayList<String>();
+
+        for (String url : filesByUrl.keySet()) {
+            if (!failedUrls.contains(url)) {
+                urls.add(url);
+            }
+        }
+
+        return urls;
+    }
+
+    /**
+     * @return the files of all the images that were fetched successfully, in request order
+     */
+    public synchronized List<File> getFetchedFiles() {
+        List<File> files = new ArrayList<File>();
+
+        for (Map.Entry<String, File> entry : filesByUrl.entrySet()) {
+            if (!failedUrls.contains(entry.getKey())) {
+                files.add(entry.getValue());
+            }
+        }
+
+        return files;
+    }
+
+    // =========================================================================
+
+    /**
+     * Adds an image to this batch.
+     *
+     * @return true if the image was added; false if the batch already had it
+     */
+    synchronized boolean add(String url, File file) {
+        if (sealed) {
+            throw new IllegalStateException("Cannot add " + url + " to a sealed batch");
+        }
+
+        if (filesByUrl.containsKey(url)) {
+            return false;
+        }
+
+        filesByUrl.put(url, file);
+        ++imageCountLeftToFetch;
+
+        return true;
+    }
+
+    /**
+     * Records a download started for an image of this batch.
+     *
+     * @return false if the batch is cancelled, and the download shouldn't be started
+     */
+    synchronized boolean downloading(String url, ImageHttpDownloaderCallback callback) {
+        if (cancelled) {
+            return false;
+        }
+
+        downloads.put(url, callback);
+
+        return true;
+    }
+
+    /**
+     * Cancels the batch: it is done, and no more downloads are started for it.
+     *
+     * @return the downloads still to be cancelled, by URL
+     */
+    synchronized Map<String, ImageHttpDownloaderCallback> cancel() {
+        cancelled = true;
+        doneLatch.countDown();
+
+        Map<String, ImageHttpDownloaderCallback> inProgress = new HashMap<String, ImageHttpDownloaderCallback>(
+                downloads);
+        downloads.clear();
+
+        return inProgress;
+    }
+
+    synchronized void onImageFetched(String url) {
+        downloads.remove(url);
+        countDown();
+    }
+
+    synchronized void onImageFailed(String url) {
+        downloads.remove(url);
+        failedUrls.add(url);
+        countDown();
+
+        if (isOverFailureBudget()) {
+            // fail fast
+            doneLatch.countDown();
+        }
+    }
+
+    private void countDown() {
+        --imageCountLeftToFetch;
+
+        releaseIfDone();
+    }
+
+    private void releaseIfDone() {
+        if (sealed && imageCountLeftToFetch == 0) {
+            doneLatch.countDown();
+        }
+    }
+
+    // =========================================================================
+
+    @Override
+    public synchronized String toString() {
+        return "ImageFetchBatch [images=" + filesByUrl.size() + ", left=" + imageCountLeftToFetch
+                + ", failed=" + failedUrls.size() + ", sealed=" + sealed + ", cancelled=" + cancelled + "]";
+    }
+}
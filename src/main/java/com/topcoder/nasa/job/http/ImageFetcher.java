@@ -1,21 +1,25 @@
 package com.topcoder.nasa.job.http;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.topcoder.nasa.image.ImageCache;
 import com.topcoder.nasa.job.http.ImageHttpDownloader.ImageHttpDownloaderCallback;
 
 /**
- * .
+ * Fetches images into the image cache on behalf of jobs. Each job has its own
+ * {@link ImageFetchBatch}, so a job only ever waits on its own images.
+ * <p/>
+ * Each URL is checked against the cache once, when it is added to a batch; the ones that miss go
+ * straight to the {@link ImageHttpDownloader}, whose per-host queues take care of when they are
+ * actually downloaded. Nothing is ever rescanned.
  * 
  * @author schmoel, TCSDEVELOPER
  * @version 1.0
@@ -26,145 +30,135 @@ public class ImageFetcher {
     private static final Logger LOG = LoggerFactory.getLogger(ImageFetcher.class);
 
     /**
-     * Every time {@link #fetch(String)} is called, it indicates that we have one more image to
-     * fetch. Whenever an image finishes downloading (successfully or unsuccessfully), <b>or</b> we
-     * recognize that the image as already been downloaded, we have one fewer image to download.
-     * <p/>
-     * So, this is increased when {@link #fetch(String)} is called and decreased whenever a
-     * "done with this image URL" event, as described above, occurs.
+     * This class fetches the image from the source - i.e. over HTTP
      */
-    private AtomicInteger imageCountLeftToFetch = new AtomicInteger();
+    @Autowired
+    private ImageHttpDownloader httpDownloader;
 
     /**
-     * Queue of images left for us to download.
-     * <p/>
-     * Note that the size of this may not equal the value of {@link #imageCountLeftToFetch}. This is
-     * because this queue is polled by {@link #nudgeDownloader()} and the
-     * {@link #imageCountLeftToFetch} is only touched after {@link #nudgeDownloader()} has done its
-     * thing.
-     * <p/>
-     * There may be a siutation in which {@link #nudgeDownloader()} has to put a URL back in the
-     * queue for processing later - e.g. if the site is down or if the connections to the host have
-     * been exceeded.
+     * Where the images end up. Images are pinned in the cache from the moment a batch asks for
+     * them until the batch is {@link #release(ImageFetchBatch) released}.
      */
-    private Queue<String> imageUrlsToFetchQueue = new LinkedList<String>();
+    @Autowired
+    private ImageCache imageCache;
 
     /**
-     * This class fetches the image from the source - i.e. over HTTP
+     * How many images of a batch may fail to download (after retries) before the batch is over its failure budget -
+     * see {@link ImageFetchBatch#isOverFailureBudget()}.
      */
-    @Autowired
-    private ImageHttpDownloader httpDownloader;
+    @Value("${image-fetch.max-failed-images:0}")
+    private int maxFailedImages;
 
     // =========================================================================
 
     /**
-     * Called by clients who wish to begin asynchrously fetching the resources (images) at the
-     * provided urls.
+     * Creates an empty batch for a job. Images are added to it with
+     * {@link #fetchInto(ImageFetchBatch, List)}; the client then calls
+     * {@link ImageFetchBatch#seal()} and waits on it.
      * 
-     * @param allUrls
-     *            the urls to download
-     * @return the target locations on disk, where the images will be downloaded to.
+     * @return the handle that tells the client when all its images have landed, and where
      */
-    public List<File> fetchAll(List<String> allUrls) {
-        List<File> files = new ArrayList<File>();
-
-        for (String url : allUrls) {
-            files.add(fetch(url));
-        }
-
-        return files;
+    public ImageFetchBatch newBatch() {
+        return new ImageFetchBatch(maxFailedImages);
     }
 
     /**
-     * Called by clients who wish to begin asynchrously fetching the resource at this url.
+     * Called by clients who wish to begin asynchrously fetching the resources (images) at the
+     * provided urls, as part of the given batch. Returns immediately.
      * 
-     * @param url
-     *            the url to download
-     * @return the target file on disk, where the image will be downloaded to
+     * @param batch
+     *            the batch the images belong to
+     * @param urls
+     *            the urls to download
      */
-    public File fetch(String url) {
-        addImageUrlToFetch(url);
-        imageCountLeftToFetch.incrementAndGet();
+    public void fetchInto(final ImageFetchBatch batch, List<String> urls) {
+        for (String url : urls) {
+            if (!batch.add(url, httpDownloader.getCachedFile(url).getAbsoluteFile())) {
+                continue;
+            }
 
-        nudgeDownloader();
+            imageCache.pin(url);
 
-        return httpDownloader.getCachedFile(url).getAbsoluteFile();
-    }
+            // already cached? This is the only time we look
+            if (imageCache.contains(url)) {
+                batch.onImageFetched(url);
+                continue;
+            }
 
-    /**
-     * @return true if we are busy downloading/fetching an image; false if we are idle.
-     */
-    public boolean isFetching() {
-        return imageCountLeftToFetch.get() != 0;
-    }
+            // not cached, so fetch it (the downloader queues it if its host is busy)
+            ImageHttpDownloaderCallback callback = new ImageHttpDownloaderCallback() {
+                public void onImageFetchSuccess(String url, File cacheFile) {
+                    batch.onImageFetched(url);
+                }
+
+                @Override
+                public void onImageFetchFail(String url) {
+                    LOG.error("IMAGE FAILED TO DOWNLOAD {}", url);
+                    batch.onImageFailed(url);
+                }
+            };
+
+            if (!batch.downloading(url, callback)) {
+                // cancelled
+                continue;
+            }
 
-    // =========================================================================
+            httpDownloader.startFetch(url, callback);
 
-    private synchronized void addImageUrlToFetch(String url) {
-        imageUrlsToFetchQueue.add(url);
+            if (batch.isCancelled()) {
+                // cancelled while we were starting it - cancel() may have missed it
+                httpDownloader.cancelFetch(url, callback);
+            }
+        }
     }
 
-    private synchronized void addImageUrlsToFetch(List<String> urls) {
-        imageUrlsToFetchQueue.addAll(urls);
-    }
+    /**
+     * Called by clients who wish to begin asynchrously fetching the resources (images) at the
+     * provided urls, all known up front.
+     * 
+     * @param allUrls
+     *            the urls to download
+     * @return the (sealed) handle that tells the client when all these images have landed
+     */
+    public ImageFetchBatch fetchAll(List<String> allUrls) {
+        ImageFetchBatch batch = newBatch();
 
-    private synchronized String pollImageUrlToFetch() {
-        return imageUrlsToFetchQueue.poll();
-    }
+        fetchInto(batch, allUrls);
+        batch.seal();
 
-    // =========================================================================
+        return batch;
+    }
 
     /**
-     * The smarts.
+     * Called by clients who no longer want the images of the batch that haven't landed yet (e.g. because the batch is
+     * over its failure budget). Downloads that no other batch wants stop, freeing their connections; the batch is done.
+     * 
+     * @param batch
+     *            the batch to cancel
      */
-    private void nudgeDownloader() {
-        String url = null;
-
-        // if the connection is over used (i.e. we have for example 4 images downloading and are
-        // about to start another, and the connection is throttled to a max of 4 connections), we
-        // need to add the urls we have taken away back to the job for consideration later.
-        List<String> urlsToAddBack = new ArrayList<String>();
-
-        // pull the next image...
-        while ((url = pollImageUrlToFetch()) != null) {
-            // ...see if it's already in the cache
-            File cachedFile = httpDownloader.getCachedFile(url);
-
-            if (cachedFile.exists()) {
-                // it is - move on - already downloaded!
-                imageCountLeftToFetch.decrementAndGet();
-                continue;
-            }
+    public void cancel(ImageFetchBatch batch) {
+        Map<String, ImageHttpDownloaderCallback> downloads = batch.cancel();
 
-            // ...it is not already downloaded, let's try and start fetching it into the cache
-            boolean startedFetching = httpDownloader.startFetch(url,
-                    new ImageHttpDownloaderCallback() {
-                        public void onImageFetchSuccess(String url, File cacheFile) {
-                            afterImageFetchCallback();
-                        }
-
-                        @Override
-                        public void onImageFetchFail(String url) {
-                            LOG.error("IMAGE FAILED TO DOWNLOAD {}", url);
-                            afterImageFetchCallback();
-                        }
-
-                    });
-
-            // if we could not start fetching this image right now (e.g. client too busy)...
-            if (!startedFetching) {
-                // ... add it back for consideration later.
-                urlsToAddBack.add(url);
-            }
+        if (!downloads.isEmpty()) {
+            LOG.info("Cancelling {} downloads of {}", downloads.size(), batch);
         }
 
-        // add back all those images we couldn't start fetching for this time, for retry later on.
-        addImageUrlsToFetch(urlsToAddBack);
+        for (Map.Entry<String, ImageHttpDownloaderCallback> download : downloads.entrySet()) {
+            httpDownloader.cancelFetch(download.getKey(), download.getValue());
+        }
     }
 
-    private void afterImageFetchCallback() {
-        imageCountLeftToFetch.decrementAndGet();
-        nudgeDownloader();
+    /**
+     * Called by clients once they no longer need the images of the batch to stay in the cache
+     * (e.g. because they have linked them elsewhere).
+     * 
+     * @param batch
+     *            the batch whose images may now be evicted
+     */
+    public void release(ImageFetchBatch batch) {
+        for (String url : batch.getUrls()) {
+            imageCache.unpin(url);
+        }
     }
 
     // =========================================================================
@@ -1,37 +1,78 @@
 package com.topcoder.nasa.job.http;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
 import com.ning.http.client.AsyncHttpClientConfig;
 import com.ning.http.client.HttpResponseBodyPart;
 import com.ning.http.client.HttpResponseHeaders;
 import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.providers.netty.ResponseBodyPart;
+import com.topcoder.nasa.image.ImageCache;
+import com.topcoder.nasa.job.http.RetryPolicy.ErrorClass;
 
 /**
- * Responsible for fetching images from a URL and depositing them into {@link #downloadDirectory}.
+ * Responsible for fetching images from a URL and depositing them into the {@link #imageCache}.
  * <p/>
- * <b>Note that this implementation is pretty simple does NOT consider concurrent requests.</b>
- * Multiple requests to the same URL results in undefined (typically bad) behavior.
+ * Images are downloaded into a temporary ".part" file next to their cache file and renamed into
+ * place only once complete, so the cache file never holds a partial image. If a ".part" file is
+ * left over from an earlier, interrupted attempt, we ask the server for the remaining bytes only,
+ * with an HTTP <code>Range</code> request.
+ * <p/>
+ * Concurrent requests for the same URL (typically from different jobs) share a single transfer:
+ * the first request starts the download and later ones are simply added to the
+ * {@link #inFlightDownloads} registry, to be told along with the first when it finishes.
+ * <p/>
+ * How many downloads run against each host at once is up to the {@link HostConnectionLimiter},
+ * which adapts each host's limit between {@link #minConnectionsPerHost} and
+ * {@link #maxConnectionsPerHost}. Downloads beyond a host's limit wait in that host's queue.
+ * <p/>
+ * Downloads that fail because of the host (see {@link ErrorClass}) are tried again after the delay
+ * the {@link #retryPolicy} gives us, resuming from whatever bytes they got. Clients only hear of
+ * the failure once the policy gives up.
+ * <p/>
+ * A client that no longer needs an image {@link #cancelFetch(String, ImageHttpDownloaderCallback)
+ * cancels} its fetch. Once nobody wants a download any more, it leaves its host's queue without
+ * taking a connection or, if already under way, stops at the next chunk - keeping its ".part" file
+ * for whoever asks for the image next.
  *
  */
 public class ImageHttpDownloader {
     private static final Logger LOG = LoggerFactory.getLogger(ImageHttpDownloader.class);
 
-    private static final int MAX_HTTP_CONNECTIONS_PER_HOST = 4;
     private static final int FIVE_MINS_IN_MS = 1000 * 60 * 5;
 
+    /** How often we log download progress when we don't know the image size. */
+    private static final long UNKNOWN_SIZE_PROGRESS_STEP = 16 * 1024 * 1024;
+
+    /** The size of the array used to checksum chunks we can't get at the bytes of directly. */
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
     // =========================================================================
 
     /**
@@ -63,139 +104,298 @@ public class ImageHttpDownloader {
     // =========================================================================
 
     private AsyncHttpClient httpClient;
-    private File downloadDirectory;
+    private ImageCache imageCache;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    /** How many connections each host starts off with. */
+    private int initialConnectionsPerHost = 4;
+
+    /** The fewest connections the limiter will back a host off to. */
+    private int minConnectionsPerHost = 1;
+
+    /** The most connections the limiter will grow a host to. */
+    private int maxConnectionsPerHost = 16;
+
+    private HostConnectionLimiter hostConnectionLimiter;
+
+    /**
+     * Starts the downloads that waited for a connection, off the HTTP client's I/O threads, and
+     * schedules retries.
+     */
+    private ScheduledExecutorService dispatchExecutor;
+
+    /** Downloads currently in progress, by URL. Also the lock for starting downloads. */
+    private final Map<String, InFlightDownload> inFlightDownloads = new HashMap<String, InFlightDownload>();
 
     // =========================================================================
 
-    public ImageHttpDownloader() {
+    @PostConstruct
+    public void init() {
         AsyncHttpClientConfig config = new AsyncHttpClientConfig.Builder() //
                 .setIdleConnectionTimeoutInMs(FIVE_MINS_IN_MS) //
                 .setRequestTimeoutInMs(FIVE_MINS_IN_MS) //
 
-                // this is ignored for some reason:
+                // the HostConnectionLimiter does the limiting - this is only a safety net, as the
+                // client does not reliably honour it:
                 // http://stackoverflow.com/questions/18260942/nings-asynchttpclient-doesnt-handle-setmaximumconnectionsperhost-correctly
-                .setMaximumConnectionsPerHost(MAX_HTTP_CONNECTIONS_PER_HOST) //
-
-                // set a hard limit of 4
-                .setMaximumConnectionsTotal(MAX_HTTP_CONNECTIONS_PER_HOST) //
+                .setMaximumConnectionsPerHost(maxConnectionsPerHost) //
+                .setMaximumConnectionsTotal(-1) //
                 .build();
 
         httpClient = new AsyncHttpClient(config);
-    }
+        dispatchExecutor = Executors.newSingleThreadScheduledExecutor();
+        hostConnectionLimiter = new HostConnectionLimiter(initialConnectionsPerHost,
+                minConnectionsPerHost, maxConnectionsPerHost, dispatchExecutor);
 
-    // =========================================================================
+        LOG.info("Downloading with {} connections per host to start with, between {} and {}",
+                new Object[] { initialConnectionsPerHost, minConnectionsPerHost,
+                        maxConnectionsPerHost });
+    }
 
-    /**
-     * Sanity check fields.
-     */
-    @PostConstruct
-    public void init() {
-        if (!downloadDirectory.exists() || !downloadDirectory.isDirectory()) {
-            throw new IllegalStateException("Cache directory " + downloadDirectory
-                    + " does not exist");
-        }
+    @PreDestroy
+    public void shutdown() {
+        dispatchExecutor.shutdownNow();
+        httpClient.close();
     }
 
+    // =========================================================================
+
     /**
      * Clients will want to know if we have already cached the image at a given URL. This method
      * allows them to do that.
      * 
      * @param imageUrl
      *            the url of the image we want to check if cached
-     * @return null if image is not cached already; otherwise, File for the image. <b>WARNING:</b>
-     *         this may be a download-in-progress.
+     * @return the File for the image, which exists only once the image is fully downloaded
      */
     public File getCachedFile(String imageUrl) {
         return computeDownloadFile(imageUrl);
     }
 
     /**
-     * Start the fetch for the given image. Returns immediately.
+     * Start the fetch for the given image, or join the fetch already in progress for it. If the
+     * image's host is at its connection limit, the fetch waits in that host's queue. Returns
+     * immediately.
      * 
      * @param imageUrl
      *            the url to download
      * @param callback
      *            what to notify when we have information related to the download.
-     * @return true if we started to fetch or false if the connection is too busy and the client
-     *         needs to send the request for submission again later
      */
-    public boolean startFetch(String imageUrl, ImageHttpDownloaderCallback callback) {
-        try {
-            return doStartFetch(imageUrl, callback);
-        } catch (IOException e) {
-            throw new IllegalStateException("Exception whilst fetching image", e);
+    public void startFetch(final String imageUrl, ImageHttpDownloaderCallback callback) {
+        final InFlightDownload inFlightDownload;
+
+        synchronized (inFlightDownloads) {
+            File file = computeDownloadFile(imageUrl);
+
+            if (file.exists()) {
+                // another request's download finished since the client checked the cache
+                callback.onImageFetchSuccess(imageUrl, file);
+                return;
+            }
+
+            InFlightDownload existing = inFlightDownloads.get(imageUrl);
+
+            if (existing != null) {
+                LOG.info("Already downloading {}; sharing the transfer", imageUrl);
+                existing.callbacks.add(callback);
+                existing.wanted = true;
+                return;
+            }
+
+            inFlightDownload = new InFlightDownload(imageUrl, callback);
+            inFlightDownloads.put(imageUrl, inFlightDownload);
         }
+
+        submitFetch(imageUrl, inFlightDownload, 1);
     }
 
     /**
-     * See {@link FileHandler} for more async callback information.
+     * Tells us the client no longer needs the image; its callback won't be called. The download
+     * itself stops if nobody else wants the image either. Returns immediately.
+     * 
+     * @param imageUrl
+     *            the url passed to {@link #startFetch(String, ImageHttpDownloaderCallback)}
+     * @param callback
+     *            the callback passed along with it
      */
-    private boolean doStartFetch(final String imageUrl, final ImageHttpDownloaderCallback callback)
-            throws IOException {
+    public void cancelFetch(String imageUrl, ImageHttpDownloaderCallback callback) {
+        synchronized (inFlightDownloads) {
+            InFlightDownload inFlightDownload = inFlightDownloads.get(imageUrl);
+
+            if (inFlightDownload != null && inFlightDownload.callbacks.remove(callback)
+                    && inFlightDownload.callbacks.isEmpty()) {
+                LOG.info("Nobody wants {} any more; stopping its download", imageUrl);
+                inFlightDownload.wanted = false;
+            }
+        }
+    }
 
-        try {
-            httpClient.prepareGet(imageUrl).execute(new FileHandler(imageUrl, callback));
-            LOG.info("Downloading {}", imageUrl);
-        } catch (IOException e) {
-            // if the client reported that there are too many connections open, return false to
-            // inform the caller they need to try again later
-            if (thrownCozOfTooManyConnectionsToHost(e)) {
-                return false;
+    /**
+     * Queues an attempt at the download with the image's host.
+     */
+    private void submitFetch(final String imageUrl, final InFlightDownload callback,
+            final int attempt) {
+        hostConnectionLimiter.submit(getHost(imageUrl), new Runnable() {
+            public void run() {
+                doStartFetch(imageUrl, callback, attempt);
             }
+        });
+    }
 
-            throw e;
+    /**
+     * Queues another attempt at the download once the delay is up.
+     */
+    private void scheduleRetry(final String imageUrl, final InFlightDownload callback,
+            final int attempt, long delayMillis) {
+        dispatchExecutor.schedule(new Runnable() {
+            public void run() {
+                submitFetch(imageUrl, callback, attempt);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called once the image's host has a connection free for it. See {@link FileHandler} for more
+     * async callback information.
+     */
+    private void doStartFetch(String imageUrl, InFlightDownload callback, int attempt) {
+        if (!callback.wanted) {
+            // cancelled while it waited: give the connection to the next one
+            hostConnectionLimiter.release(getHost(imageUrl), 0, false);
+            callback.stopped();
+            return;
         }
 
-        return true;
+        FileHandler fileHandler = new FileHandler(imageUrl, callback, attempt);
+
+        try {
+            BoundRequestBuilder request = httpClient.prepareGet(imageUrl);
+
+            if (fileHandler.resumeFrom > 0) {
+                request.addHeader("Range", "bytes=" + fileHandler.resumeFrom + "-");
+                LOG.info("Resuming download of {} from byte {}", imageUrl, fileHandler.resumeFrom);
+            }
+
+            request.execute(fileHandler);
+            LOG.info("Downloading {}", imageUrl);
+        } catch (Exception e) {
+            LOG.error("Could not start downloading {}", imageUrl, e);
+            fileHandler.errorClass = ErrorClass.CONNECTION;
+            fileHandler.failed(true);
+        }
     }
 
     // =========================================================================
 
+    private File computeDownloadFile(String imageUrl) {
+        return imageCache.getFile(imageUrl);
+    }
+
     /**
-     * Given an image URL, isolates the filename by stripping the leading protocol/port/path and the
-     * query parameter postfix (if any). This is the name used in the cache directory.
-     * 
-     * @param imageUrl
-     *            the url to get the filename for
-     * @return the image file name
+     * @return the host (and port, if any) of the given URL - what connections are limited by
      */
-    private static String computeFileNameFromUrl(String imageUrl) {
-        String filePath = null;
-
+    private static String getHost(String imageUrl) {
         try {
-            filePath = new URL(imageUrl).getPath();
+            URL url = new URL(imageUrl);
+
+            return url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
         } catch (MalformedURLException e) {
-            throw new IllegalStateException(
-                    "Malformed URL encountered while parsing file name from URL", e);
+            throw new IllegalStateException("Malformed image URL " + imageUrl, e);
         }
+    }
 
-        String fileName = new File(filePath).getName();
-
-        int queryIndex = fileName.indexOf('?');
+    // =========================================================================
 
-        if (queryIndex != -1) {
-            fileName = fileName.substring(0, queryIndex);
-        }
+    public void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
 
-        return fileName;
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
     }
 
-    private File computeDownloadFile(String imageUrl) {
-        return new File(downloadDirectory, computeFileNameFromUrl(imageUrl));
+    public void setInitialConnectionsPerHost(int initialConnectionsPerHost) {
+        this.initialConnectionsPerHost = initialConnectionsPerHost;
     }
 
-    private boolean thrownCozOfTooManyConnectionsToHost(Throwable t) {
-        if (t.getMessage().indexOf("Too many connections") != -1) {
-            return true;
-        }
+    public void setMinConnectionsPerHost(int minConnectionsPerHost) {
+        this.minConnectionsPerHost = minConnectionsPerHost;
+    }
 
-        return false;
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
     }
 
     // =========================================================================
 
-    public void setDownloadDirectory(File cacheDirectory) {
-        this.downloadDirectory = cacheDirectory;
+    /**
+     * A download in progress and everybody waiting for it. Removes itself from the
+     * {@link ImageHttpDownloader#inFlightDownloads} when done, then tells all the callbacks.
+     */
+    private class InFlightDownload implements ImageHttpDownloaderCallback {
+        private final String url;
+
+        /** Guarded by {@link ImageHttpDownloader#inFlightDownloads} */
+        private final List<ImageHttpDownloaderCallback> callbacks = new ArrayList<ImageHttpDownloaderCallback>();
+
+        /**
+         * False once every callback has been cancelled. Written under
+         * {@link ImageHttpDownloader#inFlightDownloads}, read on every chunk without it.
+         */
+        private volatile boolean wanted = true;
+
+        InFlightDownload(String url, ImageHttpDownloaderCallback callback) {
+            this.url = url;
+            this.callbacks.add(callback);
+        }
+
+        @Override
+        public void onImageFetchSuccess(String url, File cacheFile) {
+            for (ImageHttpDownloaderCallback callback : done()) {
+                callback.onImageFetchSuccess(url, cacheFile);
+            }
+        }
+
+        @Override
+        public void onImageFetchFail(String url) {
+            for (ImageHttpDownloaderCallback callback : done()) {
+                callback.onImageFetchFail(url);
+            }
+        }
+
+        /**
+         * Called once the download has stopped because nobody {@link #wanted} it. If somebody
+         * asked for the image again in the meantime, it starts over (resuming from its bytes).
+         */
+        void stopped() {
+            synchronized (inFlightDownloads) {
+                if (callbacks.isEmpty()) {
+                    if (inFlightDownloads.get(url) == this) {
+                        inFlightDownloads.remove(url);
+                    }
+
+                    return;
+                }
+            }
+
+            LOG.info("{} is wanted again; restarting its download", url);
+            submitFetch(url, this, 1);
+        }
+
+        private List<ImageHttpDownloaderCallback> done() {
+            synchronized (inFlightDownloads) {
+                if (inFlightDownloads.get(url) == this) {
+                    inFlightDownloads.remove(url);
+                }
+
+                if (callbacks.size() > 1) {
+                    LOG.info("Download of {} was shared by {} requests", url, callbacks.size());
+                }
+
+                return new ArrayList<ImageHttpDownloaderCallback>(callbacks);
+            }
+        }
     }
 
     // =========================================================================
@@ -203,67 +403,121 @@ public class ImageHttpDownloader {
     /**
      * Really simple {@link AsyncHandler} implementation responsible for actually saving the file to
      * disk and for logging simple download progress information.
+     * <p/>
+     * Bytes go to the {@link #partFile}; only a complete download is renamed to the {@link #file}.
+     * A failed download leaves its {@link #partFile} behind for the next attempt to resume from,
+     * unless the server told us something that makes the partial bytes useless.
+     * <p/>
+     * Chunks are written straight from the HTTP client's buffer through a {@link FileChannel}, and
+     * fed to a running CRC-32 {@link #checksum} in the same pass, which ends up in the cache index.
+     * Progress is logged every percent (or every {@link #UNKNOWN_SIZE_PROGRESS_STEP} bytes), so a
+     * chunk costs no allocations of its own.
+     * <p/>
+     * Either way, the connection is handed back to the {@link #hostConnectionLimiter} exactly once,
+     * before the callback is told.
      */
     private class FileHandler implements AsyncHandler<File> {
         /** The URL being downloaded */
         private String url;
 
-        /** The file we're writing to */
+        /** The host of the {@link #url} */
+        private String host;
+
+        /** The file we end up with */
         private File file;
 
-        /** An OutputStream for the file we're writing to */
-        private FileOutputStream fos;
+        /** The file we're writing to */
+        private File partFile;
+
+        /** The number of bytes already in {@link #partFile} that we asked the server to skip */
+        private long resumeFrom;
+
+        /** A channel to the file we're writing to */
+        private FileChannel channel;
+
+        /** The CRC-32 of all the bytes in {@link #partFile} */
+        private CRC32 checksum = new CRC32();
+
+        /** For checksumming bytes we can't get at directly - allocated on first use */
+        private byte[] scratch;
 
         /** What to call with informational updates */
-        private ImageHttpDownloaderCallback callback;
+        private InFlightDownload callback;
 
         /**
-         * The last percentage completed we logged, see
+         * The {@link #totalBytesRead} at which we next log progress, see
          * {@link #onBodyPartReceived(HttpResponseBodyPart)}
          */
-        private float lastPercentage;
+        private long nextProgressBytes;
+
+        /** The number of bytes between progress logs */
+        private long progressStep = UNKNOWN_SIZE_PROGRESS_STEP;
 
+        /** Bytes in {@link #partFile} so far, including those we resumed from */
         private long totalBytesRead;
+
+        /** The size of the whole image, if the server told us */
         private Long fileSize;
 
-        public FileHandler(String url, ImageHttpDownloaderCallback callback)
-                throws FileNotFoundException {
+        /** Which attempt at the download this is, starting at 1 */
+        private int attempt;
+
+        /** Set if the download failed because of the host rather than the image */
+        private ErrorClass errorClass;
+
+        /** Set once the connection has been handed back to the limiter */
+        private boolean released;
+
+        public FileHandler(String url, InFlightDownload callback, int attempt) {
             this.url = url;
+            this.host = getHost(url);
             this.callback = callback;
+            this.attempt = attempt;
 
             this.file = computeDownloadFile(url);
+            this.partFile = new File(file.getPath() + ImageCache.PART_FILE_SUFFIX);
+            this.resumeFrom = partFile.length();
         }
 
         @Override
         public void onThrowable(Throwable t) {
-            if (thrownCozOfTooManyConnectionsToHost(t)) {
-                return;
+            LOG.error("Exception while downloading {}", url, t);
+
+            if (t instanceof TimeoutException || t instanceof SocketTimeoutException) {
+                errorClass = ErrorClass.TIMEOUT;
+            } else {
+                // connection refused, reset, closed...
+                errorClass = ErrorClass.CONNECTION;
             }
 
-            failed();
+            failed(true);
         }
 
         @Override
         public com.ning.http.client.AsyncHandler.STATE onBodyPartReceived(
                 HttpResponseBodyPart bodyPart) throws Exception {
-            int bytesRead = bodyPart.getBodyPartBytes().length;
-            totalBytesRead += bytesRead;
+            if (!callback.wanted) {
+                return abandon();
+            }
 
-            if (fileSize == null) {
-                LOG.debug(
-                        "Downloaded another {} bytes of url {} for a total of {} bytes read so far",
-                        bytesRead, url, totalBytesRead);
-            } else {
-                float percentage = (float) totalBytesRead / fileSize * 100;
+            ByteBuffer buffer = getBuffer(bodyPart);
+            totalBytesRead += buffer.remaining();
 
-                if (percentage - lastPercentage > 1.0f) {
-                    LOG.info("Downloaded {}% of {}", percentage, url);
-                    lastPercentage = percentage;
-                }
+            updateChecksum(buffer);
 
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
 
-            bodyPart.writeTo(fos);
+            if (totalBytesRead >= nextProgressBytes) {
+                if (fileSize == null) {
+                    LOG.info("Downloaded {} bytes of {}", totalBytesRead, url);
+                } else {
+                    LOG.info("Downloaded {}% of {}", totalBytesRead * 100 / fileSize, url);
+                }
+
+                nextProgressBytes = totalBytesRead + progressStep;
+            }
 
             return STATE.CONTINUE;
         }
@@ -273,14 +527,36 @@ public class ImageHttpDownloader {
                 HttpResponseStatus responseStatus) throws Exception {
             int code = responseStatus.getStatusCode();
 
+            if (!callback.wanted) {
+                return abandon();
+            }
+
             if (code == 200) {
-                this.fos = new FileOutputStream(file);
+                // the whole image - whatever we had is discarded
+                this.channel = new FileOutputStream(partFile).getChannel();
+                return STATE.CONTINUE;
+            }
+
+            if (code == 206 && resumeFrom > 0) {
+                // the rest of the image - append to what we had
+                checksumPartFile();
+                this.channel = new FileOutputStream(partFile, true).getChannel();
+                this.totalBytesRead = resumeFrom;
                 return STATE.CONTINUE;
             }
 
             LOG.error("Expected status code 200 but got: " + code);
 
-            failed();
+            if (code >= 500 || code == 429) {
+                // the host is struggling, as opposed to e.g. not having the image: the next
+                // attempt can still resume from our partial bytes
+                errorClass = ErrorClass.SERVER_ERROR;
+                failed(true);
+                return STATE.ABORT;
+            }
+
+            // e.g. 416 - our partial bytes do not match what the server has any more
+            failed(false);
             return STATE.ABORT;
         }
 
@@ -290,7 +566,22 @@ public class ImageHttpDownloader {
             String contentLength = headers.getHeaders().getFirstValue("content-length");
 
             if (contentLength != null) {
-                fileSize = Long.valueOf(contentLength);
+                fileSize = totalBytesRead + Long.valueOf(contentLength);
+                progressStep = Math.max(1, fileSize / 100);
+            }
+
+            nextProgressBytes = totalBytesRead + progressStep;
+
+            if (totalBytesRead > 0) {
+                String contentRange = headers.getHeaders().getFirstValue("content-range");
+
+                if (contentRange == null || !contentRange.startsWith("bytes " + resumeFrom + "-")) {
+                    LOG.error("Asked for {} from byte {} but got range {}", new Object[] { url,
+                            resumeFrom, contentRange });
+
+                    failed(false);
+                    return STATE.ABORT;
+                }
             }
 
             return STATE.CONTINUE;
@@ -298,33 +589,180 @@ public class ImageHttpDownloader {
 
         @Override
         public File onCompleted() throws Exception {
-            fos.close();
+            if (channel == null) {
+                // aborted - already failed
+                return null;
+            }
+
+            channel.close();
+
+            if (fileSize != null && totalBytesRead != fileSize) {
+                LOG.error("Expected {} bytes of {} but got {}", new Object[] { fileSize, url,
+                        totalBytesRead });
+
+                // the connection went away early
+                errorClass = ErrorClass.CONNECTION;
+                return failed(true);
+            }
+
+            if (!partFile.renameTo(file)) {
+                // some platforms will not rename over an existing file
+                file.delete();
+
+                if (!partFile.renameTo(file)) {
+                    LOG.error("Could not rename {} to {}", partFile, file);
+                    return failed(false);
+                }
+            }
 
             return onCompleted_success();
         }
 
         private File onCompleted_success() {
-            LOG.info("Downloaded {}", url);
-            callback.onImageFetchSuccess(url, file);
+            LOG.info("Downloaded {} (CRC-32 {})", url, Long.toHexString(checksum.getValue()));
+            imageCache.added(url, checksum.getValue());
+
+            if (release()) {
+                callback.onImageFetchSuccess(url, file);
+            }
 
             return file;
         }
 
-        private File failed() {
-            LOG.info("Failed to download {}", url);
-            file.delete();
+        /**
+         * Stops the download as nobody wants it any more, keeping the bytes written so far.
+         */
+        private STATE abandon() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            } catch (Exception e) {
+                LOG.error("Couldn't close stream", e);
+            }
 
-            callback.onImageFetchFail(url);
+            if (release()) {
+                LOG.info("Stopped downloading {} after {} bytes", url, totalBytesRead);
+                callback.stopped();
+            }
+
+            return STATE.ABORT;
+        }
+
+        /**
+         * @param resumable
+         *            true if the bytes written so far can be resumed from by the next attempt
+         */
+        private File failed(boolean resumable) {
+            LOG.info("Failed to download {}", url);
 
             try {
-                if (fos != null) {
-                    fos.close();
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
                 }
             } catch (Exception e) {
                 LOG.error("Couldn't close stream", e);
             }
 
+            if (!resumable) {
+                partFile.delete();
+            }
+
+            // the client may report an aborted download more than once
+            if (!release()) {
+                return null;
+            }
+
+            long retryDelay = errorClass == null ? -1 : retryPolicy.getRetryDelay(errorClass,
+                    attempt);
+
+            if (retryDelay >= 0) {
+                LOG.info("Retrying {} in {}ms after attempt {} failed with {}", new Object[] { url,
+                        retryDelay, attempt, errorClass });
+                scheduleRetry(url, callback, attempt + 1, retryDelay);
+            } else {
+                callback.onImageFetchFail(url);
+            }
+
             return null;
         }
+
+        /**
+         * @return the chunk's bytes, without copying them if the client lets us
+         */
+        private ByteBuffer getBuffer(HttpResponseBodyPart bodyPart) {
+            if (bodyPart instanceof ResponseBodyPart) {
+                return ((ResponseBodyPart) bodyPart).getChannelBuffer().toByteBuffer();
+            }
+
+            return bodyPart.getBodyByteBuffer();
+        }
+
+        /**
+         * Adds the buffer's remaining bytes to the {@link #checksum}, leaving its position as it
+         * was.
+         */
+        private void updateChecksum(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                return;
+            }
+
+            int position = buffer.position();
+
+            while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), getScratch().length);
+
+                buffer.get(scratch, 0, length);
+                checksum.update(scratch, 0, length);
+            }
+
+            buffer.position(position);
+        }
+
+        /**
+         * Starts the {@link #checksum} off with the bytes we are resuming from.
+         */
+        private void checksumPartFile() throws IOException {
+            FileInputStream in = new FileInputStream(partFile);
+
+            try {
+                int length = 0;
+
+                while ((length = in.read(getScratch())) != -1) {
+                    checksum.update(scratch, 0, length);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private byte[] getScratch() {
+            if (scratch == null) {
+                scratch = new byte[SCRATCH_SIZE];
+            }
+
+            return scratch;
+        }
+
+        /**
+         * @return true if this call released the connection, false if an earlier one had
+         */
+        private boolean release() {
+            synchronized (this) {
+                if (released) {
+                    return false;
+                }
+
+                released = true;
+            }
+
+            hostConnectionLimiter.release(host, Math.max(0, totalBytesRead - resumeFrom),
+                    errorClass != null);
+            return true;
+        }
     }
 }
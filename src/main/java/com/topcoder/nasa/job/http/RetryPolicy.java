@@ -0,0 +1,96 @@
+package com.topcoder.nasa.job.http;
+
+import java.util.Random;
+
+/**
+ * Decides whether, and after how long, a failed image download is tried again.
+ * <p/>
+ * Each {@link ErrorClass} has its own number of attempts. The delay before attempt <i>n</i> + 1 is
+ * {@link #baseDelayMillis} * 2<sup><i>n</i> - 1</sup>, capped at {@link #maxDelayMillis}, then
+ * jittered down by up to half so that images that failed together don't all come back together.
+ * <p/>
+ * Failures that don't fall into an {@link ErrorClass} (e.g. a 404) are never retried.
+ *
+ */
+public class RetryPolicy {
+    /**
+     * The kinds of failure we retry.
+     */
+    public enum ErrorClass {
+        /** The server answered 5xx or 429 */
+        SERVER_ERROR,
+
+        /** The request timed out */
+        TIMEOUT,
+
+        /** The connection could not be made, or was reset or closed mid-transfer */
+        CONNECTION
+    }
+
+    private int maxServerErrorAttempts = 3;
+    private int maxTimeoutAttempts = 3;
+    private int maxConnectionAttempts = 5;
+
+    private long baseDelayMillis = 1000;
+    private long maxDelayMillis = 60000;
+
+    private final Random random = new Random();
+
+    // =========================================================================
+
+    /**
+     * @param errorClass
+     *            what went wrong
+     * @param attempt
+     *            the number of the attempt that just failed, starting at 1
+     * @return how long to wait before trying again, or -1 if we should give up
+     */
+    public long getRetryDelay(ErrorClass errorClass, int attempt) {
+        if (attempt >= getMaxAttempts(errorClass)) {
+            return -1;
+        }
+
+        long delay = baseDelayMillis << Math.min(attempt - 1, 30);
+
+        if (delay <= 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+
+        synchronized (random) {
+            return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+    }
+
+    private int getMaxAttempts(ErrorClass errorClass) {
+        switch (errorClass) {
+        case SERVER_ERROR:
+            return maxServerErrorAttempts;
+        case TIMEOUT:
+            return maxTimeoutAttempts;
+        default:
+            return maxConnectionAttempts;
+        }
+    }
+
+    // =========================================================================
+
+    public void setMaxServerErrorAttempts(int maxServerErrorAttempts) {
+        this.maxServerErrorAttempts = maxServerErrorAttempts;
+    }
+
+    public void setMaxTimeoutAttempts(int maxTimeoutAttempts) {
+        this.maxTimeoutAttempts = maxTimeoutAttempts;
+    }
+
+    public void setMaxConnectionAttempts(int maxConnectionAttempts) {
+        this.maxConnectionAttempts = maxConnectionAttempts;
+    }
+
+    public void setBaseDelayMillis(long baseDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+}
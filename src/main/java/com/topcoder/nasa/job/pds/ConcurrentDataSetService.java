@@ -0,0 +1,282 @@
+package com.topcoder.nasa.job.pds;
+
+import gov.nasa.pds.entities.EntityInfo;
+import gov.nasa.pds.entities.MapImage;
+import gov.nasa.pds.entities.Page;
+import gov.nasa.pds.entities.PagedResults;
+import gov.nasa.pds.entities.SearchCriteria;
+import gov.nasa.pds.services.DataSetProcessingException;
+import gov.nasa.pds.services.DataSetService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decorates the {@link DataSetService} with a faster way of resolving the image paths of all the
+ * {@link MapImage}s matching a {@link SearchCriteria}:
+ * <ul>
+ * <li>up to {@link #maxConcurrentPages} pages are requested at the same time, from a pool shared
+ * by all jobs. As we don't know the number of pages up front, we keep that many pages in flight
+ * until the first short page tells us where the results end</li>
+ * <li>the page size adapts between {@link #minPageSize} and {@link #maxPageSize}: it doubles after
+ * a multi-page search whose pages came back within {@link #targetPageMillis}, and halves when
+ * pages are slower than twice that</li>
+ * <li>the entities of several pages are resolved to paths in one
+ * {@link DataSetService#getMapImagePaths(List)} call of up to {@link #pathBatchSize} entities,
+ * while the next pages are still being fetched</li>
+ * </ul>
+ * The {@link DataSetService} only offers OFFSET-style {@link Page}s, so keyset paging is not
+ * available to us here; a page size that grows with the search keeps the number of OFFSET round
+ * trips down instead.
+ *
+ */
+@Component
+public class ConcurrentDataSetService {
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentDataSetService.class);
+
+    @Autowired
+    private DataSetService dataSetService;
+
+    @Value("${pds.max-concurrent-pages:4}")
+    private int maxConcurrentPages;
+
+    @Value("${pds.min-page-size:100}")
+    private int minPageSize;
+
+    @Value("${pds.max-page-size:1000}")
+    private int maxPageSize;
+
+    @Value("${pds.target-page-millis:2000}")
+    private long targetPageMillis;
+
+    @Value("${pds.path-batch-size:500}")
+    private int pathBatchSize;
+
+    /** The page size the next search will use. */
+    private AtomicInteger pageSize = new AtomicInteger();
+
+    /** Runs the page requests of all searches. */
+    private ExecutorService pageExecutor;
+
+    // =========================================================================
+
+    @PostConstruct
+    public void init() {
+        pageSize.set(minPageSize);
+        pageExecutor = Executors.newFixedThreadPool(maxConcurrentPages);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pageExecutor.shutdownNow();
+    }
+
+    // =========================================================================
+
+    /**
+     * Finds the image paths of all the {@link MapImage}s matching the given criteria, passing them
+     * on to the listener batch by batch as soon as they are resolved.
+     *
+     * @param searchCriteria
+     *            the criteria that each MapImage must meet
+     * @param listener
+     *            what to tell about each batch of image paths
+     * @return the total number of image paths found
+     * @throws DataSetProcessingException
+     *             if something went wrong fetching the data
+     */
+    public int findMapImagePaths(SearchCriteria searchCriteria, MapImagePathListener listener)
+            throws DataSetProcessingException {
+        Search search = new Search(searchCriteria, pageSize.get(), listener);
+
+        try {
+            search.run();
+        } finally {
+            search.cancel();
+        }
+
+        adaptPageSize(search);
+
+        return search.pathCount;
+    }
+
+    /**
+     * Grows the page size if the last search needed more pages than we request at once and they
+     * were quick; shrinks it if they were slow.
+     */
+    private void adaptPageSize(Search search) {
+        if (search.pagesFetched == 0) {
+            return;
+        }
+
+        long averagePageMillis = search.totalPageMillis / search.pagesFetched;
+        int current = search.pageSize;
+        int next = current;
+
+        if (averagePageMillis > 2 * targetPageMillis) {
+            next = Math.max(minPageSize, current / 2);
+        } else if (averagePageMillis < targetPageMillis && search.lastPage > maxConcurrentPages) {
+            next = Math.min(maxPageSize, current * 2);
+        }
+
+        if (next != current && pageSize.compareAndSet(current, next)) {
+            LOG.info("PDS pages took {}ms on average; page size is now {}", averagePageMillis, next);
+        }
+    }
+
+    // =========================================================================
+
+    /**
+     * The state of one call to {@link ConcurrentDataSetService#findMapImagePaths}. Only ever
+     * touched by the calling thread; the page requests themselves run on the
+     * {@link ConcurrentDataSetService#pageExecutor}.
+     */
+    private class Search {
+        private final SearchCriteria searchCriteria;
+        private final int pageSize;
+        private final MapImagePathListener listener;
+
+        private final CompletionService<PageResult> completionService =
+                new ExecutorCompletionService<PageResult>(pageExecutor);
+        private final List<Future<PageResult>> futures = new ArrayList<Future<PageResult>>();
+
+        /** Entities waiting for their paths to be looked up. */
+        private final List<EntityInfo> pendingEntities = new ArrayList<EntityInfo>();
+
+        private int nextPage = 1;
+        private int lastPage = Integer.MAX_VALUE;
+        private int pagesInFlight;
+
+        private int pagesFetched;
+        private long totalPageMillis;
+        private int pathCount;
+
+        Search(SearchCriteria searchCriteria, int pageSize, MapImagePathListener listener) {
+            this.searchCriteria = searchCriteria;
+            this.pageSize = pageSize;
+            this.listener = listener;
+        }
+
+        void run() throws DataSetProcessingException {
+            LOG.info("Searching MapImages {} at a time, {} pages at once, for SearchCriteria {}",
+                    new Object[] { pageSize, maxConcurrentPages, searchCriteria.toJSONString() });
+
+            while (pagesInFlight < maxConcurrentPages) {
+                submitNextPage();
+            }
+
+            while (pagesInFlight > 0) {
+                PageResult result = takePage();
+
+                pagesFetched++;
+                totalPageMillis += result.millis;
+
+                if (result.entities.size() < pageSize) {
+                    lastPage = Math.min(lastPage, result.pageNumber);
+                }
+
+                if (result.pageNumber <= lastPage) {
+                    pendingEntities.addAll(result.entities);
+                }
+
+                if (nextPage <= lastPage) {
+                    submitNextPage();
+                }
+
+                if (pendingEntities.size() >= pathBatchSize) {
+                    lookUpPendingPaths();
+                }
+            }
+
+            lookUpPendingPaths();
+        }
+
+        private void submitNextPage() {
+            final int pageNumber = nextPage++;
+
+            futures.add(completionService.submit(new Callable<PageResult>() {
+                public PageResult call() throws Exception {
+                    long start = System.currentTimeMillis();
+
+                    LOG.debug("Fetching page {} of MapImage EntityInfos", pageNumber);
+                    PagedResults<EntityInfo> results = dataSetService.searchMapImagesByCriteria(
+                            searchCriteria, new Page(pageNumber, pageSize));
+
+                    return new PageResult(pageNumber, results.getResults(),
+                            System.currentTimeMillis() - start);
+                }
+            }));
+
+            pagesInFlight++;
+        }
+
+        private PageResult takePage() throws DataSetProcessingException {
+            try {
+                PageResult result = completionService.take().get();
+                pagesInFlight--;
+
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataSetProcessingException("Interrupted while paging MapImages", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DataSetProcessingException) {
+                    throw (DataSetProcessingException) e.getCause();
+                }
+
+                throw new DataSetProcessingException("Exception while paging MapImages", e.getCause());
+            }
+        }
+
+        private void lookUpPendingPaths() throws DataSetProcessingException {
+            if (pendingEntities.isEmpty()) {
+                return;
+            }
+
+            List<String> paths = dataSetService.getMapImagePaths(new ArrayList<EntityInfo>(
+                    pendingEntities));
+            pendingEntities.clear();
+
+            pathCount += paths.size();
+            listener.onMapImagePaths(paths);
+        }
+
+        void cancel() {
+            for (Future<PageResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * One page of {@link EntityInfo}s and how long it took to fetch.
+     */
+    private static class PageResult {
+        private final int pageNumber;
+        private final List<EntityInfo> entities;
+        private final long millis;
+
+        PageResult(int pageNumber, List<EntityInfo> entities, long millis) {
+            this.pageNumber = pageNumber;
+            this.entities = entities;
+            this.millis = millis;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.topcoder.nasa.job.pds;
+
+import java.util.List;
+
+/**
+ * Told about the image paths (URLs) of each batch of {@link gov.nasa.pds.entities.MapImage}s as
+ * soon as the {@link PdsServiceTask} has resolved it.
+ *
+ */
+public interface MapImagePathListener {
+    /**
+     * Called once per batch of results, from the thread running the {@link PdsServiceTask}.
+     * 
+     * @param paths
+     *            the image paths of this batch
+     */
+    void onMapImagePaths(List<String> paths);
+}
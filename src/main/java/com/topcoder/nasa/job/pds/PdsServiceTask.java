@@ -0,0 +1,48 @@
+package com.topcoder.nasa.job.pds;
+
+import gov.nasa.pds.entities.MapImage;
+import gov.nasa.pds.entities.SearchCriteria;
+import gov.nasa.pds.services.DataSetProcessingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pages through the {@link MapImage}s matching a {@link SearchCriteria} and streams their image
+ * paths, batch by batch, to a {@link MapImagePathListener}. The listener typically hands the paths
+ * straight to the image fetcher, so downloads overlap with the remaining PDS paging.
+ *
+ */
+@Component
+public class PdsServiceTask {
+    private static final Logger LOG = LoggerFactory.getLogger(PdsServiceTask.class);
+
+    @Autowired
+    private ConcurrentDataSetService concurrentDataSetService;
+
+    /**
+     * Uses our {@link #concurrentDataSetService} to find work out which {@link MapImage}s are of
+     * interest to the given {@link SearchCriteria}, and subsequently to fetch all the paths to
+     * those images. The paths are passed on to the listener as soon as they are known.
+     * 
+     * @param searchCriteria
+     *            the criteria that each MapImage must meet
+     * @param listener
+     *            what to tell about each batch of image paths
+     * @return the total number of image paths found
+     * @throws DataSetProcessingException
+     *             if something went wrong fetching the data
+     */
+    public int findMapImagePaths(SearchCriteria searchCriteria, MapImagePathListener listener)
+            throws DataSetProcessingException {
+        LOG.info("Finding MapImage paths for SearchCriteria {}", searchCriteria.toJSONString());
+
+        int pathCount = concurrentDataSetService.findMapImagePaths(searchCriteria, listener);
+
+        LOG.info("Found {} MapImage paths", pathCount);
+
+        return pathCount;
+    }
+}
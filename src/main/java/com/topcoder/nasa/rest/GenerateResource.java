@@ -2,10 +2,18 @@ package com.topcoder.nasa.rest;
 
 import gov.nasa.pds.entities.SearchCriteria;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 
 import org.slf4j.Logger;
@@ -56,16 +64,88 @@ public class GenerateResource {
         // force use of LRO
         searchCriteria.setUseLRO(true);
 
-        // capture the output format
-        lmmpJob.setOutputFormat(searchCriteria.getOutputFormat());
+        // capture the output formats
+        lmmpJob.setOutputFormats(searchCriteria.getRequestedOutputFormats());
+
+        // persist the lmmp job - before the workflow gets to update it
+        lmmpJobRepository.add(lmmpJob);
 
         // start workflow
         lmmpJobWorkflow.startFor(lmmpJob, searchCriteria);
 
-        // persist the lmmp job
-        lmmpJobRepository.add(lmmpJob);
-
         return "{ \"trackingId\" : \"" + lmmpJob.getUuid() + "\" }";
     }
 
+    /**
+     * Creates jobs for a whole array of search criteria at once. Criteria that ask for the same
+     * thing - see {@link SearchCriteriaHasher} - share a single job. The tracking ids come back in
+     * the order of the criteria, so duplicates get the same id. A missing or empty array, or one
+     * with nulls in it, is a 400.
+     */
+    @POST
+    @Path("/batch")
+    @Consumes("application/json")
+    @Produces("application/json")
+    public Map<String, List<String>> generateBatch(List<LmmpSearchCriteria> searchCriteriaList) {
+        if (searchCriteriaList == null || searchCriteriaList.isEmpty()) {
+            throw badRequest("Please POST a JSON array of search criteria");
+        }
+
+        if (searchCriteriaList.contains(null)) {
+            throw badRequest("The array of search criteria must not contain nulls");
+        }
+
+        LOG.info("Proessing call to /generate/batch resource with {} criteria",
+                searchCriteriaList.size());
+
+        Map<String, LmmpJob> jobsByHash = new LinkedHashMap<String, LmmpJob>();
+        Map<LmmpJob, LmmpSearchCriteria> criteriaByJob = new LinkedHashMap<LmmpJob, LmmpSearchCriteria>();
+        List<String> trackingIds = new ArrayList<String>();
+
+        for (LmmpSearchCriteria searchCriteria : searchCriteriaList) {
+            // force use of LRO - before hashing, so it's the same for all
+            searchCriteria.setUseLRO(true);
+
+            String hash = SearchCriteriaHasher.hash(searchCriteria);
+            LmmpJob lmmpJob = jobsByHash.get(hash);
+
+            if (lmmpJob == null) {
+                lmmpJob = new LmmpJob();
+                lmmpJob.setOutputFormats(searchCriteria.getRequestedOutputFormats());
+
+                jobsByHash.put(hash, lmmpJob);
+                criteriaByJob.put(lmmpJob, searchCriteria);
+            }
+
+            trackingIds.add(lmmpJob.getUuid());
+        }
+
+        LOG.info("{} criteria came down to {} jobs", searchCriteriaList.size(), jobsByHash.size());
+
+        // persist the lmmp jobs - all in one go
+        lmmpJobRepository.addAll(new ArrayList<LmmpJob>(jobsByHash.values()));
+
+        // start workflows
+        for (Map.Entry<LmmpJob, LmmpSearchCriteria> entry : criteriaByJob.entrySet()) {
+            lmmpJobWorkflow.startFor(entry.getKey(), entry.getValue());
+        }
+
+        return Collections.singletonMap("trackingIds", trackingIds);
+    }
+
+    void setLmmpJobRepository(LmmpJobRepository lmmpJobRepository) {
+        this.lmmpJobRepository = lmmpJobRepository;
+    }
+
+    void setLmmpJobWorkflow(LmmpJobWorkflow lmmpJobWorkflow) {
+        this.lmmpJobWorkflow = lmmpJobWorkflow;
+    }
+
+    // =========================================================================
+
+    private static WebApplicationException badRequest(String reason) {
+        return new WebApplicationException(Response.status(400).type("text/plain").entity(reason)
+                .build());
+    }
+
 }
@@ -0,0 +1,43 @@
+package com.topcoder.nasa.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.topcoder.nasa.job.hadoop.HadoopJobRunner;
+import com.topcoder.nasa.job.hadoop.HadoopJobTracker;
+
+/**
+ * The /hadoop/job-end resource. Hadoop calls this when a job we submitted ends, if
+ * <code>hadoop.job-end-notification-url</code> points here - see {@link HadoopJobRunner}.
+ *
+ */
+@Component
+@Path("/hadoop/job-end")
+public class HadoopJobEndResource {
+    private static final Logger LOG = LoggerFactory.getLogger(HadoopJobEndResource.class);
+
+    @Autowired
+    private HadoopJobTracker hadoopJobTracker;
+
+    @GET
+    @Produces("text/plain")
+    public Response jobEnded(@QueryParam("jobId") String jobId, @QueryParam("status") String status) {
+        LOG.info("Job end notification for hadoop job id {}: {}", jobId, status);
+
+        if (jobId == null) {
+            return Response.status(400).entity("jobId is required").build();
+        }
+
+        hadoopJobTracker.onJobEndNotification(jobId);
+
+        return Response.ok("ok").build();
+    }
+}
@@ -2,13 +2,21 @@ package com.topcoder.nasa.rest;
 
 import gov.nasa.pds.entities.SearchCriteria;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+
 /**
- * Lmmp specialization of the PDS SearchCriteria which adds the output format as a field.
+ * Lmmp specialization of the PDS SearchCriteria which adds the output format(s) as fields: either
+ * or both of a single <code>outputFormat</code> and a list of <code>outputFormats</code>.
  *
  */
 public class LmmpSearchCriteria extends SearchCriteria {
     private String outputFormat;
 
+    private List<String> outputFormats;
+
     public String getOutputFormat() {
         return outputFormat;
     }
@@ -16,4 +24,30 @@ public class LmmpSearchCriteria extends SearchCriteria {
     public void setOutputFormat(String outputFormat) {
         this.outputFormat = outputFormat;
     }
+
+    public List<String> getOutputFormats() {
+        return outputFormats;
+    }
+
+    public void setOutputFormats(List<String> outputFormats) {
+        this.outputFormats = outputFormats;
+    }
+
+    /**
+     * @return the {@link #outputFormat}, if any, followed by the {@link #outputFormats}
+     */
+    @JsonIgnore
+    public List<String> getRequestedOutputFormats() {
+        List<String> requestedOutputFormats = new ArrayList<String>();
+
+        if (outputFormat != null) {
+            requestedOutputFormats.add(outputFormat);
+        }
+
+        if (outputFormats != null) {
+            requestedOutputFormats.addAll(outputFormats);
+        }
+
+        return requestedOutputFormats;
+    }
 }
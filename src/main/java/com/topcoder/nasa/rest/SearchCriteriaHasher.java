@@ -0,0 +1,148 @@
+package com.topcoder.nasa.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Works out a stable hash of an {@link LmmpSearchCriteria}, so that criteria asking for the same
+ * thing hash the same however the client happened to write them.
+ * <p/>
+ * The hash is the SHA-256 of the criteria's canonical JSON, which has:
+ * <ul>
+ * <li>object keys in sorted order, and no null values</li>
+ * <li>the arrays of the {@link #SET_VALUED_FIELDS set-valued criteria} sorted - PDS doesn't care
+ * what order the missions, targets etc. come in. Every other array keeps its order: a polygon's
+ * vertices, say, are not a set</li>
+ * <li>the output formats, however requested (<code>outputFormat</code> and/or
+ * <code>outputFormats</code>), as one sorted set under <code>outputFormats</code>: trimmed, lower
+ * case, without duplicates, and "gtiff" if none - just as the job will have them</li>
+ * </ul>
+ *
+ */
+public final class SearchCriteriaHasher {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final String OUTPUT_FORMAT = "outputFormat";
+
+    private static final String OUTPUT_FORMATS = "outputFormats";
+
+    private static final String DEFAULT_OUTPUT_FORMAT = "gtiff";
+
+    /** The top-level criteria whose values PDS treats as sets. */
+    private static final Set<String> SET_VALUED_FIELDS = new TreeSet<String>(Arrays.asList(
+            "dataSetIds", "instrumentHosts", "instruments", "missions", "targetTypes", "targets"));
+
+    /** Orders plain values by their JSON. */
+    private static final Comparator<Object> BY_JSON = new Comparator<Object>() {
+        public int compare(Object o1, Object o2) {
+            return toJson(o1).compareTo(toJson(o2));
+        }
+    };
+
+    private SearchCriteriaHasher() {
+    }
+
+    /**
+     * @return the criteria's hash, as 64 hex digits
+     */
+    public static String hash(LmmpSearchCriteria searchCriteria) {
+        return Hashing.sha256().hashString(canonicalJson(searchCriteria), Charsets.UTF_8)
+                .toString();
+    }
+
+    public static String canonicalJson(LmmpSearchCriteria searchCriteria) {
+        Object canonical = canonicalize(OBJECT_MAPPER.convertValue(searchCriteria, Object.class));
+
+        if (canonical instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> properties = (Map<String, Object>) canonical;
+
+            for (String field : SET_VALUED_FIELDS) {
+                if (properties.get(field) instanceof List) {
+                    sortPlainValues((List<?>) properties.get(field));
+                }
+            }
+
+            properties.remove(OUTPUT_FORMAT);
+            properties.put(OUTPUT_FORMATS, normalizeOutputFormats(searchCriteria
+                    .getRequestedOutputFormats()));
+        }
+
+        return toJson(canonical);
+    }
+
+    // =========================================================================
+
+    private static List<String> normalizeOutputFormats(List<String> requestedOutputFormats) {
+        Set<String> outputFormats = new TreeSet<String>();
+
+        for (String outputFormat : requestedOutputFormats) {
+            if (outputFormat != null && !outputFormat.trim().isEmpty()) {
+                outputFormats.add(outputFormat.trim().toLowerCase());
+            }
+        }
+
+        if (outputFormats.isEmpty()) {
+            outputFormats.add(DEFAULT_OUTPUT_FORMAT);
+        }
+
+        return new ArrayList<String>(outputFormats);
+    }
+
+    private static Object canonicalize(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getValue() != null) {
+                    sorted.put(String.valueOf(entry.getKey()), canonicalize(entry.getValue()));
+                }
+            }
+
+            return sorted;
+        }
+
+        if (value instanceof List) {
+            List<Object> elements = new ArrayList<Object>();
+
+            for (Object element : (List<?>) value) {
+                elements.add(canonicalize(element));
+            }
+
+            return elements;
+        }
+
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void sortPlainValues(List<?> values) {
+        for (Object value : values) {
+            if (value instanceof Map || value instanceof List) {
+                return; // not a set of plain values after all: leave it be
+            }
+        }
+
+        Collections.sort((List<Object>) values, BY_JSON);
+    }
+
+    private static String toJson(Object value) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(value);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to write search criteria as JSON", e);
+        }
+    }
+}
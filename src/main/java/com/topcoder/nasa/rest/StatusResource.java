@@ -1,22 +1,48 @@
 package com.topcoder.nasa.rest;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.PostConstruct;
+
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.topcoder.nasa.file.S3FileUrlCreator;
+import com.topcoder.nasa.job.JobChangeNotifier;
+import com.topcoder.nasa.job.JobChangeNotifier.Watch;
+import com.topcoder.nasa.job.JobPhase;
 import com.topcoder.nasa.job.LmmpJob;
+import com.topcoder.nasa.job.LmmpJob.PhaseTransition;
 import com.topcoder.nasa.job.LmmpJob.Status;
 import com.topcoder.nasa.job.LmmpJobRepository;
+import com.topcoder.nasa.job.PhaseLatencyHistograms;
+import com.topcoder.nasa.job.hadoop.HadoopProgressCollector;
 
 @Component
 @Path("/status")
@@ -24,12 +50,61 @@ import com.topcoder.nasa.job.LmmpJobRepository;
 public class StatusResource {
     private static final Logger LOG = LoggerFactory.getLogger(StatusResource.class);
 
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     @Autowired
     private LmmpJobRepository jobRepository;
 
     @Autowired
     private S3FileUrlCreator urlCreator;
 
+    @Autowired
+    private PhaseLatencyHistograms phaseLatencyHistograms;
+
+    @Autowired
+    private HadoopProgressCollector hadoopProgressCollector;
+
+    @Autowired
+    private JobChangeNotifier jobChangeNotifier;
+
+    /** The longest a status request may wait for a change */
+    @Value("${status.max-wait-seconds:60}")
+    private int maxWaitSeconds;
+
+    /** How often waiting requests/streams look at the job regardless (it may be another server's) */
+    @Value("${status.recheck-millis:5000}")
+    private long recheckMillis;
+
+    /** The longest an event stream is kept open */
+    @Value("${status.max-stream-minutes:60}")
+    private int maxStreamMinutes;
+
+    /** How many status requests may wait for a change at once; the rest are answered straight away */
+    @Value("${status.max-waiters:100}")
+    private int maxWaiters;
+
+    /** How many event streams may be open at once; the rest are turned away */
+    @Value("${status.max-streams:50}")
+    private int maxStreams;
+
+    /** The most UUIDs one POST to /status may ask about */
+    @Value("${status.max-batch-size:1000}")
+    private int maxBatchSize;
+
+    /**
+     * Each waiting request or open stream holds a container thread, so these keep them from taking
+     * all of the threads /generate needs.
+     */
+    private Semaphore waiterSlots;
+
+    private Semaphore streamSlots;
+
+    @PostConstruct
+    public void init() {
+        waiterSlots = new Semaphore(maxWaiters);
+        streamSlots = new Semaphore(maxStreams);
+    }
+
     @GET
     @Produces("text/plain")
     public Response nop() {
@@ -37,29 +112,333 @@ public class StatusResource {
                 .build();
     }
 
+    /**
+     * The status of many jobs at once, by UUID. Takes a JSON array of up to {@link #maxBatchSize}
+     * UUIDs; a missing or empty array, one that's too long or one with nulls in it is a 400.
+     */
+    @POST
+    @Consumes("application/json")
+    @Produces("application/json")
+    public Map<String, StatusResponse> statuses(List<String> uuids) {
+        if (uuids == null || uuids.isEmpty()) {
+            throw badRequest("Please POST a JSON array of job UUIDs");
+        }
+
+        if (uuids.size() > maxBatchSize) {
+            throw badRequest("Please ask for no more than " + maxBatchSize + " jobs at once");
+        }
+
+        if (uuids.contains(null)) {
+            throw badRequest("The array of job UUIDs must not contain nulls");
+        }
+
+        LOG.info("Proessing call to /status resource for {} jobs", uuids.size());
+
+        Map<String, LmmpJob> jobs = new LinkedHashMap<String, LmmpJob>();
+        List<LmmpJob> completedJobs = new ArrayList<LmmpJob>();
+
+        for (String uuid : uuids) {
+            LmmpJob job = jobRepository.load(uuid);
+
+            jobs.put(uuid, job);
+
+            if (job != null && job.getStatus().equals(Status.COMPLETED)) {
+                completedJobs.add(job);
+            }
+        }
+
+        Map<String, String> links = urlCreator.generateUrlsFor(completedJobs);
+        Map<String, StatusResponse> statuses = new LinkedHashMap<String, StatusResponse>();
+
+        for (Map.Entry<String, LmmpJob> entry : jobs.entrySet()) {
+            LmmpJob job = entry.getValue();
+
+            statuses.put(entry.getKey(), job == null ? notFoundResponse() : toStatusResponse(job,
+                    links.get(job.getUuid())));
+        }
+
+        return statuses;
+    }
+
+    /**
+     * How well the cache of presigned result URLs is doing.
+     */
+    @GET
+    @Path("/url-cache")
+    @Produces("application/json")
+    public Map<String, Object> urlCacheStats() {
+        return urlCreator.getCacheStats();
+    }
+
+    /**
+     * How long each phase has taken, across all jobs since the server started.
+     */
+    @GET
+    @Path("/phase-latencies")
+    @Produces("application/json")
+    public Map<String, Map<String, Object>> phaseLatencies() {
+        return phaseLatencyHistograms.getSummary();
+    }
+
+    /**
+     * The job's status. With <code>waitFor</code> (seconds, capped at {@link #maxWaitSeconds}) and
+     * <code>since</code> (the version from a previous response), doesn't answer until the job has
+     * moved on from that version, it finishes or the time is up - whichever comes first. If
+     * {@link #maxWaiters} requests are waiting already, answers straight away.
+     */
     @GET
     @Path("/{uuid}")
     @Produces("application/json")
-    public StatusResponse generate(@PathParam("uuid") String uuid) {
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StatusResponse generate(@PathParam("uuid") String uuid,
+            @QueryParam("waitFor") Integer waitFor, @QueryParam("since") Integer since) {
         LOG.info("Proessing call to /status/{} resource", uuid);
 
-        LmmpJob job = jobRepository.load(uuid);
-        StatusResponse lmmpJobStatus = new StatusResponse();
+        LmmpJob job;
+
+        if (waitFor == null || since == null) {
+            job = jobRepository.load(uuid);
+        } else if (!waiterSlots.tryAcquire()) {
+            LOG.debug("{} status requests waiting already: answering for {} now", maxWaiters, uuid);
+            job = jobRepository.load(uuid);
+        } else {
+            try {
+                job = awaitChange(uuid, since, Math.min(waitFor, maxWaitSeconds) * 1000L);
+            } finally {
+                waiterSlots.release();
+            }
+        }
 
         if (job == null) {
-            lmmpJobStatus.setStatus("not_found");
-            lmmpJobStatus.setReason("Unknown UUID!");
-            Response the404 = Response.status(404).entity(lmmpJobStatus).build();
-            throw new WebApplicationException(the404);
+            throw notFound();
         }
 
-        lmmpJobStatus.setStatus(job.getStatus().displayName());
-        lmmpJobStatus.setReason(job.getFailInfo());
+        return toStatusResponse(job);
+    }
+
+    /**
+     * Streams the job's progress as server-sent events: a <code>phase</code> event for each
+     * {@link PhaseTransition} (the ones so far first), and a <code>status</code> event - the same
+     * JSON as {@link #generate(String, Integer, Integer)} - whenever the job changes. The stream ends
+     * once the job is finished, or after {@link #maxStreamMinutes}. If {@link #maxStreams} streams
+     * are open already, answers 503.
+     * <p/>
+     * A stream takes its slot only once it is being written, and gives it back when done, so a
+     * response that never gets written (e.g. the client went away first) holds no slot. One that
+     * finds the slots gone by then - taken in the meantime - just tells the client to retry.
+     */
+    @GET
+    @Path("/{uuid}/events")
+    @Produces("text/event-stream")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Response events(@PathParam("uuid") final String uuid) {
+        LOG.info("Proessing call to /status/{}/events resource", uuid);
+
+        if (jobRepository.load(uuid) == null) {
+            throw notFound();
+        }
+
+        if (streamSlots.availablePermits() == 0) {
+            LOG.warn("{} event streams open already: turning away the one for {}", maxStreams, uuid);
+
+            return Response.status(503).header("Retry-After", Math.max(1, recheckMillis / 1000))
+                    .type(MediaType.TEXT_PLAIN).entity("Too many event streams open, try later")
+                    .build();
+        }
+
+        StreamingOutput events = new StreamingOutput() {
+            public void write(OutputStream output) throws IOException {
+                Writer writer = new OutputStreamWriter(output, "UTF-8");
+
+                if (!streamSlots.tryAcquire()) {
+                    LOG.warn("{} event streams open already: ending the one for {}", maxStreams, uuid);
+
+                    // too late for a 503: have the client's EventSource come back later instead
+                    writer.write("retry: " + Math.max(1000, recheckMillis)
+                            + "\n: too many event streams open\n\n");
+                    writer.flush();
+                    return;
+                }
+
+                try {
+                    streamEvents(uuid, writer);
+                } finally {
+                    streamSlots.release();
+                }
+            }
+        };
+
+        return Response.ok(events).header("Cache-Control", "no-cache").build();
+    }
+
+    // =============================================================================
+
+    private LmmpJob awaitChange(String uuid, int since, long waitMillis) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        Watch watch = jobChangeNotifier.watch(uuid);
+
+        try {
+            while (true) {
+                // before loading, so no change slips by in between
+                long changeCount = watch.getChangeCount();
+                LmmpJob job = jobRepository.load(uuid);
+
+                if (job == null || job.getVersion() != since || job.isFinished()) {
+                    return job;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    return job;
+                }
+
+                try {
+                    watch.awaitChange(changeCount, Math.min(remaining, recheckMillis));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return job;
+                }
+            }
+        } finally {
+            watch.close();
+        }
+    }
+
+    private void streamEvents(String uuid, Writer writer) throws IOException {
+        Watch watch = jobChangeNotifier.watch(uuid);
+
+        try {
+            streamEvents(uuid, writer, watch);
+        } finally {
+            watch.close();
+        }
+    }
+
+    private void streamEvents(String uuid, Writer writer, Watch watch) throws IOException {
+        long deadline = System.currentTimeMillis() + maxStreamMinutes * 60 * 1000L;
+        int sentTransitions = 0;
+        Integer sentVersion = null;
+
+        while (true) {
+            long changeCount = watch.getChangeCount();
+            LmmpJob job = jobRepository.load(uuid);
+
+            if (job == null) {
+                return;
+            }
+
+            List<PhaseTransition> transitions = job.getPhaseTransitions();
+
+            for (; sentTransitions < transitions.size(); sentTransitions++) {
+                writeEvent(writer, "phase", toPhaseEvent(transitions.get(sentTransitions)));
+            }
+
+            // a finished job may not be saved yet, but its status is final: send it regardless
+            if (sentVersion == null || sentVersion != job.getVersion() || job.isFinished()) {
+                writeEvent(writer, "status", toStatusResponse(job));
+                sentVersion = job.getVersion();
+            } else {
+                // also how we find out the client has gone
+                writer.write(": keep-alive\n\n");
+            }
+
+            writer.flush();
+
+            if (job.isFinished() || System.currentTimeMillis() >= deadline) {
+                return;
+            }
+
+            try {
+                watch.awaitChange(changeCount, recheckMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void writeEvent(Writer writer, String event, Object data) throws IOException {
+        writer.write("event: " + event + "\n");
+        writer.write("data: " + OBJECT_MAPPER.writeValueAsString(data) + "\n\n");
+    }
+
+    private static Map<String, Object> toPhaseEvent(PhaseTransition transition) {
+        Map<String, Object> phaseEvent = new LinkedHashMap<String, Object>();
+
+        phaseEvent.put("status", transition.getStatus().displayName());
+        phaseEvent.put("phase", transition.getPhase().displayName());
+        phaseEvent.put("enteredAt", transition.getEnteredAt());
+
+        return phaseEvent;
+    }
+
+    private static WebApplicationException badRequest(String reason) {
+        return new WebApplicationException(Response.status(400).type(MediaType.TEXT_PLAIN)
+                .entity(reason).build());
+    }
+
+    private static WebApplicationException notFound() {
+        Response the404 = Response.status(404).type(MediaType.APPLICATION_JSON)
+                .entity(notFoundResponse()).build();
+
+        return new WebApplicationException(the404);
+    }
+
+    private static StatusResponse notFoundResponse() {
+        StatusResponse lmmpJobStatus = new StatusResponse();
+
+        lmmpJobStatus.setStatus("not_found");
+        lmmpJobStatus.setReason("Unknown UUID!");
+
+        return lmmpJobStatus;
+    }
+
+    private StatusResponse toStatusResponse(LmmpJob job) {
+        String link = null;
 
         if (job.getStatus().equals(Status.COMPLETED)) {
-            lmmpJobStatus.setLink(urlCreator.generateUrlFor(job));
+            link = urlCreator.generateUrlFor(job);
+        }
+
+        return toStatusResponse(job, link);
+    }
+
+    private StatusResponse toStatusResponse(LmmpJob job, String link) {
+        StatusResponse lmmpJobStatus = new StatusResponse();
+
+        // a workflow thread may be changing the job: read it all as of the same moment
+        synchronized (job) {
+            lmmpJobStatus.setStatus(job.getStatus().displayName());
+            lmmpJobStatus.setReason(job.getFailInfo());
+            lmmpJobStatus.setVersion(job.getVersion());
+            setTimings(lmmpJobStatus, job);
+        }
+
+        lmmpJobStatus.setHadoopProgress(hadoopProgressCollector.getProgress(job.getUuid()));
+        lmmpJobStatus.setLink(link);
+
+        if (link != null) {
+            lmmpJobStatus.setLinks(urlCreator.generateUrlsByFormatFor(job));
         }
 
         return lmmpJobStatus;
     }
+
+    private void setTimings(StatusResponse lmmpJobStatus, LmmpJob job) {
+        if (job.getPhase() == null) {
+            // from before we kept track
+            return;
+        }
+
+        Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+
+        for (Map.Entry<JobPhase, Long> entry : job.getPhaseMillis().entrySet()) {
+            phaseMillis.put(entry.getKey().displayName(), entry.getValue());
+        }
+
+        lmmpJobStatus.setPhase(job.getPhase().displayName());
+        lmmpJobStatus.setPhaseMillis(phaseMillis);
+        lmmpJobStatus.setTotalMillis(job.getTotalMillis());
+    }
 }
@@ -1,12 +1,32 @@
 package com.topcoder.nasa.rest;
 
+import java.util.Map;
+
 import org.codehaus.jackson.map.annotate.JsonSerialize;
 
+import com.topcoder.nasa.job.hadoop.HadoopProgress;
+
 @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
 public class StatusResponse {
     private String status;
     private String link;
+
+    /** The links of the job's outputs, by output format */
+    private Map<String, String> links;
     private String reason;
+    private String phase;
+
+    /** The job's version: pass as <code>since</code> to wait for the next change */
+    private Integer version;
+
+    /** How long the job spent in each phase so far, in ms */
+    private Map<String, Long> phaseMillis;
+
+    /** How long the job took (or has taken so far), in ms */
+    private Long totalMillis;
+
+    /** How far along the job is in Hadoop, while it is running there */
+    private HadoopProgress hadoopProgress;
 
     public String getStatus() {
         return status;
@@ -24,6 +44,14 @@ public class StatusResponse {
         this.link = link;
     }
 
+    public Map<String, String> getLinks() {
+        return links;
+    }
+
+    public void setLinks(Map<String, String> links) {
+        this.links = links;
+    }
+
     public String getReason() {
         return reason;
     }
@@ -31,4 +59,44 @@ public class StatusResponse {
     public void setReason(String reason) {
         this.reason = reason;
     }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+
+    public Map<String, Long> getPhaseMillis() {
+        return phaseMillis;
+    }
+
+    public void setPhaseMillis(Map<String, Long> phaseMillis) {
+        this.phaseMillis = phaseMillis;
+    }
+
+    public Long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public void setTotalMillis(Long totalMillis) {
+        this.totalMillis = totalMillis;
+    }
+
+    public HadoopProgress getHadoopProgress() {
+        return hadoopProgress;
+    }
+
+    public void setHadoopProgress(HadoopProgress hadoopProgress) {
+        this.hadoopProgress = hadoopProgress;
+    }
 }
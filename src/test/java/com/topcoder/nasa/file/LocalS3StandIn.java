@@ -0,0 +1,342 @@
+package com.topcoder.nasa.file;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Just enough of the S3 multipart upload API (path-style, no authentication) to test
+ * {@link S3FileUploader} against, on a local port.
+ * <p/>
+ * Speaks plain HTTP/1.1 over a server socket - the JDK's HttpServer changes the case of header
+ * names, and the AWS SDK looks for "ETag" exactly.
+ */
+public class LocalS3StandIn {
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+
+    private final AtomicInteger uploadIds = new AtomicInteger();
+
+    /** The parts of the uploads in progress, by upload id then part number */
+    private final Map<String, Map<Integer, byte[]>> uploads = new HashMap<String, Map<Integer, byte[]>>();
+
+    /** The completed objects, by path (/bucket/key) */
+    private final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+
+    /** The part numbers, in the order the completions listed them */
+    private final List<Integer> completedPartNumbers = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private final List<String> abortedUploadIds = Collections.synchronizedList(new ArrayList<String>());
+
+    /** The upload id of each part, in the order the parts arrived */
+    private final List<String> partArrivals = Collections.synchronizedList(new ArrayList<String>());
+
+    /** This part number is always rejected, if set */
+    private volatile int failingPartNumber;
+
+    /** How long each part takes, so that parts overlap */
+    private volatile long partMillis = 50;
+
+    // =========================================================================
+
+    public LocalS3StandIn() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+
+        connectionExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+
+                        connectionExecutor.execute(new Runnable() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // stopped
+                }
+            }
+        });
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+
+        connectionExecutor.shutdownNow();
+    }
+
+    public void setFailingPartNumber(int failingPartNumber) {
+        this.failingPartNumber = failingPartNumber;
+    }
+
+    public synchronized byte[] getObject(String bucket, String key) {
+        return objects.get("/" + bucket + "/" + key);
+    }
+
+    public synchronized int getUploadsInProgress() {
+        return uploads.size();
+    }
+
+    public List<Integer> getCompletedPartNumbers() {
+        return completedPartNumbers;
+    }
+
+    public List<String> getAbortedUploadIds() {
+        return abortedUploadIds;
+    }
+
+    public List<String> getPartArrivals() {
+        return partArrivals;
+    }
+
+    // =========================================================================
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream output = socket.getOutputStream();
+
+            // keep-alive: one request after the other, until the client closes
+            for (Request request; (request = Request.read(input, output)) != null;) {
+                output.write(handle(request));
+                output.flush();
+            }
+        } catch (IOException e) {
+            // client gone
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private byte[] handle(Request request) {
+        String method = request.method;
+        Map<String, String> query = request.query;
+
+        try {
+            if (method.equals("POST") && query.containsKey("uploads")) {
+                return initiate(request.path);
+            } else if (method.equals("PUT") && query.containsKey("partNumber")) {
+                return uploadPart(query.get("uploadId"), Integer.parseInt(query.get("partNumber")), request.body);
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                return complete(request.path, query.get("uploadId"), new String(request.body, Charsets.UTF_8));
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                return abort(query.get("uploadId"));
+            }
+
+            return error(400, "NotImplemented", method + " " + request.path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return error(500, "InternalError", "interrupted");
+        }
+    }
+
+    private byte[] initiate(String path) {
+        String uploadId = "upload-" + uploadIds.incrementAndGet();
+
+        synchronized (this) {
+            uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+        }
+
+        String[] bucketAndKey = path.substring(1).split("/", 2);
+
+        return xml(200, "<InitiateMultipartUploadResult><Bucket>" + bucketAndKey[0] + "</Bucket><Key>"
+                + bucketAndKey[1] + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private byte[] uploadPart(String uploadId, int partNumber, byte[] body) throws InterruptedException {
+        partArrivals.add(uploadId);
+        Thread.sleep(partMillis);
+
+        if (partNumber == failingPartNumber) {
+            return error(400, "InvalidPart", "part " + partNumber + " is rejected");
+        }
+
+        synchronized (this) {
+            Map<Integer, byte[]> parts = uploads.get(uploadId);
+
+            if (parts == null) {
+                return error(404, "NoSuchUpload", uploadId);
+            }
+
+            parts.put(partNumber, body);
+        }
+
+        return response(200, "ETag: \"" + Hashing.md5().hashBytes(body) + "\"\r\n", new byte[0]);
+    }
+
+    private byte[] complete(String path, String uploadId, String body) {
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+
+        synchronized (this) {
+            Map<Integer, byte[]> parts = uploads.remove(uploadId);
+
+            if (parts == null) {
+                return error(404, "NoSuchUpload", uploadId);
+            }
+
+            Matcher matcher = PART_NUMBER.matcher(body);
+
+            while (matcher.find()) {
+                int partNumber = Integer.parseInt(matcher.group(1));
+                byte[] part = parts.get(partNumber);
+
+                completedPartNumbers.add(partNumber);
+                object.write(part, 0, part.length);
+            }
+
+            objects.put(path, object.toByteArray());
+        }
+
+        return xml(200, "<CompleteMultipartUploadResult><Location>" + path + "</Location><ETag>\"done\"</ETag>"
+                + "</CompleteMultipartUploadResult>");
+    }
+
+    private byte[] abort(String uploadId) {
+        synchronized (this) {
+            uploads.remove(uploadId);
+        }
+
+        abortedUploadIds.add(uploadId);
+
+        return response(204, "", new byte[0]);
+    }
+
+    // =========================================================================
+
+    private static byte[] error(int status, String code, String message) {
+        return xml(status, "<Error><Code>" + code + "</Code><Message>" + message + "</Message>"
+                + "<RequestId>local</RequestId></Error>");
+    }
+
+    private static byte[] xml(int status, String xml) {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes(Charsets.UTF_8);
+
+        return response(status, "Content-Type: application/xml\r\n", body);
+    }
+
+    private static byte[] response(int status, String headers, byte[] body) {
+        String head = "HTTP/1.1 " + status + " Whatever\r\n" + headers + "Content-Length: " + body.length
+                + "\r\n\r\n";
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+        response.write(head.getBytes(Charsets.US_ASCII), 0, head.length());
+        response.write(body, 0, body.length);
+
+        return response.toByteArray();
+    }
+
+    // =========================================================================
+
+    /**
+     * An HTTP request, with a Content-Length body.
+     */
+    private static class Request {
+        private String method;
+        private String path;
+        private Map<String, String> query = new HashMap<String, String>();
+        private byte[] body;
+
+        /**
+         * @return null at the end of the connection
+         */
+        static Request read(DataInputStream input, OutputStream output) throws IOException {
+            String requestLine = readLine(input);
+
+            if (requestLine == null || requestLine.isEmpty()) {
+                return null;
+            }
+
+            Request request = new Request();
+            String[] parts = requestLine.split(" ");
+            URI uri = URI.create(parts[1]);
+            int contentLength = 0;
+            boolean expectContinue = false;
+
+            request.method = parts[0];
+            request.path = uri.getPath();
+
+            if (uri.getRawQuery() != null) {
+                for (String parameter : uri.getRawQuery().split("&")) {
+                    String[] nameAndValue = parameter.split("=", 2);
+
+                    request.query.put(nameAndValue[0], nameAndValue.length > 1 ? nameAndValue[1] : "");
+                }
+            }
+
+            for (String header; (header = readLine(input)) != null && !header.isEmpty();) {
+                String name = header.substring(0, header.indexOf(':')).trim();
+                String value = header.substring(header.indexOf(':') + 1).trim();
+
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(value);
+                } else if (name.equalsIgnoreCase("Expect") && value.equalsIgnoreCase("100-continue")) {
+                    expectContinue = true;
+                }
+            }
+
+            if (expectContinue) {
+                output.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(Charsets.US_ASCII));
+                output.flush();
+            }
+
+            request.body = new byte[contentLength];
+            input.readFully(request.body);
+
+            return request;
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            StringBuilder line = new StringBuilder();
+
+            for (int c; (c = input.read()) != '\n';) {
+                if (c == -1) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+
+            return line.toString();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.topcoder.nasa.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.topcoder.nasa.job.LmmpJob;
+
+/**
+ * Tests {@link S3FileUploader} against a {@link LocalS3StandIn}.
+ */
+public class S3FileUploaderTest {
+    private static final String BUCKET = "lmmp-test";
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private LocalS3StandIn s3;
+
+    private S3FileUploader uploader;
+
+    private LmmpJob job;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new LocalS3StandIn();
+
+        uploader = new S3FileUploader();
+        uploader.setBucketName(BUCKET);
+        uploader.setIdentity("identity");
+        uploader.setCredential("credential");
+        uploader.setEndpoint(s3.getEndpoint());
+        uploader.setPathStyleAccess(true);
+        uploader.setPartSizeBytes(PART_SIZE);
+        uploader.setConcurrency(2);
+        uploader.setMaxPartAttempts(2);
+        uploader.init();
+
+        job = new LmmpJob();
+    }
+
+    @After
+    public void tearDown() {
+        uploader.shutdown();
+        s3.stop();
+
+        delete(job);
+    }
+
+    // =========================================================================
+
+    @Test
+    public void uploadsThePartsInSequence() throws IOException {
+        byte[] content = writeOutput(5 * PART_SIZE + 1234);
+
+        uploader.upload(job);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), s3.getCompletedPartNumbers());
+        assertArrayEquals(content, s3.getObject(BUCKET, S3FileConstants.computeKey(job)));
+    }
+
+    @Test
+    public void interleavesThePartsOfConcurrentUploads() throws Exception {
+        writeOutput(5 * PART_SIZE + 1234);
+
+        final LmmpJob otherJob = new LmmpJob();
+        writeOutput(otherJob, 5 * PART_SIZE + 1234);
+
+        Thread firstUpload = new Thread() {
+            public void run() {
+                uploader.upload(job);
+            }
+        };
+
+        try {
+            firstUpload.start();
+
+            // the first upload has queued what it is going to queue up front
+            while (s3.getPartArrivals().isEmpty()) {
+                Thread.sleep(5);
+            }
+
+            uploader.upload(otherJob);
+            firstUpload.join();
+        } finally {
+            delete(otherJob);
+        }
+
+        // the first upload didn't queue all of its parts ahead of the other's
+        List<String> arrivals = s3.getPartArrivals();
+
+        assertEquals(12, arrivals.size());
+        assertTrue("part arrivals: " + arrivals,
+                !arrivals.subList(0, 6).equals(Collections.nCopies(6, arrivals.get(0))));
+    }
+
+    @Test
+    public void uploadsAnEmptyFileAsOnePart() throws IOException {
+        writeOutput(0);
+
+        uploader.upload(job);
+
+        assertEquals(Arrays.asList(1), s3.getCompletedPartNumbers());
+        assertEquals(0, s3.getObject(BUCKET, S3FileConstants.computeKey(job)).length);
+    }
+
+    @Test
+    public void abortsTheUploadWhenAPartKeepsFailing() throws IOException {
+        writeOutput(3 * PART_SIZE);
+        s3.setFailingPartNumber(2);
+
+        try {
+            uploader.upload(job);
+            fail("The upload should have failed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(1, s3.getAbortedUploadIds().size());
+        assertEquals(0, s3.getUploadsInProgress());
+        assertNull(s3.getObject(BUCKET, S3FileConstants.computeKey(job)));
+    }
+
+    // =========================================================================
+
+    private byte[] writeOutput(int size) throws IOException {
+        return writeOutput(job, size);
+    }
+
+    private static byte[] writeOutput(LmmpJob job, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+
+        File file = job.getJobCompletedFile();
+        file.getParentFile().mkdirs();
+
+        FileOutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+
+        return content;
+    }
+
+    private static void delete(LmmpJob job) {
+        File finalPath = job.getFinalPath();
+        File[] files = finalPath.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        finalPath.delete();
+    }
+}
@@ -0,0 +1,72 @@
+package com.topcoder.nasa.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.topcoder.nasa.file.S3FileUploader;
+
+/**
+ * Tests for {@link LmmpJobWorkflow}.
+ */
+public class LmmpJobWorkflowTest {
+
+    @Test
+    public void failsTheJobWhenTheUploadFails() {
+        LmmpJob job = new LmmpJob();
+        RecordingJobRepository repository = new RecordingJobRepository();
+
+        LmmpJobWorkflow workflow = new LmmpJobWorkflow();
+        workflow.setLmmpJobRepository(repository);
+        workflow.setFileUploader(new FailingUploader());
+        workflow.setResultIndex(new ResultIndex());
+
+        workflow.onTaskCompleted(job);
+
+        assertEquals(LmmpJob.Status.FAILED, job.getStatus());
+        assertTrue(job.getFailInfo(), job.getFailInfo().contains("failed"));
+        assertTrue(repository.updated.contains(job));
+    }
+
+    // =========================================================================
+
+    private static class FailingUploader extends S3FileUploader {
+        @Override
+        public void upload(LmmpJob job) {
+            throw new IllegalStateException("Upload of job " + job.getUuid() + " to S3 failed");
+        }
+    }
+
+    /**
+     * Remembers the jobs it was asked to update.
+     */
+    private static class RecordingJobRepository implements LmmpJobRepository {
+        private final List<LmmpJob> updated = new ArrayList<LmmpJob>();
+
+        public void add(LmmpJob job) {
+        }
+
+        public void addAll(List<LmmpJob> jobs) {
+        }
+
+        public void update(LmmpJob job) {
+            updated.add(job);
+        }
+
+        public LmmpJob load(String uuid) {
+            return null;
+        }
+
+        public LmmpJob findCompletedByResultKey(String resultKey) {
+            return null;
+        }
+
+        public List<LmmpJob> findRunningJobs() {
+            return new ArrayList<LmmpJob>();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.topcoder.nasa.job.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link GeoTiffHeader}, against small tifs:
+ * <ul>
+ * <li>classic-int16-epsg4326.tif: little-endian classic TIFF, 6x4 Int16, tiepoint and pixel scale,
+ * EPSG:4326 and a nodata value</li>
+ * <li>bigtiff-float32-moon.tif: big-endian BigTIFF, 8x4x3 Float32, model transformation with pixel
+ * is point, and a user-defined equirectangular Moon coordinate system as GDAL writes it</li>
+ * <li>classic-byte-oblique-mercator.tif: big-endian classic TIFF, 16x16 Byte in one tile, with a
+ * user-defined oblique Mercator projection</li>
+ * </ul>
+ */
+public class GeoTiffHeaderTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void readsAClassicTiff() throws Exception {
+        GeoTiffHeader header = GeoTiffHeader.read(fixture("classic-int16-epsg4326.tif"));
+
+        assertEquals(6, header.getWidth());
+        assertEquals(4, header.getHeight());
+        assertEquals(1, header.getBandCount());
+        assertEquals("Int16", header.getDataType());
+        assertEquals(6, header.getBlockWidth());
+        assertEquals(4, header.getBlockHeight());
+        assertArrayEquals(new double[] { -10, 0.5, 0, 20, 0, -0.25 }, header.getGeoTransform(), DELTA);
+        assertEquals("EPSG:4326", header.getSrs());
+        assertFalse(header.hasUnsupportedSrs());
+        assertEquals("-32768", header.getNoData());
+    }
+
+    @Test
+    public void readsABigTiff() throws Exception {
+        GeoTiffHeader header = GeoTiffHeader.read(fixture("bigtiff-float32-moon.tif"));
+
+        assertEquals(8, header.getWidth());
+        assertEquals(4, header.getHeight());
+        assertEquals(3, header.getBandCount());
+        assertEquals("Float32", header.getDataType());
+        assertNull(header.getNoData());
+    }
+
+    @Test
+    public void movesPixelIsPointToTheCorner() throws Exception {
+        GeoTiffHeader header = GeoTiffHeader.read(fixture("bigtiff-float32-moon.tif"));
+
+        // the model transformation puts the first pixel's centre at (-5000, 3000)
+        assertArrayEquals(new double[] { -5050, 100, 0, 3050, 0, -100 }, header.getGeoTransform(),
+                DELTA);
+    }
+
+    @Test
+    public void describesAUserDefinedSrsByWkt() throws Exception {
+        GeoTiffHeader header = GeoTiffHeader.read(fixture("bigtiff-float32-moon.tif"));
+
+        assertEquals("PROJCS[\"Equirectangular Moon\",GEOGCS[\"Moon 2000\",DATUM[\"D_Moon_2000\","
+                + "SPHEROID[\"Moon_2000_IAU_IAG\",1737400,0]],PRIMEM[\"Reference_Meridian\",0],"
+                + "UNIT[\"degree\",0.0174532925199433]],PROJECTION[\"Equirectangular\"],"
+                + "PARAMETER[\"latitude_of_origin\",0],PARAMETER[\"central_meridian\",180],"
+                + "PARAMETER[\"standard_parallel_1\",0],PARAMETER[\"false_easting\",0],"
+                + "PARAMETER[\"false_northing\",0],UNIT[\"metre\",1]]", header.getSrs());
+        assertFalse(header.hasUnsupportedSrs());
+    }
+
+    @Test
+    public void readsATiledBigEndianTiff() throws Exception {
+        GeoTiffHeader header = GeoTiffHeader.read(fixture("classic-byte-oblique-mercator.tif"));
+
+        assertEquals(16, header.getWidth());
+        assertEquals(16, header.getHeight());
+        assertEquals(1, header.getBandCount());
+        assertEquals("Byte", header.getDataType());
+        assertEquals(16, header.getBlockWidth());
+        assertEquals(16, header.getBlockHeight());
+        assertArrayEquals(new double[] { 500000, 30, 0, 4000000, 0, -30 }, header.getGeoTransform(),
+                DELTA);
+    }
+
+    @Test
+    public void flagsAProjectionItCannotDescribe() throws Exception {
+        GeoTiffHeader header = GeoTiffHeader.read(fixture("classic-byte-oblique-mercator.tif"));
+
+        assertNull(header.getSrs());
+        assertTrue(header.hasUnsupportedSrs());
+    }
+
+    @Test
+    public void rejectsWhatIsNotATiff() throws Exception {
+        File file = File.createTempFile("not-a-tiff", ".tif");
+
+        try {
+            Files.write("not a tiff, but long enough to map", file, Charsets.US_ASCII);
+            GeoTiffHeader.read(file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("is not a TIFF"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    // =========================================================================
+
+    private File fixture(String name) throws Exception {
+        return new File(getClass().getResource(name).toURI());
+    }
+}
@@ -0,0 +1,161 @@
+package com.topcoder.nasa.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import gov.nasa.pds.entities.SearchCriteria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.topcoder.nasa.job.LmmpJob;
+import com.topcoder.nasa.job.LmmpJobRepository;
+import com.topcoder.nasa.job.LmmpJobWorkflow;
+
+/**
+ * Tests for {@link GenerateResource#generateBatch(List)}.
+ */
+public class GenerateResourceTest {
+    private RecordingJobRepository repository;
+
+    private RecordingWorkflow workflow;
+
+    private GenerateResource resource;
+
+    @Before
+    public void setUp() {
+        repository = new RecordingJobRepository();
+        workflow = new RecordingWorkflow();
+
+        resource = new GenerateResource();
+        resource.setLmmpJobRepository(repository);
+        resource.setLmmpJobWorkflow(workflow);
+    }
+
+    @Test
+    public void duplicatesShareOneJob() {
+        List<String> trackingIds = resource.generateBatch(
+                Arrays.asList(criteria("png"), criteria("PNG"), criteria(null, "png"))).get(
+                "trackingIds");
+
+        assertEquals(3, trackingIds.size());
+        assertEquals(trackingIds.get(0), trackingIds.get(1));
+        assertEquals(trackingIds.get(0), trackingIds.get(2));
+        assertEquals(1, workflow.started.size());
+        assertEquals(trackingIds.get(0), workflow.started.get(0).getUuid());
+    }
+
+    @Test
+    public void trackingIdsComeBackInRequestOrder() {
+        List<String> trackingIds = resource.generateBatch(
+                Arrays.asList(criteria("png"), criteria("jpeg"), criteria("png"), criteria(null)))
+                .get("trackingIds");
+
+        assertEquals(4, trackingIds.size());
+        assertEquals(3, workflow.started.size());
+        assertEquals(workflow.started.get(0).getUuid(), trackingIds.get(0));
+        assertEquals(workflow.started.get(1).getUuid(), trackingIds.get(1));
+        assertEquals(workflow.started.get(0).getUuid(), trackingIds.get(2));
+        assertEquals(workflow.started.get(2).getUuid(), trackingIds.get(3));
+    }
+
+    @Test
+    public void addsAllTheJobsInOneGoBeforeStartingThem() {
+        resource.generateBatch(Arrays.asList(criteria("png"), criteria("jpeg"), criteria("png")));
+
+        assertEquals(1, repository.addAllCalls.size());
+        assertEquals(0, repository.addCalls);
+
+        List<LmmpJob> added = repository.addAllCalls.get(0);
+        assertEquals(2, added.size());
+        assertSame(added.get(0), workflow.started.get(0));
+        assertSame(added.get(1), workflow.started.get(1));
+        assertFalse(repository.addedAfterStart);
+    }
+
+    @Test
+    public void missingOrEmptyArrayIsABadRequest() {
+        assertBadRequest(null);
+        assertBadRequest(Collections.<LmmpSearchCriteria> emptyList());
+    }
+
+    @Test
+    public void nullCriteriaAreABadRequest() {
+        assertBadRequest(Arrays.asList(criteria("png"), null));
+    }
+
+    // =========================================================================
+
+    private void assertBadRequest(List<LmmpSearchCriteria> searchCriteriaList) {
+        try {
+            resource.generateBatch(searchCriteriaList);
+            fail();
+        } catch (WebApplicationException e) {
+            assertEquals(400, e.getResponse().getStatus());
+        }
+
+        assertEquals(0, repository.addAllCalls.size());
+        assertEquals(0, workflow.started.size());
+    }
+
+    private static LmmpSearchCriteria criteria(String outputFormat, String... outputFormats) {
+        LmmpSearchCriteria criteria = new LmmpSearchCriteria();
+
+        criteria.setOutputFormat(outputFormat);
+
+        if (outputFormats.length > 0) {
+            criteria.setOutputFormats(Arrays.asList(outputFormats));
+        }
+
+        return criteria;
+    }
+
+    private class RecordingWorkflow extends LmmpJobWorkflow {
+        private final List<LmmpJob> started = new ArrayList<LmmpJob>();
+
+        @Override
+        public void startFor(LmmpJob job, SearchCriteria searchCriteria) {
+            started.add(job);
+        }
+    }
+
+    private class RecordingJobRepository implements LmmpJobRepository {
+        private final List<List<LmmpJob>> addAllCalls = new ArrayList<List<LmmpJob>>();
+
+        private int addCalls;
+
+        private boolean addedAfterStart;
+
+        public void add(LmmpJob job) {
+            addCalls++;
+        }
+
+        public void addAll(List<LmmpJob> jobs) {
+            addedAfterStart |= !workflow.started.isEmpty();
+            addAllCalls.add(new ArrayList<LmmpJob>(jobs));
+        }
+
+        public void update(LmmpJob job) {
+        }
+
+        public LmmpJob load(String uuid) {
+            return null;
+        }
+
+        public LmmpJob findCompletedByResultKey(String resultKey) {
+            return null;
+        }
+
+        public List<LmmpJob> findRunningJobs() {
+            return new ArrayList<LmmpJob>();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.topcoder.nasa.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SearchCriteriaHasher}.
+ */
+public class SearchCriteriaHasherTest {
+
+    @Test
+    public void hashIsSha256Hex() {
+        assertTrue(SearchCriteriaHasher.hash(criteria(null)).matches("[0-9a-f]{64}"));
+    }
+
+    @Test
+    public void singleAndListedFormatHashTheSame() {
+        String hash = SearchCriteriaHasher.hash(criteria("png"));
+
+        assertEquals(hash, SearchCriteriaHasher.hash(criteria(null, "png")));
+        assertEquals(hash, SearchCriteriaHasher.hash(criteria("png", "png")));
+    }
+
+    @Test
+    public void formatsAreTrimmedLowerCasedAndDeduplicated() {
+        String hash = SearchCriteriaHasher.hash(criteria(null, "png"));
+
+        assertEquals(hash, SearchCriteriaHasher.hash(criteria(null, "png", "PNG")));
+        assertEquals(hash, SearchCriteriaHasher.hash(criteria(" Png ", "", null)));
+    }
+
+    @Test
+    public void formatOrderDoesNotMatter() {
+        assertEquals(SearchCriteriaHasher.hash(criteria(null, "png", "jpeg")),
+                SearchCriteriaHasher.hash(criteria("jpeg", "png")));
+    }
+
+    @Test
+    public void noFormatMeansGtiff() {
+        String hash = SearchCriteriaHasher.hash(criteria(null));
+
+        assertEquals(hash, SearchCriteriaHasher.hash(criteria("GTiff")));
+        assertEquals(hash, SearchCriteriaHasher.hash(criteria(null, "gtiff")));
+    }
+
+    @Test
+    public void differentFormatsHashDifferently() {
+        assertFalse(SearchCriteriaHasher.hash(criteria("png")).equals(
+                SearchCriteriaHasher.hash(criteria("jpeg"))));
+        assertFalse(SearchCriteriaHasher.hash(criteria("png")).equals(
+                SearchCriteriaHasher.hash(criteria("png", "jpeg"))));
+    }
+
+    @Test
+    public void setValuedCriteriaOrderDoesNotMatter() {
+        assertEquals(SearchCriteriaHasher.hash(new ListCriteria(Arrays.asList("MOON", "MARS"), null)),
+                SearchCriteriaHasher.hash(new ListCriteria(Arrays.asList("MARS", "MOON"), null)));
+    }
+
+    @Test
+    public void otherArraysKeepTheirOrder() {
+        assertFalse(SearchCriteriaHasher.hash(new ListCriteria(null, Arrays.asList(1.0, 2.0, 3.0)))
+                .equals(SearchCriteriaHasher.hash(new ListCriteria(null, Arrays.asList(3.0, 2.0,
+                        1.0)))));
+    }
+
+    // =========================================================================
+
+    private static LmmpSearchCriteria criteria(String outputFormat, String... outputFormats) {
+        LmmpSearchCriteria criteria = new LmmpSearchCriteria();
+
+        criteria.setOutputFormat(outputFormat);
+
+        if (outputFormats.length > 0) {
+            criteria.setOutputFormats(Arrays.asList(outputFormats));
+        }
+
+        return criteria;
+    }
+
+    /**
+     * Criteria with a set-valued field, and an ordered one, as PDS's criteria might have.
+     */
+    private static class ListCriteria extends LmmpSearchCriteria {
+        private final List<String> targets;
+
+        private final List<Double> polygon;
+
+        ListCriteria(List<String> targets, List<Double> polygon) {
+            this.targets = targets;
+            this.polygon = polygon;
+        }
+
+        public List<String> getTargets() {
+            return targets;
+        }
+
+        public List<Double> getPolygon() {
+            return polygon;
+        }
+    }
+}